@@ -0,0 +1,44 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates reproducible vault contents for the benchmarks.
+ */
+public final class BenchmarkData {
+    public static final String MASTER_PASSWORD = "BenchmarkMasterPassword";
+    private static final String PASSWORD_CHARS =
+            "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789!@#$%^&*";
+    private static final String[] DOMAINS = {"gmail.com", "outlook.com", "example.org", "company.io"};
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Creates the given number of entries with realistic, repetitive services and usernames.
+     */
+    public static List<PasswordEntry> entries(int count) {
+        Random random = new Random(42);
+        List<PasswordEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String service = "service-" + random.nextInt(Math.max(1, count / 4)) + "." + DOMAINS[i % DOMAINS.length];
+            String username = "user" + i + "@" + DOMAINS[random.nextInt(DOMAINS.length)];
+            PasswordEntry entry = new PasswordEntry(service, username, password(random, 16));
+            entry.setId(i + 1);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static String password(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = PASSWORD_CHARS.charAt(random.nextInt(PASSWORD_CHARS.length()));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,181 @@
+package com.zimenina.yuliya.controller;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import javafx.application.Application;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableSet;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableRow;
+import javafx.scene.control.TableView;
+import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Renders the password column headlessly, without a toolkit or skin: a frame moves the
+ * {@value #VISIBLE_ROWS} visible rows of a 100,000-row table by one page, the way fast scrolling
+ * does, or toggles the password of one row. The {@code legacy} variants use the former cell,
+ * which built its nodes on every update and refreshed the table on a toggle; a refresh recreates
+ * every visible cell. Each operation is one frame, so the GC profiler's alloc.rate.norm is the
+ * number of bytes allocated per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class PasswordCellBenchmark {
+    private static final int SIZE = 100_000;
+    private static final int VISIBLE_ROWS = 30;
+
+    private TableView<PasswordEntry> table;
+    private TableColumn<PasswordEntry, String> legacyColumn;
+    private TableColumn<PasswordEntry, String> column;
+    private TableCell<PasswordEntry, String>[] legacyCells;
+    private TableRow<PasswordEntry>[] legacyRows;
+    private PasswordCell[] cells;
+    private TableRow<PasswordEntry>[] rows;
+    private final ObservableSet<PasswordEntry> revealed =
+            FXCollections.observableSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private int legacyFirst;
+    private int first;
+    private int legacyToggled;
+    private int toggled;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws ReflectiveOperationException {
+        // Control's static initializer installs the default stylesheet through the toolkit, which needs
+        // a display; with a stylesheet already set it skips that, and cells work without a toolkit
+        Field stylesheet = Application.class.getDeclaredField("userAgentStylesheet");
+        stylesheet.setAccessible(true);
+        stylesheet.set(null, "headless");
+        table = new TableView<>(FXCollections.observableArrayList(BenchmarkData.entries(SIZE)));
+        legacyColumn = new TableColumn<>("Password");
+        legacyColumn.setCellValueFactory(new PropertyValueFactory<>("displayedPassword"));
+        column = new TableColumn<>("Password");
+        table.getColumns().add(legacyColumn);
+        table.getColumns().add(column);
+        legacyCells = new TableCell[VISIBLE_ROWS];
+        legacyRows = new TableRow[VISIBLE_ROWS];
+        cells = new PasswordCell[VISIBLE_ROWS];
+        rows = new TableRow[VISIBLE_ROWS];
+        for (int i = 0; i < VISIBLE_ROWS; i++) {
+            legacyRows[i] = row();
+            legacyCells[i] = attach(LegacyPasswordCell::new, legacyColumn, legacyRows[i], i);
+            rows[i] = row();
+            cells[i] = attach(() -> PasswordCell.create(revealed), column, rows[i], i);
+        }
+    }
+
+    @Benchmark
+    public Object legacyScroll() {
+        legacyFirst = (legacyFirst + VISIBLE_ROWS) % (SIZE - VISIBLE_ROWS);
+        for (int i = 0; i < VISIBLE_ROWS; i++) {
+            legacyRows[i].updateIndex(legacyFirst + i);
+            legacyCells[i].updateIndex(legacyFirst + i);
+        }
+        return legacyCells[0].getGraphic();
+    }
+
+    @Benchmark
+    public Object scroll() {
+        first = (first + VISIBLE_ROWS) % (SIZE - VISIBLE_ROWS);
+        for (int i = 0; i < VISIBLE_ROWS; i++) {
+            rows[i].updateIndex(first + i);
+            cells[i].updateIndex(first + i);
+        }
+        return cells[0].getGraphic();
+    }
+
+    @Benchmark
+    public Object legacyToggle() {
+        legacyToggled = (legacyToggled + 1) % VISIBLE_ROWS;
+        PasswordEntry entry = legacyRows[legacyToggled].getItem();
+        entry.setPasswordVisible(!entry.isPasswordVisible());
+        // TableView.refresh() discards the visible cells and creates new ones
+        for (int i = 0; i < VISIBLE_ROWS; i++) {
+            legacyCells[i] = attach(LegacyPasswordCell::new, legacyColumn, legacyRows[i], legacyRows[i].getIndex());
+        }
+        return legacyCells[legacyToggled].getGraphic();
+    }
+
+    @Benchmark
+    public Object toggle() {
+        toggled = (toggled + 1) % VISIBLE_ROWS;
+        PasswordEntry entry = rows[toggled].getItem();
+        if (!revealed.remove(entry)) {
+            revealed.add(entry);
+        }
+        return cells[toggled].getGraphic();
+    }
+
+    private TableRow<PasswordEntry> row() {
+        TableRow<PasswordEntry> row = new TableRow<>();
+        row.updateTableView(table);
+        return row;
+    }
+
+    private <C extends TableCell<PasswordEntry, String>> C attach(Supplier<C> factory,
+            TableColumn<PasswordEntry, String> tableColumn, TableRow<PasswordEntry> row, int index) {
+        C cell = factory.get();
+        cell.updateTableView(table);
+        cell.updateTableColumn(tableColumn);
+        cell.updateTableRow(row);
+        row.updateIndex(index);
+        cell.updateIndex(index);
+        return cell;
+    }
+
+    /**
+     * The password cell as it was before PasswordCell.
+     */
+    private static final class LegacyPasswordCell extends TableCell<PasswordEntry, String> {
+        private final Button toggleButton = new Button("👁");
+
+        @Override
+        protected void updateItem(String item, boolean empty) {
+            super.updateItem(item, empty);
+            if (empty || getTableRow() == null || getTableRow().getItem() == null) {
+                setText(null);
+                setGraphic(null);
+            } else {
+                PasswordEntry entry = getTableRow().getItem();
+                setText(null);
+                toggleButton.setText(entry.isPasswordVisible() ? "🙈" : "👁");
+                toggleButton.setOnAction(event -> {
+                    entry.setPasswordVisible(!entry.isPasswordVisible());
+                    getTableView().refresh();
+                });
+                Label passwordLabel = new Label(item != null ? item : "");
+                Region spacer = new Region();
+                HBox.setHgrow(spacer, Priority.ALWAYS);
+                HBox hbox = new HBox(5);
+                hbox.getChildren().addAll(passwordLabel, spacer, toggleButton);
+                setGraphic(hbox);
+            }
+        }
+    }
+}
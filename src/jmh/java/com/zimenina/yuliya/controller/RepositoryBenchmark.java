@@ -0,0 +1,87 @@
+package com.zimenina.yuliya.controller;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.VaultRepository;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the former ObservableArrayList with the keyed {@link VaultRepository} and its
+ * {@link ObservableVaultList} view: finding an entry by service and username, and deleting an entry
+ * (added back afterwards, so the size stays the same). The view applies changes immediately here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class RepositoryBenchmark {
+    @Param({"10000", "100000"})
+    public int size;
+
+    private List<PasswordEntry> entries;
+    private ObservableList<PasswordEntry> list;
+    private VaultRepository repository;
+    private ObservableVaultList view;
+    private final Random random = new Random(42);
+
+    @Setup
+    public void setUp() {
+        entries = BenchmarkData.entries(size);
+        list = FXCollections.observableArrayList(entries);
+        repository = new VaultRepository();
+        repository.addLoaded(entries);
+        view = ObservableVaultList.of(repository, Runnable::run);
+    }
+
+    @Benchmark
+    public PasswordEntry listFind() {
+        PasswordEntry wanted = entries.get(random.nextInt(size));
+        for (PasswordEntry entry : list) {
+            if (entry.getService().equalsIgnoreCase(wanted.getService())
+                    && entry.getUsername().equals(wanted.getUsername())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public PasswordEntry repositoryFind() {
+        PasswordEntry wanted = entries.get(random.nextInt(size));
+        return repository.find(wanted.getService(), wanted.getUsername());
+    }
+
+    @Benchmark
+    public int listDelete() {
+        PasswordEntry entry = list.get(random.nextInt(size));
+        list.remove(entry);
+        list.add(entry);
+        return list.size();
+    }
+
+    @Benchmark
+    public int repositoryDelete() {
+        PasswordEntry entry = view.get(random.nextInt(size));
+        repository.remove(entry);
+        repository.add(entry);
+        return view.size();
+    }
+}
@@ -0,0 +1,91 @@
+package com.zimenina.yuliya.controller;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.SearchIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Runs the table search of MainController headlessly. {@code scan} is the former filter that
+ * lower-cased and tested every entry; {@code index} answers the query from the trigram index,
+ * and {@code filter} additionally evaluates the resulting predicate for every entry,
+ * the way FilteredList does. {@code rank} is the search as you type: the best
+ * {@value #RESULTS} matches allowing typos within {@code budget} milliseconds (0 for no limit).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class SearchBenchmark {
+    private static final int RESULTS = 200;
+
+    @Param({"10000", "100000", "500000"})
+    public int size;
+
+    @Param({"ser", "service-42.", "servcie-42.", "missing"})
+    public String query;
+
+    @Param({"16"})
+    public long budget;
+
+    private List<PasswordEntry> entries;
+    private SearchIndex searchIndex;
+
+    @Setup
+    public void setUp() {
+        entries = BenchmarkData.entries(size);
+        searchIndex = new SearchIndex();
+        searchIndex.addAll(entries);
+    }
+
+    @Benchmark
+    public int scan() {
+        String searchText = query.toLowerCase();
+        int matches = 0;
+        for (PasswordEntry entry : entries) {
+            if (entry.getService().toLowerCase().contains(searchText)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int index() {
+        return searchIndex.search(query).size();
+    }
+
+    @Benchmark
+    public int filter() {
+        Predicate<PasswordEntry> predicate = searchIndex.matcher(query);
+        int matches = 0;
+        for (PasswordEntry entry : entries) {
+            if (predicate.test(entry)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public SearchIndex.Ranking rank() {
+        long budgetNanos = budget > 0 ? TimeUnit.MILLISECONDS.toNanos(budget) : Long.MAX_VALUE / 2;
+        return searchIndex.rank(query, RESULTS, budgetNanos, () -> false);
+    }
+}
@@ -0,0 +1,111 @@
+package com.zimenina.yuliya.controller;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.CryptoContext;
+import com.zimenina.yuliya.util.Storage;
+import com.zimenina.yuliya.util.VaultLog;
+import javafx.application.Application;
+import javafx.fxml.FXMLLoader;
+import javafx.scene.text.Font;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work left between a successful login and a filled window, once per freshly started JVM like
+ * the application's: loading {@code main.fxml} and loading a vault of {@code size} entries with
+ * {@value #CHANGES} changes in its log. With {@code prefetch}, the window and
+ * {@link VaultLog#prefetch()} ran before, without the key, as they do while the login window is open.
+ * Key derivation is the same either way and left out. The window is built headlessly (see
+ * {@link PasswordCellBenchmark}), so scene creation and the first layout are not part of the time.
+ * The vault is written by the first, discarded fork and kept in {@code target}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 10, warmups = 1)
+public class StartupBenchmark {
+    private static final int CHANGES = 1000;
+
+    @Param({"false", "true"})
+    public boolean prefetch;
+
+    @Param({"10000"})
+    public int size;
+
+    private Path file;
+    private VaultLog vaultLog;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Control's static initializer needs a toolkit unless a stylesheet is already set
+        Field stylesheet = Application.class.getDeclaredField("userAgentStylesheet");
+        stylesheet.setAccessible(true);
+        stylesheet.set(null, "headless");
+        // The running application has its graphics pipeline and fonts loaded before the login
+        Font.getDefault();
+        file = Path.of("target", "startup-vault-" + size, "data.json");
+        if (!Files.exists(file)) {
+            writeVault();
+        }
+        vaultLog = VaultLog.open(file.toString());
+        if (prefetch) {
+            loadWindow();
+            vaultLog.prefetch();
+        }
+    }
+
+    @Benchmark
+    public List<PasswordEntry> loginToWindow() throws Exception {
+        AESUtil.setContext(new CryptoContext(key()));
+        if (!prefetch) {
+            loadWindow();
+        }
+        return vaultLog.load();
+    }
+
+    private static void loadWindow() throws Exception {
+        new FXMLLoader(MainController.class.getResource("/fxml/main.fxml")).load();
+    }
+
+    private void writeVault() throws Exception {
+        Files.createDirectories(file.getParent());
+        AESUtil.setContext(new CryptoContext(key()));
+        List<PasswordEntry> entries = BenchmarkData.entries(size);
+        Storage.save(entries, file.toString());
+        VaultLog writer = VaultLog.open(file.toString());
+        writer.load();
+        for (int i = 0; i < CHANGES; i++) {
+            PasswordEntry entry = entries.get(i * (size / CHANGES));
+            entry.setPassword("changed-" + i);
+            writer.recordPut(entry);
+        }
+        writer.flush();
+        writer.close();
+    }
+
+    private static byte[] key() {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) 42);
+        return key;
+    }
+}
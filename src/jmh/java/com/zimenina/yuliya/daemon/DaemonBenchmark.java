@@ -0,0 +1,124 @@
+package com.zimenina.yuliya.daemon;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.Storage;
+import com.zimenina.yuliya.util.VaultLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Load test of credential lookups. {@code daemon} asks a running {@link CredentialDaemon} from
+ * eight client threads, each with its own connection; {@code loadAndFind} is what a tool had to do
+ * without it: load the vault file and decrypt the password it needs.
+ * Sample mode reports the latency distribution, so p50 and p99 can be read from the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class DaemonBenchmark {
+    @Param({"10000", "100000"})
+    public int size;
+
+    private Path directory;
+    private String vaultFile;
+    private List<PasswordEntry> entries;
+    private VaultLog vault;
+    private CredentialDaemon daemon;
+
+    /**
+     * One connection per client thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private CredentialClient client;
+        private final Random random = new Random();
+
+        @Setup(Level.Trial)
+        public void connect(DaemonBenchmark benchmark) throws IOException {
+            client = CredentialClient.connect(benchmark.daemon.getSocketPath());
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            client.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        AESUtil.setMasterPassword(BenchmarkData.MASTER_PASSWORD);
+        directory = Files.createTempDirectory("daemon-benchmark");
+        vaultFile = directory.resolve("data.json").toString();
+        entries = BenchmarkData.entries(size);
+        Storage.save(entries, vaultFile);
+        vault = VaultLog.open(vaultFile);
+        vault.load();
+        daemon = CredentialDaemon.start(directory.resolve("pm.sock"), vault);
+        // Wait until the first snapshot is published
+        try (CredentialClient client = CredentialClient.connect(daemon.getSocketPath())) {
+            PasswordEntry entry = entries.get(0);
+            while (true) {
+                try {
+                    client.get(entry.getService(), entry.getUsername());
+                    break;
+                } catch (IOException e) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        daemon.close();
+        vault.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String daemon(Client client) throws IOException {
+        PasswordEntry entry = entries.get(client.random.nextInt(entries.size()));
+        return client.client.get(entry.getService(), entry.getUsername());
+    }
+
+    @Benchmark
+    public String loadAndFind() {
+        PasswordEntry wanted = entries.get(size / 2);
+        for (PasswordEntry entry : Storage.load(vaultFile)) {
+            if (entry.getService().equalsIgnoreCase(wanted.getService())
+                    && entry.getUsername().equals(wanted.getUsername())) {
+                return entry.getPassword();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,64 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the VaultCodec implementations in memory, without file or cipher overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class CodecBenchmark {
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"gson", "jackson"})
+    public String codecName;
+
+    private VaultCodec codec;
+    private List<PasswordEntry> entries;
+    private byte[] json;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = VaultCodec.forName(codecName);
+        entries = BenchmarkData.entries(size);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(entries, out);
+        json = out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+        codec.write(entries, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public List<PasswordEntry> read() throws IOException {
+        return codec.read(new ByteArrayInputStream(json));
+    }
+}
@@ -0,0 +1,86 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares save time, load time and file size of Storage at different index compression levels.
+ * The file size is reported as the secondary result "fileBytes".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class CompressionBenchmark {
+    @Param({"100000"})
+    public int size;
+
+    @Param({"0", "1", "6", "9"})
+    public int level;
+
+    private Path directory;
+    private String saveFile;
+    private String loadFile;
+    private List<PasswordEntry> entries;
+
+    /**
+     * Size of the written vault, reported next to the timing.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class FileSize {
+        public long fileBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        AESUtil.setMasterPassword(BenchmarkData.MASTER_PASSWORD);
+        directory = Files.createTempDirectory("compression-benchmark");
+        saveFile = directory.resolve("save.json").toString();
+        loadFile = directory.resolve("load.json").toString();
+        entries = BenchmarkData.entries(size);
+        Storage.save(entries, loadFile, level);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void save(FileSize fileSize) throws IOException {
+        Storage.save(entries, saveFile, level);
+        fileSize.fileBytes = Files.size(Path.of(saveFile));
+    }
+
+    @Benchmark
+    public List<PasswordEntry> load() {
+        return Storage.load(loadFile);
+    }
+}
@@ -0,0 +1,77 @@
+package com.zimenina.yuliya.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks CryptoContext on short values, one at a time and in bulk, the way vault files and the
+ * vault log encrypt passwords and records. Runs in the current format (AES/GCM) by default;
+ * {@code -p format=ECB} measures the original format, which is only read any more.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+    private static final int BULK_SIZE = 10_000;
+
+    @Param("GCM")
+    public String format;
+
+    private CryptoContext context;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+    private List<byte[]> bulkPlaintexts;
+    private List<byte[]> bulkCiphertexts;
+
+    @Setup
+    public void setUp() {
+        CryptoContext current = new CryptoContext(MasterKey.newVaultKey());
+        context = format.equals("ECB") ? current.legacy() : current;
+        plaintext = "correct horse battery".getBytes(StandardCharsets.UTF_8);
+        ciphertext = context.encrypt(plaintext);
+        bulkPlaintexts = new ArrayList<>(BULK_SIZE);
+        for (int i = 0; i < BULK_SIZE; i++) {
+            bulkPlaintexts.add(("correct horse battery" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        bulkCiphertexts = context.encryptAll(bulkPlaintexts);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return context.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return context.decrypt(ciphertext);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<byte[]> encryptAll() {
+        return context.encryptAll(bulkPlaintexts);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<byte[]> decryptAll() {
+        return context.decryptAll(bulkCiphertexts);
+    }
+}
@@ -0,0 +1,105 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.util.PasswordGenerator.CharacterClass;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates {@code count} passwords of 20 characters of all classes, as when many credentials are
+ * rotated at once: {@code retry} draws every character with {@link SecureRandom#nextInt(int)} and draws
+ * the whole password again until it has a character of each class, {@code single} calls
+ * {@link PasswordGenerator#generate()} per password and {@code batch} asks for all of them at once.
+ * {@code passphrase} makes as many passphrases of six words from a list of 7776.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeneratorBenchmark {
+    private static final String[] CLASSES = {"abcdefghijklmnopqrstuvwxyz", "ABCDEFGHIJKLMNOPQRSTUVWXYZ",
+            "0123456789", "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~"};
+    private static final int LENGTH = 20;
+
+    @Param({"10000"})
+    public int count;
+
+    private final SecureRandom random = new SecureRandom();
+    private final String alphabet = String.join("", CLASSES);
+    private PasswordGenerator generator;
+    private PasswordGenerator passphrases;
+
+    @Setup
+    public void setUp() {
+        generator = PasswordGenerator.characters(LENGTH, EnumSet.allOf(CharacterClass.class), false);
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < 7776; i++) {
+            words.add("word" + i);
+        }
+        passphrases = PasswordGenerator.passphrase(words, 6, "-");
+    }
+
+    @Benchmark
+    public List<String> retry() {
+        List<String> passwords = new ArrayList<>(count);
+        char[] password = new char[LENGTH];
+        while (passwords.size() < count) {
+            for (int i = 0; i < LENGTH; i++) {
+                password[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            String candidate = new String(password);
+            if (hasEveryClass(candidate)) {
+                passwords.add(candidate);
+            }
+        }
+        return passwords;
+    }
+
+    @Benchmark
+    public List<String> single() {
+        List<String> passwords = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            passwords.add(generator.generate());
+        }
+        return passwords;
+    }
+
+    @Benchmark
+    public List<String> batch() {
+        return generator.generate(count);
+    }
+
+    @Benchmark
+    public List<String> passphrase() {
+        return passphrases.generate(count);
+    }
+
+    private static boolean hasEveryClass(String password) {
+        for (String characters : CLASSES) {
+            boolean found = false;
+            for (int i = 0; i < password.length() && !found; i++) {
+                found = characters.indexOf(password.charAt(i)) >= 0;
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,78 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Analyzes the password health of a loaded vault, whose passwords are decrypted on first use:
+ * {@code fullRun} from scratch, as after login, and {@code oneChange} after one entry was replaced,
+ * as after an edit in the table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class HealthBenchmark {
+    @Param({"100000"})
+    public int size;
+
+    private Path file;
+    private List<PasswordEntry> entries;
+    private PasswordHealth health;
+    private int changes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        AESUtil.setMasterPassword(BenchmarkData.MASTER_PASSWORD);
+        file = Files.createTempFile("health-benchmark", ".json");
+        Storage.save(BenchmarkData.entries(size), file.toString());
+        entries = Storage.load(file.toString());
+        health = new PasswordHealth();
+        health.addAll(entries);
+        health.analyzePending();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int fullRun() {
+        PasswordHealth fresh = new PasswordHealth();
+        fresh.addAll(entries);
+        return fresh.analyzePending();
+    }
+
+    @Benchmark
+    public int oneChange() {
+        int index = changes++ % entries.size();
+        PasswordEntry entry = entries.get(index);
+        PasswordEntry edited = new PasswordEntry(entry.getService(), entry.getUsername(), "changed-" + changes);
+        health.remove(entry);
+        health.add(edited);
+        entries.set(index, edited);
+        return health.analyzePending();
+    }
+}
@@ -0,0 +1,76 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the decrypted passwords of a large vault either as Strings on the heap, as the daemon's
+ * snapshot and entries read from the log used to, or in a {@link SecretStore} with a handle per entry.
+ * {@code fullGc} times a full collection with that live set; {@code read} reads one password back.
+ * The heap in use after a collection is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g", "-XX:+UseG1GC"})
+public class SecretStoreBenchmark {
+    @Param({"heap", "offHeap"})
+    public String storage;
+
+    @Param({"1000000"})
+    public int size;
+
+    private List<PasswordEntry> entries;
+    private SecretStore store;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        entries = BenchmarkData.entries(size);
+        if (storage.equals("offHeap")) {
+            store = new SecretStore();
+            for (PasswordEntry entry : entries) {
+                entry.setPasswordSource(store.put(entry.getPassword()));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.gc();
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long offHeap = store != null ? store.getBytesInUse() : 0;
+        System.out.printf("%n%s: %d MB heap in use after GC, %d MB off heap%n",
+                storage, used >> 20, offHeap >> 20);
+    }
+
+    @Benchmark
+    public void fullGc() {
+        System.gc();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String read() {
+        next = (next + 1) % size;
+        return entries.get(next).getPassword();
+    }
+}
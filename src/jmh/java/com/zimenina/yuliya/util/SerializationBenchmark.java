@@ -0,0 +1,82 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares the plain JSON persistence of JsonUtils with the encrypted Storage format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class SerializationBenchmark {
+    @Param({"10000", "100000"})
+    public int size;
+
+    private Path directory;
+    private String jsonFile;
+    private String storageFile;
+    private List<PasswordEntry> entries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        AESUtil.setMasterPassword(BenchmarkData.MASTER_PASSWORD);
+        directory = Files.createTempDirectory("serialization-benchmark");
+        jsonFile = directory.resolve("passwords.json").toString();
+        storageFile = directory.resolve("data.json").toString();
+        entries = BenchmarkData.entries(size);
+        JsonUtils.saveToJson(entries, jsonFile);
+        Storage.save(entries, storageFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void jsonUtilsSave() {
+        JsonUtils.saveToJson(entries, jsonFile);
+    }
+
+    @Benchmark
+    public void storageSave() {
+        Storage.save(entries, storageFile);
+    }
+
+    @Benchmark
+    public List<PasswordEntry> jsonUtilsLoad() {
+        return JsonUtils.loadFromJson(jsonFile);
+    }
+
+    @Benchmark
+    public List<PasswordEntry> storageLoad() {
+        return Storage.load(storageFile);
+    }
+}
@@ -0,0 +1,79 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Loads a vault kept in one file or split into shards, and saves it after a single entry changed,
+ * the way a compaction does: the entries come from the loaded vault and the changed id is known.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class ShardBenchmark {
+    @Param({"1", "8"})
+    public int shards;
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    private Path directory;
+    private String file;
+    private List<PasswordEntry> entries;
+    private int changes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        AESUtil.setMasterPassword(BenchmarkData.MASTER_PASSWORD);
+        Storage.setShards(shards);
+        directory = Files.createTempDirectory("shard-benchmark");
+        file = directory.resolve("vault.json").toString();
+        Storage.save(BenchmarkData.entries(size), file);
+        entries = Storage.load(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Storage.setShards(1);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<PasswordEntry> load() {
+        return Storage.load(file);
+    }
+
+    @Benchmark
+    public void saveOneChange() {
+        PasswordEntry entry = entries.get(changes++ % entries.size());
+        entry.setPassword("changed-" + changes);
+        Storage.save(entries, file, Set.of(entry.getId()));
+    }
+}
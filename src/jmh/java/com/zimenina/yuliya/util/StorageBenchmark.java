@@ -0,0 +1,80 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.BenchmarkData;
+import com.zimenina.yuliya.model.PasswordEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks saving and loading whole vaults with Storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class StorageBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    private Path directory;
+    private String saveFile;
+    private String loadFile;
+    private List<PasswordEntry> entries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        AESUtil.setMasterPassword(BenchmarkData.MASTER_PASSWORD);
+        directory = Files.createTempDirectory("storage-benchmark");
+        saveFile = directory.resolve("save.json").toString();
+        loadFile = directory.resolve("load.json").toString();
+        entries = BenchmarkData.entries(size);
+        Storage.save(entries, loadFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void save() {
+        Storage.save(entries, saveFile);
+    }
+
+    @Benchmark
+    public List<PasswordEntry> load() {
+        return Storage.load(loadFile);
+    }
+
+    // Load followed by revealing every password, the worst case for on-demand decryption
+    @Benchmark
+    public void loadAndDecryptAll(Blackhole blackhole) {
+        for (PasswordEntry entry : Storage.load(loadFile)) {
+            blackhole.consume(entry.getPassword());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.BenchmarkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Imports a large CSV export into an empty vault and exports it again.
+ * The heap is kept small on purpose: the import streams, so it must not need room for the whole file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms128m", "-Xmx128m"})
+public class TransferBenchmark {
+    @Param({"150000"})
+    public int size;
+
+    private Path directory;
+    private Path csv;
+    private Path exported;
+    private String vaultFile;
+    private VaultLog vault;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        AESUtil.setMasterPassword(BenchmarkData.MASTER_PASSWORD);
+        directory = Files.createTempDirectory("transfer-benchmark");
+        csv = directory.resolve("import.csv");
+        exported = directory.resolve("export.csv");
+        vaultFile = directory.resolve("data.json").toString();
+        VaultTransfer.exportFile(BenchmarkData.entries(size), csv);
+    }
+
+    @Setup(Level.Invocation)
+    public void openVault() throws IOException {
+        Files.deleteIfExists(Path.of(vaultFile));
+        Files.deleteIfExists(Path.of(vaultFile + ".log"));
+        vault = VaultLog.open(vaultFile);
+        vault.load();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeVault() {
+        vault.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public VaultTransfer.ImportResult importCsv() {
+        return VaultTransfer.importFile(vault, csv);
+    }
+
+    @Benchmark
+    public int importAndExportCsv() {
+        VaultTransfer.importFile(vault, csv);
+        return VaultTransfer.exportFile(vault.entries(), exported);
+    }
+}
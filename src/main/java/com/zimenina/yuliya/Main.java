@@ -2,40 +2,72 @@ package com.zimenina.yuliya;
 
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
+import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.stage.Stage;
+import com.zimenina.yuliya.controller.MainController;
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
 import com.zimenina.yuliya.util.AESUtil;
-import java.io.IOException;
+import com.zimenina.yuliya.util.CryptoContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Main class for the Password Manager application.
  * Initializes the application and delegates master password handling.
+ * While the login window is open, the main window and the vault files are prepared in the background
+ * (see {@link MainController#prefetch()}), so only decrypting the vault is left after the login.
  */
 public class Main extends Application {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final Timer LOGIN_TO_WINDOW_TIMER = Metrics.timer("ui.login.window");
+
     @Override
     public void start(Stage primaryStage) throws Exception {
-        MasterPasswordManager passwordManager = new MasterPasswordManager();
-        String masterPassword = passwordManager.authenticate(primaryStage);
+        Metrics.startDumpIfConfigured();
+        FutureTask<FXMLLoader> mainWindow = new FutureTask<>(this::prepareMainWindow);
+        Thread.ofVirtual().name("main-window-prefetch").start(mainWindow);
+        MasterPasswordManager passwordManager = new MasterPasswordManager(MainController.FILE_NAME);
+        CryptoContext session = passwordManager.authenticate(primaryStage);
 
-        if (masterPassword != null) {
-            loadMainWindow(primaryStage, masterPassword);
+        if (session != null) {
+            loadMainWindow(primaryStage, session, mainWindow);
         } else {
             primaryStage.close();
         }
     }
 
+    // Runs in the background: nodes may be built off the JavaFX Application Thread until they are shown
+    private FXMLLoader prepareMainWindow() throws Exception {
+        FXMLLoader loader = new FXMLLoader(getClass().getResource("/fxml/main.fxml"));
+        loader.load();
+        loader.<MainController>getController().prefetch();
+        return loader;
+    }
+
     /**
-     * Loads the main application window after successful authentication.
+     * Shows the main application window after successful authentication.
      */
-    private void loadMainWindow(Stage primaryStage, String masterPassword) {
+    private void loadMainWindow(Stage primaryStage, CryptoContext session, FutureTask<FXMLLoader> mainWindow)
+            throws InterruptedException {
+        long start = System.nanoTime();
         try {
-            AESUtil.setMasterPassword(masterPassword);
-            FXMLLoader loader = new FXMLLoader(getClass().getResource("/fxml/main.fxml"));
+            AESUtil.setContext(session);
+            FXMLLoader loader = mainWindow.get();
+            MainController controller = loader.getController();
+            controller.open();
             primaryStage.setTitle("Password Manager");
-            primaryStage.setScene(new Scene(loader.load()));
+            primaryStage.setScene(new Scene(loader.<Parent>getRoot()));
+            primaryStage.setOnHidden(event -> controller.shutdown());
             primaryStage.show();
-        } catch (IOException e) {
+            LOGIN_TO_WINDOW_TIMER.recordSince(start);
+            logger.info("Main window shown {} ms after login", (System.nanoTime() - start) / 1_000_000);
+        } catch (ExecutionException e) {
+            logger.error("Failed to load the main window: ", e.getCause());
             Alert alert = new Alert(Alert.AlertType.ERROR);
             alert.setTitle("Error");
             alert.setHeaderText(null);
@@ -48,4 +80,4 @@ public class Main extends Application {
     public static void main(String[] args) {
         launch(args);
     }
-}
\ No newline at end of file
+}
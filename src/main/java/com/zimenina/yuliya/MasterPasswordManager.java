@@ -1,46 +1,56 @@
 package com.zimenina.yuliya;
 
 import com.zimenina.yuliya.controller.MasterLoginController;
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.CryptoContext;
+import com.zimenina.yuliya.util.MasterKey;
+import com.zimenina.yuliya.util.VaultLog;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.stage.Stage;
-import com.zimenina.yuliya.util.AESUtil;
 
-import java.io.*;
-import java.util.Properties;
+import java.io.IOException;
 
 /**
  * Manages the master password for the Password Manager application.
- * Handles password setup, verification, and login attempt limits.
+ * Handles the password setup and login windows and the login attempt limit;
+ * storing and checking the password is left to {@link MasterPasswordVerifier}.
+ * A vault still encrypted with the key older versions made from the password bytes is encrypted
+ * with a new random key at login, before the main window opens.
  */
 public class MasterPasswordManager {
-    private static final String PROPERTIES_FILE = "/application.properties";
-    private static final String USER_PROPERTIES_FILE = System.getProperty("user.home") + "/password_manager.properties";
     private static final int MAX_LOGIN_ATTEMPTS = 3;
+    private final String vaultFile;
     private int loginAttempts = 0;
-    private Properties properties;
+    private MasterPasswordVerifier verifier;
+
+    /**
+     * @param vaultFile the vault the master password opens
+     */
+    public MasterPasswordManager(String vaultFile) {
+        this.vaultFile = vaultFile;
+    }
 
     /**
      * Loads the application properties and initiates the master password process.
      * @param primaryStage The main stage for the application
-     * @return The verified master password, or null if authentication fails
+     * @return The crypto context of the session, or null if authentication fails
      */
-    public String authenticate(Stage primaryStage) {
-        properties = loadProperties();
-        String encryptedMasterPassword = properties.getProperty("encryptedMasterPassword");
+    public CryptoContext authenticate(Stage primaryStage) {
+        verifier = new MasterPasswordVerifier(this::showAlert);
 
-        if (encryptedMasterPassword == null || encryptedMasterPassword.isEmpty()) {
+        if (!verifier.isMasterPasswordSet()) {
             return promptSetMasterPassword(primaryStage);
         } else {
-            return promptLogin(encryptedMasterPassword, primaryStage);
+            return promptLogin(primaryStage);
         }
     }
 
     /**
      * Prompts the user to set a new master password if none exists.
      */
-    private String promptSetMasterPassword(Stage primaryStage) {
+    private CryptoContext promptSetMasterPassword(Stage primaryStage) {
         try {
             Stage setPasswordStage = new Stage();
             setPasswordStage.setTitle("Set Master Password");
@@ -50,18 +60,20 @@ public class MasterPasswordManager {
             setPasswordStage.setScene(scene);
 
             MasterLoginController controller = loader.getController();
-            final String[] newPassword = {null};
+            final CryptoContext[] session = {null};
             controller.setOnLoginSuccess(password -> {
-                String encryptedPassword = AESUtil.encrypt(password, password);
-                properties.setProperty("encryptedMasterPassword", encryptedPassword);
-                saveProperties(properties);
-                newPassword[0] = password;
-                setPasswordStage.close();
+                try {
+                    session[0] = verifier.setMasterPassword(password);
+                    setPasswordStage.close();
+                } catch (RuntimeException e) {
+                    // Nothing was stored, so no vault is created; the window stays open to try again
+                    showAlert("Error", e.getMessage());
+                }
             });
 
             controller.setSetupMode(true);
             setPasswordStage.showAndWait();
-            return newPassword[0];
+            return session[0];
         } catch (IOException e) {
             showAlert("Error", "Failed to load the password setup window.");
             return null;
@@ -71,7 +83,7 @@ public class MasterPasswordManager {
     /**
      * Prompts the user to enter the master password with attempt limit.
      */
-    private String promptLogin(String encryptedMasterPassword, Stage primaryStage) {
+    private CryptoContext promptLogin(Stage primaryStage) {
         try {
             Stage loginStage = new Stage();
             loginStage.setTitle("Enter Master Password");
@@ -82,12 +94,12 @@ public class MasterPasswordManager {
 
             // Set the stage to be modal
             MasterLoginController controller = loader.getController();
-            final String[] inputPassword = {null};
+            final CryptoContext[] session = {null};
             controller.setOnLoginSuccess(password -> {
-                String encryptedInput = AESUtil.encrypt(password, password);
-                if (encryptedInput.equals(encryptedMasterPassword)) {
+                CryptoContext context = verifier.unlock(password);
+                if (context != null) {
                     loginAttempts = 0;
-                    inputPassword[0] = password;
+                    session[0] = verifier.hasPasswordVaultKey() ? replacePasswordVaultKey(password, context) : context;
                     loginStage.close();
                 } else {
                     loginAttempts++;
@@ -102,7 +114,7 @@ public class MasterPasswordManager {
             });
 
             loginStage.showAndWait();
-            return inputPassword[0];
+            return session[0];
         } catch (IOException e) {
             showAlert("Error", "Failed to load the login window.");
             return null;
@@ -110,50 +122,25 @@ public class MasterPasswordManager {
     }
 
     /**
-     * Loads the application properties file.
-     * First tries to load from user home directory, then falls back to classpath.
-     */
-    private Properties loadProperties() {
-        Properties properties = new Properties();
-
-        // Try loading from user home directory first
-        File userFile = new File(USER_PROPERTIES_FILE);
-        if (userFile.exists()) {
-            try (FileInputStream fis = new FileInputStream(userFile)) {
-                properties.load(fis);
-                return properties;
-            } catch (IOException e) {
-                showAlert("Warning", "Failed to load properties from user directory. Falling back to default.");
-            }
-        }
-
-        // Fallback to classpath resource
-        try (InputStream inputStream = getClass().getResourceAsStream(PROPERTIES_FILE)) {
-            if (inputStream != null) {
-                properties.load(inputStream);
-            } else {
-                // If the resource is not found, return empty properties
-                showAlert("Info", "Properties file not found in classpath. Using default settings.");
-            }
-        } catch (IOException e) {
-            showAlert("Warning", "Failed to load properties from classpath. Using default settings.");
-        }
-        return properties;
-    }
-
-    /**
-     * Saves the updated properties to the user home directory.
+     * Encrypts the vault with a new random key, see {@link VaultLog#rekey}. Until this succeeds,
+     * each login warns and tries again.
+     * @return the crypto context of the session, with the new key or, if it could not be stored, the old one
      */
-    private void saveProperties(Properties properties) {
+    private CryptoContext replacePasswordVaultKey(String password, CryptoContext context) {
+        AESUtil.setContext(context);
+        VaultLog vaultLog = VaultLog.open(vaultFile);
         try {
-            File userFile = new File(USER_PROPERTIES_FILE);
-            userFile.getParentFile().mkdirs(); // Ensure parent directories exist
-            try (FileOutputStream fos = new FileOutputStream(userFile)) {
-                properties.store(fos, "Password Manager Properties");
-            }
-        } catch (IOException e) {
-            showAlert("Error", "Failed to save master password: " + e.getMessage());
+            vaultLog.load();
+            byte[] vaultKey = MasterKey.newVaultKey();
+            vaultLog.rekey(vaultKey, () -> verifier.setVaultKey(password, vaultKey));
+        } catch (RuntimeException e) {
+            vaultLog.close();
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            showAlert("Warning", "The vault is still encrypted with a key made from the master password alone, "
+                    + "which makes it easier to guess: " + cause.getMessage() + ". It is tried again at the next login.");
         }
+        // The new key once it is stored, even if the vault could not be moved yet: the next load finishes that
+        return AESUtil.getContext();
     }
 
     /**
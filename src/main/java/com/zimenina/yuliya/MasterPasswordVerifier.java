@@ -0,0 +1,264 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.CryptoContext;
+import com.zimenina.yuliya.util.MasterKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Stores and checks the master password, independent of any user interface.
+ * The vault key is kept wrapped with a key derived from the password (see {@link MasterKey}) in
+ * {@code password_manager.properties} in the user's home directory, so checking the password and
+ * getting the session key are one derivation. Its cost is calibrated on first setup to take about
+ * {@code pm.kdf.targetMillis} (250 ms by default) and raised again when a login finishes in less
+ * than half of that, e.g. after moving to faster hardware. A calibration that gains too little is
+ * remembered, so the logins that follow at the same speed do not repeat it. Properties from before,
+ * which held the password encrypted with itself, are converted on the first successful login; the
+ * vault key then stays the one those vaults were written with, the password bytes themselves, until
+ * the vault is encrypted with a new one (see {@link #hasPasswordVaultKey()}). Used by the login
+ * window and by the command line.
+ * The properties are written to a temporary file that is forced to disk and moved over the old one,
+ * and a new key is only used once it is stored, so a failed save leaves the old key in place.
+ */
+public class MasterPasswordVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(MasterPasswordVerifier.class);
+    private static final String PROPERTIES_FILE = "/application.properties";
+    private static final String USER_PROPERTIES_FILE = System.getProperty("user.home") + "/password_manager.properties";
+    private static final String LEGACY_MASTER_PASSWORD_KEY = "encryptedMasterPassword";
+    // The iteration count of the last calibration that was too small a gain to store
+    private static final String LAST_CALIBRATION_KEY = "kdfLastCalibration";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long TARGET_MILLIS = Long.getLong("pm.kdf.targetMillis", 250);
+    // A new calibration has to gain at least this much to be worth storing
+    private static final double RECALIBRATION_GAIN = 1.25;
+
+    private final BiConsumer<String, String> problemHandler;
+    private final Properties properties;
+    private MasterKey masterKey;
+    private boolean passwordVaultKey;
+
+    /**
+     * Loads the stored master password.
+     * @param problemHandler receives a title and a message when the properties cannot be read, or a
+     *                       login could not store an updated key
+     */
+    public MasterPasswordVerifier(BiConsumer<String, String> problemHandler) {
+        this.problemHandler = problemHandler;
+        this.properties = loadProperties();
+        this.masterKey = MasterKey.fromProperties(properties);
+    }
+
+    /**
+     * @return true if a master password has been set
+     */
+    public boolean isMasterPasswordSet() {
+        String legacy = properties.getProperty(LEGACY_MASTER_PASSWORD_KEY);
+        return masterKey != null || (legacy != null && !legacy.isEmpty());
+    }
+
+    /**
+     * Checks the given password against the stored master password and unwraps the vault key.
+     * Takes about the calibrated unlock time.
+     * @return the crypto context of the session, or null if the password is wrong
+     */
+    public CryptoContext unlock(String password) {
+        if (masterKey == null) {
+            return unlockLegacy(password);
+        }
+        byte[] vaultKey = masterKey.unlock(password);
+        if (vaultKey == null) {
+            return null;
+        }
+        passwordVaultKey = MessageDigest.isEqual(vaultKey, CryptoContext.legacyKey(password));
+        if (isRecalibrationPromising()) {
+            int iterations = MasterKey.calibrate(TARGET_MILLIS);
+            if (iterations > masterKey.getIterations() * RECALIBRATION_GAIN) {
+                logger.info("Login took {} ms, raising the key derivation cost from {} to {} iterations",
+                        TimeUnit.NANOSECONDS.toMillis(masterKey.getLastDerivationNanos()),
+                        masterKey.getIterations(), iterations);
+                try {
+                    storeMasterKey(MasterKey.create(password, vaultKey, iterations));
+                } catch (RuntimeException e) {
+                    // The stored key still works; the next login tries again
+                    logger.warn("Could not store the recalibrated master key: ", e);
+                }
+            } else {
+                rememberCalibration(iterations);
+            }
+        }
+        return new CryptoContext(vaultKey);
+    }
+
+    /**
+     * Tells whether the vault key of the last successful unlock is the one older versions used: the
+     * bytes of the password, so each guess at a stolen vault costs no more than one decryption.
+     * Such a vault should be encrypted with a new key, see {@link #setVaultKey(String, byte[])}.
+     */
+    public boolean hasPasswordVaultKey() {
+        return passwordVaultKey;
+    }
+
+    /**
+     * Stores a new master password with a new vault key, calibrated for this machine.
+     * @return the crypto context of the session
+     * @throws RuntimeException if the key cannot be stored; no vault may be written with it then
+     */
+    public CryptoContext setMasterPassword(String password) {
+        byte[] vaultKey = MasterKey.newVaultKey();
+        storeMasterKey(MasterKey.create(password, vaultKey, MasterKey.calibrate(TARGET_MILLIS)));
+        return new CryptoContext(vaultKey);
+    }
+
+    /**
+     * Replaces the stored vault key, once the vault has been encrypted with the new one.
+     * @param password the master password, already checked
+     * @throws RuntimeException if the key cannot be stored; the old one is still stored and used then
+     */
+    public void setVaultKey(String password, byte[] vaultKey) {
+        int iterations = masterKey != null ? masterKey.getIterations() : MasterKey.calibrate(TARGET_MILLIS);
+        storeMasterKey(MasterKey.create(password, vaultKey, iterations));
+        passwordVaultKey = false;
+    }
+
+    // A calibration takes about 200 ms, so it only runs if the login's own derivation suggests a count
+    // worth storing: above the current one and above what the last calibration that stored nothing found
+    private boolean isRecalibrationPromising() {
+        long lastNanos = Math.max(1, masterKey.getLastDerivationNanos());
+        long targetNanos = TimeUnit.MILLISECONDS.toNanos(TARGET_MILLIS);
+        if (lastNanos >= targetNanos / 2) {
+            return false;
+        }
+        double estimate = (double) masterKey.getIterations() * targetNanos / lastNanos;
+        long known = Math.max(masterKey.getIterations(), lastCalibration());
+        return estimate > known * RECALIBRATION_GAIN;
+    }
+
+    private long lastCalibration() {
+        try {
+            return Long.parseLong(properties.getProperty(LAST_CALIBRATION_KEY, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Keeps the count a calibration found too small to store, so logins at this speed do not probe again
+    private void rememberCalibration(int iterations) {
+        Properties updated = new Properties();
+        updated.putAll(properties);
+        updated.setProperty(LAST_CALIBRATION_KEY, Integer.toString(iterations));
+        try {
+            saveProperties(updated);
+            properties.setProperty(LAST_CALIBRATION_KEY, Integer.toString(iterations));
+        } catch (RuntimeException e) {
+            logger.warn("Could not store the calibration result: ", e);
+        }
+    }
+
+    // The old check value is the password encrypted with its own bytes as the key, the vault key
+    private CryptoContext unlockLegacy(String password) {
+        String stored = properties.getProperty(LEGACY_MASTER_PASSWORD_KEY);
+        if (stored == null || stored.isEmpty() || !MessageDigest.isEqual(
+                AESUtil.encrypt(password, password).getBytes(), stored.getBytes())) {
+            return null;
+        }
+        byte[] vaultKey = CryptoContext.legacyKey(password);
+        passwordVaultKey = true;
+        logger.info("Converting the stored master password to a derived key");
+        try {
+            storeMasterKey(MasterKey.create(password, vaultKey, MasterKey.calibrate(TARGET_MILLIS)));
+        } catch (RuntimeException e) {
+            // The old check value is still stored and the vault key is the same either way
+            problemHandler.accept("Warning", e.getMessage() + ". The conversion is tried again at the next login.");
+        }
+        return new CryptoContext(vaultKey);
+    }
+
+    // Saves the properties with the new key and only then uses it
+    private void storeMasterKey(MasterKey newKey) {
+        Properties updated = new Properties();
+        updated.putAll(properties);
+        updated.remove(LEGACY_MASTER_PASSWORD_KEY);
+        // Measured against the previous key
+        updated.remove(LAST_CALIBRATION_KEY);
+        newKey.store(updated);
+        saveProperties(updated);
+        properties.clear();
+        properties.putAll(updated);
+        masterKey = newKey;
+    }
+
+    /**
+     * Loads the application properties file.
+     * First tries to load from user home directory, then falls back to classpath.
+     */
+    private Properties loadProperties() {
+        Properties properties = new Properties();
+
+        // Try loading from user home directory first
+        File userFile = new File(USER_PROPERTIES_FILE);
+        if (userFile.exists()) {
+            try (FileInputStream fis = new FileInputStream(userFile)) {
+                properties.load(fis);
+                return properties;
+            } catch (IOException e) {
+                problemHandler.accept("Warning", "Failed to load properties from user directory. Falling back to default.");
+            }
+        }
+
+        // Fallback to classpath resource
+        try (InputStream inputStream = getClass().getResourceAsStream(PROPERTIES_FILE)) {
+            if (inputStream != null) {
+                properties.load(inputStream);
+            } else {
+                // If the resource is not found, return empty properties
+                problemHandler.accept("Info", "Properties file not found in classpath. Using default settings.");
+            }
+        } catch (IOException e) {
+            problemHandler.accept("Warning", "Failed to load properties from classpath. Using default settings.");
+        }
+        return properties;
+    }
+
+    /**
+     * Saves the properties to the user home directory: written next to the file, forced to disk and
+     * moved over it, so the file always holds either the old key or the new one.
+     * @throws RuntimeException if the properties cannot be saved
+     */
+    private static void saveProperties(Properties properties) {
+        Path target = Path.of(USER_PROPERTIES_FILE).toAbsolutePath();
+        Path temp = Path.of(target + TEMP_SUFFIX);
+        try {
+            Files.createDirectories(target.getParent());
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                properties.store(Channels.newOutputStream(channel), "Password Manager Properties");
+                channel.force(false);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            logger.error("Error saving the master key: ", e);
+            throw new RuntimeException("Failed to save master password: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.zimenina.yuliya.cli;
+
+import com.zimenina.yuliya.MasterPasswordVerifier;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.CryptoContext;
+import com.zimenina.yuliya.util.MasterKey;
+import com.zimenina.yuliya.util.PasswordHealth;
+import com.zimenina.yuliya.util.SearchIndex;
+import com.zimenina.yuliya.util.VaultLog;
+import com.zimenina.yuliya.util.VaultTransfer;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line access to the vault for scripts, without starting JavaFX.
+ * Nothing on this path may refer to a JavaFX class, so the toolkit is never loaded and the
+ * command finishes in a fraction of the time the login window takes to appear.
+ * The master password is taken from the environment variable {@code PM_MASTER_PASSWORD},
+ * otherwise it is asked on the console, or read as the first line of standard input.
+ * Logging goes to standard error at WARN level (see {@link CliLogConfigurator}) and metrics are
+ * not published over JMX; both would otherwise take most of the start-up time.
+ */
+public final class Cli {
+    private static final String DEFAULT_VAULT = "data.json";
+    private static final String PASSWORD_VARIABLE = "PM_MASTER_PASSWORD";
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_FAILED = 1;
+    private static final int EXIT_USAGE = 2;
+    private static final int EXIT_DENIED = 3;
+    private static final String USAGE = """
+            Usage: Cli [--vault FILE] COMMAND [ARGS]
+              list                     print service and username of every entry
+              search QUERY             entries whose service or username contains QUERY
+              get SERVICE [USERNAME]   print the password of one entry
+              import FILE              add the entries of a CSV or JSON file, skipping duplicates
+              export FILE              write all entries, with passwords, to a CSV or JSON file
+              health                   entries with a weak, reused or duplicate password or login;
+                                       exits with 1 if there are any
+              rekey                    encrypt the vault with a new random key; other vaults
+                                       opened with the same master password must be exported first
+            The master password is read from PM_MASTER_PASSWORD, the console or standard input.""";
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private Cli(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        // Must be set before the first logger and the first metric are created
+        System.setProperty(CliLogConfigurator.ACTIVE_PROPERTY, "true");
+        if (System.getProperty("pm.metrics.jmx") == null) {
+            System.setProperty("pm.metrics.jmx", "false");
+        }
+        System.exit(new Cli(System.out, System.err).run(args));
+    }
+
+    private int run(String[] args) {
+        String vault = DEFAULT_VAULT;
+        int next = 0;
+        if (args.length >= 2 && args[0].equals("--vault")) {
+            vault = args[1];
+            next = 2;
+        }
+        if (next >= args.length) {
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        String command = args[next];
+        List<String> arguments = List.of(args).subList(next + 1, args.length);
+        if (!isValid(command, arguments.size())) {
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        MasterPasswordVerifier verifier = new MasterPasswordVerifier((title, message) -> {
+            if (!title.equals("Info")) {
+                err.println(title + ": " + message);
+            }
+        });
+        if (!verifier.isMasterPasswordSet()) {
+            err.println("No master password is set. Start the application once to create one.");
+            return EXIT_DENIED;
+        }
+        String password = readMasterPassword();
+        CryptoContext session = password != null ? verifier.unlock(password) : null;
+        if (session == null) {
+            err.println("Incorrect master password.");
+            return EXIT_DENIED;
+        }
+        AESUtil.setContext(session);
+        if (verifier.hasPasswordVaultKey() && !command.equals("rekey")) {
+            err.println("Warning: the vault is encrypted with a key made from the master password alone, "
+                    + "which makes it easier to guess. Run rekey, or log in to the application once.");
+        }
+
+        VaultLog vaultLog = VaultLog.open(vault);
+        try {
+            List<PasswordEntry> entries = vaultLog.load();
+            return switch (command) {
+                case "list" -> list(entries);
+                case "search" -> search(entries, arguments.get(0));
+                case "get" -> get(entries, arguments.get(0), arguments.size() > 1 ? arguments.get(1) : null);
+                case "import" -> importEntries(vaultLog, Path.of(arguments.get(0)));
+                case "rekey" -> rekey(verifier, password, vaultLog);
+                case "health" -> health(entries);
+                default -> exportEntries(entries, Path.of(arguments.get(0)));
+            };
+        } catch (RuntimeException e) {
+            // The wrapped cause says what went wrong, e.g. which file could not be read
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            err.println("Error: " + (cause.getMessage() != null ? cause.getMessage() : cause));
+            return EXIT_FAILED;
+        } finally {
+            vaultLog.close();
+        }
+    }
+
+    private static boolean isValid(String command, int argumentCount) {
+        return switch (command) {
+            case "list", "rekey", "health" -> argumentCount == 0;
+            case "search", "import", "export" -> argumentCount == 1;
+            case "get" -> argumentCount == 1 || argumentCount == 2;
+            default -> false;
+        };
+    }
+
+    private String readMasterPassword() {
+        String password = System.getenv(PASSWORD_VARIABLE);
+        if (password != null) {
+            return password;
+        }
+        Console console = System.console();
+        if (console != null) {
+            char[] chars = console.readPassword("Master password: ");
+            return chars != null ? new String(chars) : null;
+        }
+        try {
+            return new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private int list(List<PasswordEntry> entries) {
+        for (PasswordEntry entry : entries) {
+            printEntry(entry);
+        }
+        return EXIT_OK;
+    }
+
+    private int search(List<PasswordEntry> entries, String query) {
+        boolean found = false;
+        for (PasswordEntry entry : entries) {
+            if (SearchIndex.matches(entry, query)) {
+                printEntry(entry);
+                found = true;
+            }
+        }
+        return found ? EXIT_OK : EXIT_FAILED;
+    }
+
+    private int get(List<PasswordEntry> entries, String service, String username) {
+        List<PasswordEntry> matches = new ArrayList<>();
+        for (PasswordEntry entry : entries) {
+            if (service.equalsIgnoreCase(entry.getService())
+                    && (username == null || username.equals(entry.getUsername()))) {
+                matches.add(entry);
+            }
+        }
+        if (matches.isEmpty()) {
+            err.println("No entry found.");
+            return EXIT_FAILED;
+        }
+        if (matches.size() > 1) {
+            err.println("Several entries match, give the username as well:");
+            for (PasswordEntry entry : matches) {
+                err.println("  " + entry.getUsername());
+            }
+            return EXIT_FAILED;
+        }
+        out.println(matches.get(0).getPassword());
+        return EXIT_OK;
+    }
+
+    private int health(List<PasswordEntry> entries) {
+        PasswordHealth health = new PasswordHealth();
+        health.addAll(entries);
+        health.analyzePending();
+        for (PasswordEntry entry : entries) {
+            PasswordHealth.Report report = health.report(entry);
+            if (report.isHealthy()) {
+                continue;
+            }
+            List<String> problems = new ArrayList<>();
+            if (report.strength().isWeak()) {
+                problems.add(report.strength() == PasswordHealth.Strength.VERY_WEAK ? "very weak" : "weak");
+            }
+            if (report.isReused()) {
+                problems.add("reused " + report.uses() + " times");
+            }
+            if (report.isDuplicate()) {
+                problems.add("duplicate login");
+            }
+            out.println(entry.getService() + "\t" + entry.getUsername() + "\t" + String.join(", ", problems));
+        }
+        PasswordHealth.Summary summary = health.summary();
+        err.println(summary.entries() + " entries: " + summary.weak() + " weak, " + summary.reused()
+                + " sharing " + summary.reuseGroups() + " passwords, " + summary.duplicates() + " duplicate logins.");
+        return summary.weak() + summary.reused() + summary.duplicates() == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    private int importEntries(VaultLog vaultLog, Path file) {
+        VaultTransfer.ImportResult result = VaultTransfer.importFile(vaultLog, file);
+        for (String problem : result.problems()) {
+            err.println(problem);
+        }
+        err.println("Imported " + result.added() + " entries, skipped " + result.duplicates()
+                + " duplicates and " + result.rejected() + " invalid rows.");
+        return EXIT_OK;
+    }
+
+    private int exportEntries(List<PasswordEntry> entries, Path file) {
+        int count = VaultTransfer.exportFile(entries, file);
+        err.println("Exported " + count + " entries.");
+        return EXIT_OK;
+    }
+
+    // See VaultLog#rekey for how an interruption leaves the vault
+    private int rekey(MasterPasswordVerifier verifier, String password, VaultLog vaultLog) {
+        byte[] vaultKey = MasterKey.newVaultKey();
+        int count = vaultLog.rekey(vaultKey, () -> verifier.setVaultKey(password, vaultKey));
+        err.println("Encrypted " + count + " entries with a new key.");
+        return EXIT_OK;
+    }
+
+    private void printEntry(PasswordEntry entry) {
+        out.println(entry.getService() + "\t" + entry.getUsername());
+    }
+}
@@ -0,0 +1,147 @@
+package com.zimenina.yuliya.controller;
+
+import javafx.animation.PauseTransition;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.concurrent.Task;
+import javafx.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Saves the vault in the background after edits.
+ * Every change restarts a short quiet period; when it ends, the save runs on a single saver
+ * thread, so a burst of edits becomes one write and the JavaFX Application Thread never
+ * serializes, encrypts or writes anything. The changes themselves are snapshotted when they
+ * are recorded (see {@link com.zimenina.yuliya.util.VaultLog#recordPut}).
+ * A newer save cancels a queued one, or a running one that has not started writing yet,
+ * so there is never more than one writer.
+ * All methods must be called on the JavaFX Application Thread.
+ */
+public class AutoSaveScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(AutoSaveScheduler.class);
+    // Quiet period after the last change, in milliseconds
+    private static final long QUIET_PERIOD_MILLIS = Long.getLong("pm.autosave.delay", 1500);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private final Runnable writer;
+    private final PauseTransition quietPeriod = new PauseTransition(Duration.millis(QUIET_PERIOD_MILLIS));
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "vault-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ReadOnlyStringWrapper status = new ReadOnlyStringWrapper("");
+    private final ReadOnlyBooleanWrapper saving = new ReadOnlyBooleanWrapper(false);
+    private Task<Void> current;
+
+    /**
+     * @param writer writes the pending changes; called on the saver thread
+     */
+    public AutoSaveScheduler(Runnable writer) {
+        this.writer = writer;
+        quietPeriod.setOnFinished(event -> submit());
+    }
+
+    /**
+     * Schedules a save once no further change arrives within the quiet period.
+     */
+    public void requestSave() {
+        status.set("Unsaved changes");
+        quietPeriod.playFromStart();
+    }
+
+    /**
+     * Starts a save right away, e.g. when the user presses Save.
+     */
+    public void saveNow() {
+        quietPeriod.stop();
+        submit();
+    }
+
+    /**
+     * Writes the remaining changes, waiting for at most the given time, and stops the saver thread.
+     */
+    public void shutdown(long timeoutSeconds) {
+        quietPeriod.stop();
+        if (current != null) {
+            current.cancel(false);
+        }
+        try {
+            executor.submit(writer).get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.error("Error saving data: ", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Status text for the UI, e.g. "Saved at 12:30:15".
+     */
+    public ReadOnlyStringProperty statusProperty() {
+        return status.getReadOnlyProperty();
+    }
+
+    /**
+     * True while a save is running.
+     */
+    public ReadOnlyBooleanProperty savingProperty() {
+        return saving.getReadOnlyProperty();
+    }
+
+    private void submit() {
+        if (current != null) {
+            // Never interrupt: an interrupt closes the FileChannel in the middle of a write
+            current.cancel(false);
+        }
+        Task<Void> task = new Task<>() {
+            @Override
+            protected Void call() {
+                // Cancellation is cooperative and only possible until the write starts
+                if (isCancelled()) {
+                    return null;
+                }
+                writer.run();
+                return null;
+            }
+        };
+        task.setOnRunning(event -> {
+            status.set("Saving...");
+            saving.set(true);
+        });
+        task.setOnSucceeded(event -> {
+            if (task == current) {
+                status.set("Saved at " + LocalTime.now().format(TIME_FORMAT));
+                saving.set(false);
+            }
+            logger.info("Data saved.");
+        });
+        task.setOnFailed(event -> {
+            logger.error("Error saving data: ", task.getException());
+            if (task == current) {
+                status.set("Save failed, changes are kept and retried with the next save");
+                saving.set(false);
+            }
+        });
+        task.setOnCancelled(event -> {
+            if (task == current) {
+                saving.set(false);
+            }
+        });
+        current = task;
+        executor.execute(task);
+    }
+}
@@ -1,89 +1,136 @@
 package com.zimenina.yuliya.controller;
 
+import com.zimenina.yuliya.daemon.CredentialDaemon;
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
 import com.zimenina.yuliya.model.PasswordEntry;
-import com.zimenina.yuliya.util.Storage;
+import com.zimenina.yuliya.util.PasswordGenerator;
+import com.zimenina.yuliya.util.PasswordHealth;
+import com.zimenina.yuliya.util.SearchIndex;
+import com.zimenina.yuliya.util.VaultLog;
+import com.zimenina.yuliya.util.VaultRepository;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableSet;
 import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
+import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
-import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.layout.HBox;
-import javafx.scene.layout.Priority;
-import javafx.scene.layout.Region;
 import javafx.scene.layout.StackPane;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * MainController is responsible for handling the main application logic,
  * including adding, editing, deleting, and saving password entries.
  */
 public class MainController {
-    private static final String FILE_NAME = "data.json";
+    /** The vault file, in the working directory. */
+    public static final String FILE_NAME = "data.json";
     private static final Logger logger = LoggerFactory.getLogger(MainController.class);
+    // Entries handed to the table at a time while the vault loads
+    private static final int LOAD_BATCH_SIZE = 1000;
+    // A search shows the best matches only, ranked within about one frame
+    private static final int SEARCH_RESULTS = 200;
+    private static final long SEARCH_BUDGET_NANOS = 16_000_000;
+    private static final Timer FIRST_ROW_TIMER = Metrics.timer("ui.load.firstRow");
+    private static final Timer FULLY_LOADED_TIMER = Metrics.timer("ui.load.total");
 
     // FXML components
     @FXML private TableView<PasswordEntry> tableView;
     @FXML private TableColumn<PasswordEntry, String> serviceColumn;
     @FXML private TableColumn<PasswordEntry, String> usernameColumn;
     @FXML private TableColumn<PasswordEntry, String> passwordColumn;
+    @FXML private TableColumn<PasswordEntry, String> healthColumn;
     @FXML private TextField serviceField;
     @FXML private TextField usernameField;
     @FXML private PasswordField passwordField;
     @FXML private Button togglePasswordButton;
+    @FXML private Button generatePasswordButton;
     @FXML private TextField searchField;
+    @FXML private Label statusLabel;
+    @FXML private ProgressIndicator saveProgress;
+    @FXML private HBox actionBar;
 
     private TextField visiblePasswordField;
     private boolean passwordVisible = false;
+    // Generates passwords for the form, set up by the pm.generator.* properties
+    private final PasswordGenerator passwordGenerator = PasswordGenerator.configured();
+
+    // Vault persistence and the entry currently loaded into the form by onEdit
+    private VaultLog vaultLog;
+    private PasswordEntry editingEntry;
+    private AutoSaveScheduler autoSave;
+    // Serves lookups to local tools when pm.daemon.socket is set, otherwise null
+    private CredentialDaemon daemon;
 
-    // Observable list to hold password entries
-    private final ObservableList<PasswordEntry> passwordList = FXCollections.observableArrayList();
+    // The entries keyed by service and username, and the table's view of them
+    private final VaultRepository repository = new VaultRepository();
+    private final ObservableVaultList passwordList = ObservableVaultList.of(repository);
     private FilteredList<PasswordEntry> filteredList;
+    private SortedList<PasswordEntry> sortedList;
+    private boolean firstRowShown;
+    // Rows whose password is shown in clear text in the table
+    private final ObservableSet<PasswordEntry> revealedPasswords =
+            FXCollections.observableSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    // Trigram index over service and username, kept in sync with passwordList, and the ranking
+    // running for the search text
+    private final SearchIndex searchIndex = new SearchIndex();
+    private Task<SearchIndex.Ranking> searchTask;
+    // Password health of the entries in passwordList; analyzed in the background once the vault is
+    // loaded, then again for the entries added or changed since each run
+    private final PasswordHealth health = new PasswordHealth();
+    // The health cell text of every row shown so far, updated when the row's report changes
+    private final Map<PasswordEntry, ReadOnlyStringWrapper> healthTexts = new IdentityHashMap<>();
+    private boolean healthStarted;
+    private boolean healthRunning;
+    private boolean healthOutdated;
 
     /**
      * Initializes the controller and sets up the table columns.
      */
     @FXML
     public void initialize() {
-        serviceColumn.setCellValueFactory(new PropertyValueFactory<>("service"));
-        usernameColumn.setCellValueFactory(new PropertyValueFactory<>("username"));
-        passwordColumn.setCellValueFactory(new PropertyValueFactory<>("displayedPassword"));
-
-        passwordColumn.setCellFactory(col -> new TableCell<PasswordEntry, String>() {
-            private final Button toggleButton = new Button("👁");
+        // The repository replaces an entry when it changes, so plain values are enough here
+        serviceColumn.setCellValueFactory(cell -> new ReadOnlyStringWrapper(cell.getValue().getService()));
+        usernameColumn.setCellValueFactory(cell -> new ReadOnlyStringWrapper(cell.getValue().getUsername()));
+        // Password cells take their entry from the row and keep their nodes (see PasswordCell)
+        passwordColumn.setCellFactory(col -> PasswordCell.create(revealedPasswords));
+        healthColumn.setCellValueFactory(cell -> healthText(cell.getValue()));
 
-            @Override
-            protected void updateItem(String item, boolean empty) {
-                super.updateItem(item, empty);
-                if (empty || getTableRow() == null || getTableRow().getItem() == null) {
-                    setText(null);
-                    setGraphic(null);
-                } else {
-                    PasswordEntry entry = getTableRow().getItem();
-                    setText(null);
-
-                    toggleButton.setText(entry.isPasswordVisible() ? "🙈" : "👁");
-                    toggleButton.setOnAction(event -> {
-                        entry.setPasswordVisible(!entry.isPasswordVisible());
-                        getTableView().refresh();
-                    });
-
-                    Label passwordLabel = new Label(item != null ? item : "");
-                    Region spacer = new Region();
-                    HBox.setHgrow(spacer, Priority.ALWAYS);
-
-                    HBox hbox = new HBox(5);
-                    hbox.getChildren().addAll(passwordLabel, spacer, toggleButton);
-                    setGraphic(hbox);
-                }
+        passwordList.addListener((ListChangeListener<PasswordEntry>) change -> {
+            while (change.next()) {
+                change.getRemoved().forEach(searchIndex::remove);
+                change.getRemoved().forEach(revealedPasswords::remove);
+                change.getAddedSubList().forEach(searchIndex::add);
+                change.getRemoved().forEach(health::remove);
+                change.getRemoved().forEach(healthTexts::remove);
+                health.addAll(change.getAddedSubList());
+            }
+            if (healthStarted) {
+                analyzeHealth();
+            }
+            // Added and changed entries must be ranked too, also while the vault is loading
+            if (!searchField.getText().isBlank()) {
+                onSearch();
             }
         });
-
-        loadData();
+        vaultLog = VaultLog.open(FILE_NAME);
         filteredList = new FilteredList<>(passwordList, p -> true);
-        tableView.setItems(filteredList);
-        logger.info("Initialization complete. Records loaded:{}", passwordList.size());
+        sortedList = new SortedList<>(filteredList);
+        tableView.setItems(sortedList);
+        searchField.textProperty().addListener((observable, oldText, newText) -> onSearch());
 
         visiblePasswordField = new TextField();
         visiblePasswordField.setPromptText("Password");
@@ -93,20 +140,162 @@ public class MainController {
 
         StackPane parent = (StackPane) passwordField.getParent();
         parent.getChildren().add(visiblePasswordField);
+        generatePasswordButton.setTooltip(new Tooltip(String.format("Generate a password with at least %d bits of entropy",
+                Math.round(passwordGenerator.entropyBits()))));
     }
 
-    // Load data from the JSON file
-    private void loadData() {
+    /**
+     * Reads what loading the vault needs no key for, see {@link VaultLog#prefetch()}.
+     * May run on any thread, before {@link #open()}. A failure only means the vault is read later.
+     */
+    public void prefetch() {
         try {
-            passwordList.setAll(Storage.load(FILE_NAME));
-            logger.info("Data successfully loaded from data.json. Number of records: {}", passwordList.size());
-        } catch (Exception e) {
-            logger.error("Error loading data: ", e);
+            vaultLog.prefetch();
+        } catch (RuntimeException e) {
+            logger.warn("Vault prefetch failed, reading it after the login: ", e);
+        }
+    }
+
+    /**
+     * Starts loading the vault, once the session key is set. Until then the window shows nothing;
+     * the view is built by {@link #initialize()}, which needs no key, so the window can be loaded
+     * while the user is still logging in.
+     */
+    public void open() {
+        autoSave = new AutoSaveScheduler(() -> vaultLog.flush());
+        daemon = CredentialDaemon.startIfConfigured(vaultLog);
+        loadData();
+        logger.info("Initialization complete. Loading records in the background");
+    }
+
+    // Load data from the vault snapshot and its change log on a background thread.
+    // Rows are added to the repository in batches, so the table and the search work while the rest
+    // is still loading; changes are blocked until the vault is fully loaded.
+    private void loadData() {
+        long start = System.nanoTime();
+        actionBar.setDisable(true);
+        saveProgress.setVisible(true);
+        statusLabel.setText("Loading...");
+        Task<Void> loadTask = new Task<>() {
+            @Override
+            protected Void call() {
+                vaultLog.load(LOAD_BATCH_SIZE, batch -> {
+                    repository.addLoaded(batch);
+                    Platform.runLater(() -> batchLoaded(start));
+                });
+                return null;
+            }
+        };
+        loadTask.setOnSucceeded(event -> {
+            FULLY_LOADED_TIMER.recordSince(start);
+            logger.info("Data successfully loaded from data.json. Number of records: {}, fully loaded in {} ms",
+                    passwordList.size(), (System.nanoTime() - start) / 1_000_000);
+            actionBar.setDisable(false);
+            statusLabel.textProperty().bind(autoSave.statusProperty());
+            saveProgress.visibleProperty().bind(autoSave.savingProperty());
+            analyzeHealth();
+        });
+        loadTask.setOnFailed(event -> {
+            logger.error("Error loading data: ", loadTask.getException());
+            saveProgress.setVisible(false);
+            statusLabel.setText("Failed to load data");
             showAlert("Error", "Failed to load data. The data.json file may be corrupted.");
+        });
+        Thread.ofVirtual().name("vault-loader").start(loadTask);
+    }
+
+    // Runs on the JavaFX Application Thread for every batch the loader hands over, after the batch
+    // reached passwordList: the list queued its update before this call
+    private void batchLoaded(long start) {
+        if (!firstRowShown && !passwordList.isEmpty()) {
+            firstRowShown = true;
+            FIRST_ROW_TIMER.recordSince(start);
+            logger.info("Time to first row: {} ms", (System.nanoTime() - start) / 1_000_000);
+        }
+        statusLabel.setText("Loading... " + passwordList.size() + " entries");
+    }
+
+    // Analyze the entries waiting in health on a background thread and show the results. Changes
+    // made during a run are analyzed by one more run after it rather than by a run of their own
+    private void analyzeHealth() {
+        healthStarted = true;
+        if (healthRunning) {
+            healthOutdated = true;
+            return;
         }
+        healthRunning = true;
+        Task<List<PasswordEntry>> healthTask = new Task<>() {
+            @Override
+            protected List<PasswordEntry> call() {
+                List<PasswordEntry> changed = new ArrayList<>();
+                health.analyzePending(changed::add);
+                return changed;
+            }
+        };
+        healthTask.setOnSucceeded(event -> {
+            healthRunning = false;
+            showHealth(healthTask.getValue());
+            if (healthOutdated) {
+                healthOutdated = false;
+                analyzeHealth();
+            }
+        });
+        healthTask.setOnFailed(event -> {
+            healthRunning = false;
+            logger.error("Error analyzing password health: ", healthTask.getException());
+        });
+        Thread.ofVirtual().name("health-analyzer").start(healthTask);
     }
 
-    // Add a new password entry
+    // Sum up the health of the vault in the column header and update the rows whose report changed
+    private void showHealth(List<PasswordEntry> changed) {
+        PasswordHealth.Summary summary = health.summary();
+        List<String> problems = new ArrayList<>();
+        if (summary.weak() > 0) {
+            problems.add(summary.weak() + " weak");
+        }
+        if (summary.reused() > 0) {
+            problems.add(summary.reused() + " reused");
+        }
+        if (summary.duplicates() > 0) {
+            problems.add(summary.duplicates() + " duplicate");
+        }
+        healthColumn.setText(problems.isEmpty() ? "Health" : "Health (" + String.join(", ", problems) + ")");
+        for (PasswordEntry entry : changed) {
+            ReadOnlyStringWrapper text = healthTexts.get(entry);
+            if (text != null) {
+                text.set(describe(health.report(entry)));
+            }
+        }
+    }
+
+    // The observable health text of a row, created when the row is first shown
+    private ReadOnlyStringWrapper healthText(PasswordEntry entry) {
+        return healthTexts.computeIfAbsent(entry, e -> new ReadOnlyStringWrapper(describe(health.report(e))));
+    }
+
+    // The text of a row's health cell
+    private static String describe(PasswordHealth.Report report) {
+        if (report == null) {
+            return "…";
+        }
+        if (report.isHealthy()) {
+            return "OK";
+        }
+        List<String> problems = new ArrayList<>();
+        if (report.strength().isWeak()) {
+            problems.add(report.strength() == PasswordHealth.Strength.VERY_WEAK ? "Very weak" : "Weak");
+        }
+        if (report.isReused()) {
+            problems.add("Reused ×" + report.uses());
+        }
+        if (report.isDuplicate()) {
+            problems.add("Duplicate login");
+        }
+        return String.join(", ", problems);
+    }
+
+    // Add a new password entry, or apply the form to the entry being edited
     @FXML
     private void onAdd() {
         String service = serviceField.getText();
@@ -114,10 +303,26 @@ public class MainController {
         String password = passwordVisible ? visiblePasswordField.getText() : passwordField.getText();
 
         if (!service.isEmpty() && !username.isEmpty() && !password.isEmpty()) {
-            PasswordEntry entry = new PasswordEntry(service, username, password);
-            passwordList.add(entry);
+            if (editingEntry != null) {
+                PasswordEntry entry = repository.update(editingEntry, service, username, password);
+                if (entry == null) {
+                    showAlert("Alert", "An entry for this service and username already exists.");
+                    return;
+                }
+                vaultLog.recordPut(entry);
+                autoSave.requestSave();
+                logger.info("Entry updated: {}", service);
+            } else {
+                PasswordEntry entry = new PasswordEntry(service, username, password);
+                if (!repository.add(entry)) {
+                    showAlert("Alert", "An entry for this service and username already exists.");
+                    return;
+                }
+                vaultLog.recordPut(entry);
+                autoSave.requestSave();
+                logger.info("New entry added: {}", service);
+            }
             clearFields();
-            logger.info("New entry added: {}", service);
         }
     }
 
@@ -126,11 +331,11 @@ public class MainController {
     private void onEdit() {
         PasswordEntry selectedEntry = tableView.getSelectionModel().getSelectedItem();
         if (selectedEntry != null) {
+            editingEntry = selectedEntry;
             serviceField.setText(selectedEntry.getService());
             usernameField.setText(selectedEntry.getUsername());
 
             String realPassword = selectedEntry.getPassword();
-            System.out.println("Real password in onEdit: " + realPassword);
 
             if (passwordVisible) {
                 visiblePasswordField.setText(realPassword);
@@ -150,24 +355,33 @@ public class MainController {
     private void onDelete() {
         PasswordEntry selectedEntry = tableView.getSelectionModel().getSelectedItem();
         if (selectedEntry != null) {
-            passwordList.remove(selectedEntry);
+            repository.remove(selectedEntry);
+            vaultLog.recordDelete(selectedEntry);
+            autoSave.requestSave();
+            if (selectedEntry == editingEntry) {
+                editingEntry = null;
+            }
             logger.info("Entry deleted: {}", selectedEntry.getService());
         } else {
             showAlert("Alert", "Please select a post to delete.");
         }
     }
 
-    // Save the password list to a file
+    // Save the changes made since the last save right away, in the background
     @FXML
     private void onSave() {
-        try {
-            Storage.save(passwordList, FILE_NAME);
-            showAlert("Save", "Data has been successfully saved to the data.json file.");
-            logger.info("Data saved. Number of records: {}", passwordList.size());
-        } catch (Exception e) {
-            logger.error("Error saving data: ", e);
-            showAlert("Error", "Failed to save data.");
+        autoSave.saveNow();
+    }
+
+    /**
+     * Writes the remaining changes and stops the background threads. Called when the window closes.
+     */
+    public void shutdown() {
+        if (daemon != null) {
+            daemon.close();
         }
+        autoSave.shutdown(30);
+        vaultLog.close();
     }
 
     // Toggle password visibility
@@ -199,6 +413,17 @@ public class MainController {
         }
     }
 
+    // Fill the form with a generated password and show it, so the user sees what was chosen
+    @FXML
+    private void onGeneratePassword() {
+        String password = passwordGenerator.generate();
+        passwordField.setText(password);
+        visiblePasswordField.setText(password);
+        passwordVisible = true;
+        updatePasswordFieldVisibility();
+        logger.info("Password generated, {} bits of entropy", Math.round(passwordGenerator.entropyBits()));
+    }
+
     // This method is called when the user types in the password field
     private void updatePasswordFieldVisibility() {
         if (passwordVisible) {
@@ -218,6 +443,7 @@ public class MainController {
 
     // Clear all input fields
     private void clearFields() {
+        editingEntry = null;
         serviceField.clear();
         usernameField.clear();
         passwordField.clear();
@@ -231,17 +457,47 @@ public class MainController {
         logger.info("Fields cleared by user.");
     }
 
-    // Search functionality
-    @FXML
+    // Search as the text changes: rank the entries on a background thread, cancelling the ranking of
+    // the previous text, and show the best matches in order; an empty text shows every entry
     private void onSearch() {
-        String searchText = searchField.getText().toLowerCase();
-        filteredList.setPredicate(entry -> {
-            if (searchText == null || searchText.isEmpty()) {
-                return true;
+        String searchText = searchField.getText();
+        if (searchTask != null) {
+            searchTask.cancel();
+            searchTask = null;
+        }
+        if (searchText.isBlank()) {
+            filteredList.setPredicate(p -> true);
+            sortedList.setComparator(null);
+            return;
+        }
+        Task<SearchIndex.Ranking> task = new Task<>() {
+            @Override
+            protected SearchIndex.Ranking call() {
+                return searchIndex.rank(searchText, SEARCH_RESULTS, SEARCH_BUDGET_NANOS, this::isCancelled);
+            }
+        };
+        // A ranking that finished just before it was replaced still reports success
+        task.setOnSucceeded(event -> {
+            if (searchTask == task) {
+                showRanking(task.getValue());
+                logger.info("Search performed for: {}", searchText);
             }
-            return entry.getService().toLowerCase().contains(searchText);
         });
-        logger.info("Search performed for: {}", searchText);
+        task.setOnFailed(event -> logger.error("Error searching: ", task.getException()));
+        searchTask = task;
+        Thread.ofVirtual().name("search").start(task);
+    }
+
+    private void showRanking(SearchIndex.Ranking ranking) {
+        Map<PasswordEntry, Integer> ranks = new IdentityHashMap<>();
+        for (PasswordEntry entry : ranking.entries()) {
+            ranks.put(entry, ranks.size());
+        }
+        filteredList.setPredicate(ranks::containsKey);
+        sortedList.setComparator(Comparator.comparingInt(ranks::get));
+        if (!ranking.complete()) {
+            logger.debug("Search ran out of time, showing the best matches found so far");
+        }
     }
 
     // Show an alert dialog
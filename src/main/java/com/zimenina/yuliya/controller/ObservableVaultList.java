@@ -0,0 +1,182 @@
+package com.zimenina.yuliya.controller;
+
+import com.zimenina.yuliya.metrics.Histogram;
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.VaultRepository;
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read-only ObservableList view of a {@link VaultRepository} for the table.
+ * Changes made to the repository, on any thread, are queued and applied on the JavaFX Application
+ * Thread in one go, so a burst of them, such as the batches of a loading vault, reaches the table,
+ * its FilteredList and the search index as a single change notification. Many removals and
+ * replacements in one notification are applied in a single pass over the list.
+ * The list must only be read on the JavaFX Application Thread.
+ */
+public class ObservableVaultList extends ObservableListBase<PasswordEntry> implements VaultRepository.Listener {
+    private static final Histogram BATCH_SIZE = Metrics.histogram("ui.list.changesPerNotification");
+    // Up to this many removals and replacements are looked up one by one, more in a single pass
+    private static final int SINGLE_PASS_THRESHOLD = 16;
+
+    private final List<PasswordEntry> items = new ArrayList<>();
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Executor uiExecutor;
+
+    /**
+     * A change waiting to be applied: entries appended, or an entry removed or replaced.
+     */
+    private record Pending(List<PasswordEntry> added, PasswordEntry entry, PasswordEntry replacement) {
+    }
+
+    private ObservableVaultList(Executor uiExecutor) {
+        this.uiExecutor = uiExecutor;
+    }
+
+    /**
+     * Creates a view that is updated on the JavaFX Application Thread.
+     */
+    public static ObservableVaultList of(VaultRepository repository) {
+        return of(repository, Platform::runLater);
+    }
+
+    /**
+     * Creates a view and registers it with the repository, once it is fully constructed.
+     * @param repository the repository to follow
+     * @param uiExecutor runs the updates of the list; the list must only be read on its thread
+     */
+    public static ObservableVaultList of(VaultRepository repository, Executor uiExecutor) {
+        ObservableVaultList list = new ObservableVaultList(uiExecutor);
+        list.items.addAll(repository.addListener(list));
+        return list;
+    }
+
+    @Override
+    public PasswordEntry get(int index) {
+        return items.get(index);
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public void added(List<PasswordEntry> entries) {
+        enqueue(new Pending(entries, null, null));
+    }
+
+    @Override
+    public void removed(PasswordEntry entry) {
+        enqueue(new Pending(null, entry, null));
+    }
+
+    @Override
+    public void replaced(PasswordEntry oldEntry, PasswordEntry newEntry) {
+        enqueue(new Pending(null, oldEntry, newEntry));
+    }
+
+    private void enqueue(Pending pending) {
+        queue.add(pending);
+        if (scheduled.compareAndSet(false, true)) {
+            uiExecutor.execute(this::applyPending);
+        }
+    }
+
+    // Runs on the UI thread. The flag is cleared first, so a change queued meanwhile schedules another run.
+    private void applyPending() {
+        scheduled.set(false);
+        Pending next = queue.poll();
+        if (next == null) {
+            return;
+        }
+        int changes = 0;
+        List<Pending> replacements = new ArrayList<>();
+        beginChange();
+        try {
+            while (next != null) {
+                changes++;
+                if (next.added() != null) {
+                    // Appended entries may be replaced later in the same run, so earlier replacements go first
+                    applyReplacements(replacements);
+                    int from = items.size();
+                    items.addAll(next.added());
+                    nextAdd(from, items.size());
+                } else {
+                    replacements.add(next);
+                }
+                next = queue.poll();
+            }
+            applyReplacements(replacements);
+        } finally {
+            endChange();
+        }
+        BATCH_SIZE.record(changes);
+    }
+
+    private void applyReplacements(List<Pending> pending) {
+        if (pending.size() <= SINGLE_PASS_THRESHOLD) {
+            for (Pending change : pending) {
+                int index = indexOf(change.entry());
+                if (index < 0) {
+                    continue;
+                }
+                if (change.replacement() == null) {
+                    items.remove(index);
+                    nextRemove(index, change.entry());
+                } else {
+                    items.set(index, change.replacement());
+                    nextSet(index, change.entry());
+                }
+            }
+            pending.clear();
+            return;
+        }
+        // Removed entries map to null, replaced ones to their replacement
+        Map<PasswordEntry, PasswordEntry> replacements = new IdentityHashMap<>();
+        for (Pending change : pending) {
+            replacements.put(change.entry(), change.replacement());
+        }
+        int write = 0;
+        for (int read = 0; read < items.size(); read++) {
+            PasswordEntry entry = items.get(read);
+            PasswordEntry current = entry;
+            // An entry replaced twice in one run maps to the last replacement
+            while (current != null && replacements.containsKey(current)) {
+                current = replacements.get(current);
+            }
+            if (current == null) {
+                nextRemove(write, entry);
+                continue;
+            }
+            items.set(write, current);
+            if (current != entry) {
+                nextSet(write, entry);
+            }
+            write++;
+        }
+        items.subList(write, items.size()).clear();
+        pending.clear();
+    }
+
+    // PasswordEntry compares by identity, but the scan should not depend on it
+    private int indexOf(PasswordEntry entry) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i) == entry) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
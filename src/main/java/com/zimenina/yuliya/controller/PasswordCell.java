@@ -0,0 +1,128 @@
+package com.zimenina.yuliya.controller;
+
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
+import com.zimenina.yuliya.model.PasswordEntry;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.WeakChangeListener;
+import javafx.collections.ObservableSet;
+import javafx.collections.SetChangeListener;
+import javafx.collections.WeakSetChangeListener;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableRow;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+
+import java.util.List;
+
+/**
+ * Password column cell: the masked or revealed password and a button that toggles it.
+ * The label, spacer, button and box are created once per cell and only their text changes when
+ * the cell moves to another row, so scrolling allocates no nodes. Which passwords are revealed
+ * is per-row state in an observable set shared by all cells; each cell watches the set for its
+ * own entry, so a toggle re-renders that row alone instead of refreshing the whole table.
+ * The cell reads its entry from the row, so the column needs no cell value factory.
+ */
+public class PasswordCell extends TableCell<PasswordEntry, String> {
+    static final String MASK = "******";
+    static final String SHOW = "👁";
+    static final String HIDE = "🙈";
+    private static final Timer RENDER_TIMER = Metrics.timer("ui.render.passwordCell");
+
+    private final ObservableSet<PasswordEntry> revealed;
+    private final Label passwordLabel = new Label();
+    private final Button toggleButton = new Button(SHOW);
+    private final HBox box;
+    // Held here because the set and the rows only keep weak references to them
+    private final SetChangeListener<PasswordEntry> revealedListener = this::revealedChanged;
+    private final ChangeListener<PasswordEntry> rowItemListener = (observable, oldItem, newItem) -> render();
+    // What the cell shows at the moment, to skip renders that would change nothing
+    private PasswordEntry shownEntry;
+    private boolean shownRevealed;
+
+    private PasswordCell(ObservableSet<PasswordEntry> revealed) {
+        this.revealed = revealed;
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        box = new HBox(5, passwordLabel, spacer, toggleButton);
+    }
+
+    /**
+     * Creates a cell and lets it watch the set and its row, once it is fully constructed.
+     * @param revealed the entries whose password is shown in clear text, compared by identity
+     */
+    public static PasswordCell create(ObservableSet<PasswordEntry> revealed) {
+        PasswordCell cell = new PasswordCell(revealed);
+        cell.listen();
+        return cell;
+    }
+
+    private void listen() {
+        toggleButton.setOnAction(event -> toggle());
+        revealed.addListener(new WeakSetChangeListener<>(revealedListener));
+        // An entry replaced at the same index changes the row's item but not the cell's index
+        WeakChangeListener<PasswordEntry> weakRowItemListener = new WeakChangeListener<>(rowItemListener);
+        tableRowProperty().addListener((observable, oldRow, newRow) -> {
+            if (oldRow != null) {
+                oldRow.itemProperty().removeListener(weakRowItemListener);
+            }
+            if (newRow != null) {
+                newRow.itemProperty().addListener(weakRowItemListener);
+            }
+        });
+    }
+
+    @Override
+    protected void updateItem(String item, boolean empty) {
+        super.updateItem(item, empty);
+        render();
+    }
+
+    private void toggle() {
+        PasswordEntry entry = shownEntry;
+        if (entry != null && !revealed.remove(entry)) {
+            revealed.add(entry);
+        }
+    }
+
+    private void revealedChanged(SetChangeListener.Change<? extends PasswordEntry> change) {
+        PasswordEntry entry = change.wasAdded() ? change.getElementAdded() : change.getElementRemoved();
+        if (entry == shownEntry) {
+            render();
+        }
+    }
+
+    private void render() {
+        long start = System.nanoTime();
+        PasswordEntry entry = isEmpty() ? null : entryAt(getIndex());
+        if (entry == null) {
+            shownEntry = null;
+            setText(null);
+            setGraphic(null);
+        } else {
+            boolean show = revealed.contains(entry);
+            if (entry != shownEntry || show != shownRevealed || getGraphic() != box) {
+                shownEntry = entry;
+                shownRevealed = show;
+                passwordLabel.setText(show ? entry.getPassword() : MASK);
+                toggleButton.setText(show ? HIDE : SHOW);
+                setText(null);
+                setGraphic(box);
+            }
+        }
+        RENDER_TIMER.recordSince(start);
+    }
+
+    // The row's item may not be updated yet when the cell gets its new index
+    private PasswordEntry entryAt(int index) {
+        if (getTableView() == null) {
+            TableRow<PasswordEntry> row = getTableRow();
+            return row != null ? row.getItem() : null;
+        }
+        List<PasswordEntry> items = getTableView().getItems();
+        return index >= 0 && index < items.size() ? items.get(index) : null;
+    }
+}
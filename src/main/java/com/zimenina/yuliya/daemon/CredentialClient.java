@@ -0,0 +1,70 @@
+package com.zimenina.yuliya.daemon;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Looks up credentials from a running {@link CredentialDaemon}.
+ * A client keeps its connection open for any number of lookups; it is not thread-safe.
+ */
+public final class CredentialClient implements AutoCloseable {
+    private final SocketChannel channel;
+    private final BufferedReader in;
+    private final Writer out;
+
+    private CredentialClient(SocketChannel channel) {
+        this.channel = channel;
+        this.in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Connects to the daemon listening on the given socket file.
+     */
+    public static CredentialClient connect(Path socketPath) throws IOException {
+        return new CredentialClient(SocketChannel.open(UnixDomainSocketAddress.of(socketPath)));
+    }
+
+    /**
+     * Returns the password of a service, ignoring case, and username.
+     * @param service the service name
+     * @param username the exact username, or null if the service has a single entry
+     * @return the password, or null if there is no such entry
+     * @throws IOException if several entries match, the vault is still loading or the connection fails
+     */
+    public String get(String service, String username) throws IOException {
+        out.write(CredentialDaemon.GET + "\t" + CredentialDaemon.escape(service)
+                + (username != null ? "\t" + CredentialDaemon.escape(username) : "") + "\n");
+        out.flush();
+        String response = in.readLine();
+        if (response == null) {
+            throw new EOFException("The credential daemon closed the connection");
+        }
+        int tab = response.indexOf('\t');
+        String status = tab >= 0 ? response.substring(0, tab) : response;
+        String value = tab >= 0 ? response.substring(tab + 1) : "";
+        return switch (status) {
+            case CredentialDaemon.OK -> CredentialDaemon.unescape(value);
+            case CredentialDaemon.NOT_FOUND -> null;
+            case CredentialDaemon.AMBIGUOUS -> throw new IOException(
+                    value + " entries match " + service + ", give the username as well");
+            case CredentialDaemon.UNAVAILABLE -> throw new IOException("The vault is still loading");
+            default -> throw new IOException("Unexpected response: " + response);
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,374 @@
+package com.zimenina.yuliya.daemon;
+
+import com.zimenina.yuliya.metrics.Counter;
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.SecretStore;
+import com.zimenina.yuliya.util.VaultLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Serves credential lookups to local tools over a Unix domain socket, so they need neither the
+ * master password nor a full load and decryption of the vault for every lookup.
+ * Started by the application after login when the system property {@code pm.daemon.socket}
+ * names the socket file. The vault is kept decrypted in an immutable {@link CredentialSnapshot},
+ * with the passwords off the heap in a {@link SecretStore}; every connection is served on its own
+ * virtual thread and reads the current snapshot without locking. Changes made in the window reach
+ * the daemon through {@link VaultLog.Listener} and are published as a new snapshot by a single
+ * publisher thread, in the order they were made. Passwords the new snapshot no longer holds are
+ * zeroed right after it is published; a lookup that still finds one in the old snapshot repeats
+ * itself on the new one.
+ * <p>
+ * The protocol is line based UTF-8, one response line per request line, with fields separated
+ * by tabs and tabs, line breaks and backslashes in values escaped as {@code \t}, {@code \n},
+ * {@code \r} and {@code \\}:
+ * <pre>
+ * GET service [username]   OK password | NOT_FOUND | AMBIGUOUS count | UNAVAILABLE
+ * PING                     OK
+ * </pre>
+ * The service is matched ignoring case, the username exactly. UNAVAILABLE means the vault is still
+ * loading; anything else that cannot be parsed is answered with {@code ERROR message}.
+ * Anyone who can connect to the socket can read every password, so the socket file is made
+ * accessible to its owner only; keep it in a directory other users cannot enter as well.
+ */
+public final class CredentialDaemon implements VaultLog.Listener, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CredentialDaemon.class);
+    public static final String SOCKET_PROPERTY = "pm.daemon.socket";
+    static final String GET = "GET";
+    static final String PING = "PING";
+    static final String OK = "OK";
+    static final String NOT_FOUND = "NOT_FOUND";
+    static final String AMBIGUOUS = "AMBIGUOUS";
+    static final String UNAVAILABLE = "UNAVAILABLE";
+    static final String ERROR = "ERROR";
+    private static final Timer LOOKUP_TIMER = Metrics.timer("daemon.lookup");
+    private static final Timer PUBLISH_TIMER = Metrics.timer("daemon.publish");
+    private static final Counter CONNECTIONS = Metrics.counter("daemon.connections");
+
+    private final Path socketPath;
+    private final ServerSocketChannel server;
+    private final VaultLog vault;
+    // Null until the vault is loaded; only the publisher thread replaces it
+    private final AtomicReference<CredentialSnapshot> snapshot = new AtomicReference<>();
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "credential-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+    private final SecretStore secrets = new SecretStore();
+
+    private CredentialDaemon(Path socketPath, ServerSocketChannel server, VaultLog vault) {
+        this.socketPath = socketPath;
+        this.server = server;
+        this.vault = vault;
+    }
+
+    /**
+     * Starts the daemon if the {@code pm.daemon.socket} system property is set.
+     * @param vault the vault to serve; it may still be loading
+     * @return the running daemon, or null if it is not configured or could not be started
+     */
+    public static CredentialDaemon startIfConfigured(VaultLog vault) {
+        String fileName = System.getProperty(SOCKET_PROPERTY);
+        if (fileName == null || fileName.isEmpty()) {
+            return null;
+        }
+        try {
+            return start(Path.of(fileName), vault);
+        } catch (IOException e) {
+            logger.error("Could not start the credential daemon on {}", fileName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Listens on the given socket file and serves the entries of the vault until closed.
+     * A socket file left behind by a daemon that is no longer running is replaced.
+     * @param socketPath the socket file
+     * @param vault the vault to serve; it may still be loading
+     */
+    public static CredentialDaemon start(Path socketPath, VaultLog vault) throws IOException {
+        CredentialDaemon daemon = new CredentialDaemon(socketPath, bind(socketPath), vault);
+        vault.setListener(daemon);
+        Thread.ofVirtual().name("credential-acceptor").start(daemon::accept);
+        logger.info("Credential daemon listening on {}", socketPath);
+        return daemon;
+    }
+
+    /**
+     * @return the socket file the daemon listens on
+     */
+    public Path getSocketPath() {
+        return socketPath;
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and zeroes the decrypted passwords.
+     */
+    @Override
+    public void close() {
+        vault.setListener(null);
+        try {
+            server.close();
+        } catch (IOException e) {
+            logger.warn("Error closing the credential daemon socket", e);
+        }
+        // Interrupting a thread blocked on a channel closes the channel
+        connections.shutdownNow();
+        publisher.shutdownNow();
+        try {
+            // A snapshot being built would otherwise put passwords into the store after the wipe
+            publisher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot.set(null);
+        secrets.wipe();
+        try {
+            Files.deleteIfExists(socketPath);
+        } catch (IOException e) {
+            logger.warn("Could not delete {}", socketPath, e);
+        }
+        logger.info("Credential daemon stopped");
+    }
+
+    @Override
+    public void reset(List<PasswordEntry> entries) {
+        publish(current -> CredentialSnapshot.of(entries, secrets), CredentialSnapshot::credentials);
+    }
+
+    @Override
+    public void put(PasswordEntry entry) {
+        publish(current -> current != null ? current.with(entry, secrets) : null,
+                current -> credentialsOf(current, entry.getId()));
+    }
+
+    @Override
+    public void deleted(long id) {
+        publish(current -> current != null ? current.without(id) : null, current -> credentialsOf(current, id));
+    }
+
+    // Called with the vault's lock held: the snapshot is built on the publisher thread.
+    // The credentials the change drops from the current snapshot are freed once the new one is visible.
+    private void publish(UnaryOperator<CredentialSnapshot> change,
+                         Function<CredentialSnapshot, Collection<CredentialSnapshot.Credential>> dropped) {
+        try {
+            publisher.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    CredentialSnapshot current = snapshot.get();
+                    snapshot.set(change.apply(current));
+                    if (current != null) {
+                        for (CredentialSnapshot.Credential credential : dropped.apply(current)) {
+                            credential.password().free();
+                        }
+                    }
+                    PUBLISH_TIMER.recordSince(start);
+                } catch (RuntimeException e) {
+                    logger.error("Error publishing credentials: ", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+        }
+    }
+
+    private static Collection<CredentialSnapshot.Credential> credentialsOf(CredentialSnapshot snapshot, long id) {
+        CredentialSnapshot.Credential credential = snapshot.get(id);
+        return credential != null ? List.of(credential) : List.of();
+    }
+
+    private static ServerSocketChannel bind(Path socketPath) throws IOException {
+        Path parent = socketPath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        if (Files.exists(socketPath)) {
+            if (Files.isRegularFile(socketPath) || Files.isDirectory(socketPath)) {
+                throw new IOException(socketPath + " exists and is not a socket");
+            }
+            // A socket nobody listens on is left over from a daemon that did not close
+            boolean listening;
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+                listening = true;
+            } catch (ConnectException e) {
+                listening = false;
+            }
+            if (listening) {
+                throw new IOException("A credential daemon is already listening on " + socketPath);
+            }
+            Files.delete(socketPath);
+        }
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            try {
+                Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                logger.warn("Could not restrict access to {}", socketPath);
+            }
+            return server;
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.warn("Error accepting a connection", e);
+                continue;
+            }
+            CONNECTIONS.increment();
+            try {
+                connections.execute(() -> serve(channel));
+            } catch (RejectedExecutionException e) {
+                closeQuietly(channel);
+                return;
+            }
+        }
+    }
+
+    // Runs on the connection's virtual thread. Responses are flushed once no further request is buffered.
+    private void serve(SocketChannel channel) {
+        try (channel;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                     StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                     StandardCharsets.UTF_8))) {
+            String request;
+            while ((request = in.readLine()) != null) {
+                out.write(respond(request));
+                out.write('\n');
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Connection closed: {}", e.toString());
+        }
+    }
+
+    private String respond(String request) {
+        long start = System.nanoTime();
+        String[] fields = request.split("\t", -1);
+        String response;
+        if (fields[0].equals(PING) && fields.length == 1) {
+            response = OK;
+        } else if (!fields[0].equals(GET) || fields.length < 2 || fields.length > 3) {
+            response = ERROR + "\tExpected GET service [username] or PING";
+        } else {
+            response = null;
+            while (response == null) {
+                CredentialSnapshot current = snapshot.get();
+                if (current == null) {
+                    response = UNAVAILABLE;
+                    break;
+                }
+                List<CredentialSnapshot.Credential> matches =
+                        current.find(unescape(fields[1]), fields.length == 3 ? unescape(fields[2]) : null);
+                try {
+                    response = matches.isEmpty() ? NOT_FOUND
+                            : matches.size() > 1 ? AMBIGUOUS + "\t" + matches.size()
+                            : OK + "\t" + escape(matches.get(0).password().get());
+                } catch (IllegalStateException e) {
+                    // Freed after a newer snapshot was published, which the next round reads
+                }
+            }
+        }
+        LOOKUP_TIMER.recordSince(start);
+        return response;
+    }
+
+    static String escape(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = switch (c) {
+                case '\\' -> "\\\\";
+                case '\t' -> "\\t";
+                case '\n' -> "\\n";
+                case '\r' -> "\\r";
+                default -> null;
+            };
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            if (sb != null) {
+                if (replacement != null) {
+                    sb.append(replacement);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb != null ? sb.toString() : value;
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(switch (next) {
+                    case 't' -> '\t';
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    default -> next;
+                });
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Error closing connection: {}", e.toString());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.zimenina.yuliya.daemon;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.SecretStore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable copy of the vault with every password decrypted, as served by {@link CredentialDaemon}.
+ * A change builds a new snapshot and leaves the old one as it was, so any number of threads
+ * can look up credentials in a snapshot without locking while the next one is being built.
+ * The decrypted passwords are kept off the heap in the daemon's {@link SecretStore}; once a newer
+ * snapshot is published, the daemon frees those of credentials it no longer contains.
+ */
+final class CredentialSnapshot {
+    /**
+     * One entry of the vault with a handle to its decrypted password.
+     */
+    record Credential(long id, String service, String username, SecretStore.Secret password) {
+    }
+
+    private final Map<Long, Credential> byId;
+    // Keyed by the service in lower case; most services have a single credential
+    private final Map<String, List<Credential>> byService;
+
+    private CredentialSnapshot(Map<Long, Credential> byId, Map<String, List<Credential>> byService) {
+        this.byId = byId;
+        this.byService = byService;
+    }
+
+    /**
+     * Builds a snapshot of the given entries, decrypting their passwords into the store.
+     */
+    static CredentialSnapshot of(List<PasswordEntry> entries, SecretStore secrets) {
+        Map<Long, Credential> byId = new HashMap<>(entries.size() * 2);
+        Map<String, List<Credential>> byService = new HashMap<>(entries.size() * 2);
+        for (PasswordEntry entry : entries) {
+            Credential credential = credentialOf(entry, secrets);
+            if (credential == null) {
+                continue;
+            }
+            byId.put(credential.id(), credential);
+            byService.computeIfAbsent(key(credential.service()), key -> new ArrayList<>(1)).add(credential);
+        }
+        return new CredentialSnapshot(byId, byService);
+    }
+
+    /**
+     * Returns a snapshot in which the entry is added, or replaces the entry with the same id.
+     */
+    CredentialSnapshot with(PasswordEntry entry, SecretStore secrets) {
+        Credential credential = credentialOf(entry, secrets);
+        if (credential == null) {
+            return this;
+        }
+        Map<Long, Credential> newById = new HashMap<>(byId);
+        Map<String, List<Credential>> newByService = new HashMap<>(byService);
+        Credential old = newById.put(credential.id(), credential);
+        if (old != null) {
+            removeFrom(newByService, old);
+        }
+        List<Credential> bucket = new ArrayList<>(newByService.getOrDefault(key(credential.service()), List.of()));
+        bucket.add(credential);
+        newByService.put(key(credential.service()), bucket);
+        return new CredentialSnapshot(newById, newByService);
+    }
+
+    /**
+     * Returns a snapshot without the entry with the given id.
+     */
+    CredentialSnapshot without(long id) {
+        Credential old = byId.get(id);
+        if (old == null) {
+            return this;
+        }
+        Map<Long, Credential> newById = new HashMap<>(byId);
+        Map<String, List<Credential>> newByService = new HashMap<>(byService);
+        newById.remove(id);
+        removeFrom(newByService, old);
+        return new CredentialSnapshot(newById, newByService);
+    }
+
+    /**
+     * Finds the credentials of a service, ignoring case, and optionally of one username.
+     * @param service the service name
+     * @param username the exact username, or null for all usernames of the service
+     */
+    List<Credential> find(String service, String username) {
+        List<Credential> bucket = byService.getOrDefault(key(service), List.of());
+        if (username == null) {
+            return bucket;
+        }
+        for (Credential credential : bucket) {
+            if (username.equals(credential.username())) {
+                return List.of(credential);
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * @return the credential of the entry with the given id, or null
+     */
+    Credential get(long id) {
+        return byId.get(id);
+    }
+
+    /**
+     * @return all credentials, in no particular order
+     */
+    Collection<Credential> credentials() {
+        return byId.values();
+    }
+
+    /**
+     * @return the number of entries
+     */
+    int size() {
+        return byId.size();
+    }
+
+    // Buckets are shared between snapshots, so they are replaced rather than changed
+    private static void removeFrom(Map<String, List<Credential>> byService, Credential credential) {
+        String key = key(credential.service());
+        List<Credential> bucket = new ArrayList<>(byService.get(key));
+        bucket.removeIf(existing -> existing.id() == credential.id());
+        if (bucket.isEmpty()) {
+            byService.remove(key);
+        } else {
+            byService.put(key, bucket);
+        }
+    }
+
+    // Null if the vault freed the entry's password: it was replaced or removed after this change was
+    // queued, and the change that did it follows
+    private static Credential credentialOf(PasswordEntry entry, SecretStore secrets) {
+        String password;
+        try {
+            password = entry.getPassword();
+        } catch (IllegalStateException e) {
+            return null;
+        }
+        return new Credential(entry.getId(), entry.getService() != null ? entry.getService() : "",
+                entry.getUsername() != null ? entry.getUsername() : "",
+                secrets.put(password != null ? password : ""));
+    }
+
+    private static String key(String service) {
+        return service.toLowerCase(Locale.ROOT);
+    }
+}
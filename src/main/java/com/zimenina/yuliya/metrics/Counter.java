@@ -0,0 +1,29 @@
+package com.zimenina.yuliya.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count, cheap to update from many threads.
+ */
+public class Counter implements CounterMBean {
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Adds one.
+     */
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * Adds the given amount.
+     */
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,8 @@
+package com.zimenina.yuliya.metrics;
+
+/**
+ * JMX view of a {@link Counter}.
+ */
+public interface CounterMBean {
+    long getCount();
+}
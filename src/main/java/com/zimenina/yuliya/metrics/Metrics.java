@@ -0,0 +1,144 @@
+package com.zimenina.yuliya.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Registry of the application's timers, counters and histograms.
+ * Metrics are created once, usually into a static final field of the class that records them,
+ * and registered as MBeans under {@code com.zimenina.yuliya:type=...,name=...} so they can be
+ * watched with JConsole or VisualVM. Setting the system property {@code pm.metrics.dump} to a
+ * file name also writes all values to that file every {@code pm.metrics.dumpInterval} seconds.
+ * Setting {@code pm.metrics.jmx} to {@code false} skips JMX, whose start-up costs short-lived
+ * processes such as the command line about half a second.
+ */
+public final class Metrics {
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+    private static final String DOMAIN = "com.zimenina.yuliya";
+    private static final boolean JMX_ENABLED = Boolean.parseBoolean(System.getProperty("pm.metrics.jmx", "true"));
+    private static final Map<String, Object> metrics = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the timer with the given name, creating it on first use.
+     */
+    public static Timer timer(String name) {
+        return get(name, Timer.class, key -> new Timer());
+    }
+
+    /**
+     * Returns the counter with the given name, creating it on first use.
+     */
+    public static Counter counter(String name) {
+        return get(name, Counter.class, key -> new Counter());
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it on first use.
+     */
+    public static Histogram histogram(String name) {
+        return get(name, Histogram.class, key -> new Histogram());
+    }
+
+    /**
+     * Formats all metrics, one per line, sorted by name.
+     */
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> entry : new TreeMap<>(metrics).entrySet()) {
+            sb.append(entry.getKey()).append(' ');
+            Object metric = entry.getValue();
+            if (metric instanceof Timer timer) {
+                sb.append(String.format(Locale.ROOT, "count=%d total=%.3fms mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                        timer.getCount(), timer.getTotalMillis(), timer.getMeanMillis(),
+                        timer.getP50Millis(), timer.getP99Millis(), timer.getMaxMillis()));
+            } else if (metric instanceof Histogram histogram) {
+                sb.append(String.format(Locale.ROOT, "count=%d mean=%.1f p50=%d p99=%d max=%d",
+                        histogram.getCount(), histogram.getMean(), histogram.getP50(),
+                        histogram.getP99(), histogram.getMax()));
+            } else if (metric instanceof Counter counter) {
+                sb.append("count=").append(counter.getCount());
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts the periodic dump if the {@code pm.metrics.dump} system property is set.
+     */
+    public static synchronized void startDumpIfConfigured() {
+        String fileName = System.getProperty("pm.metrics.dump");
+        if (fileName == null || fileName.isEmpty() || dumper != null) {
+            return;
+        }
+        long interval = Long.getLong("pm.metrics.dumpInterval", 60);
+        Path target = Path.of(fileName);
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(target), interval, interval, TimeUnit.SECONDS);
+        logger.info("Writing metrics to {} every {} s", target, interval);
+    }
+
+    /**
+     * Writes all metrics to the given file, replacing it atomically.
+     */
+    public static void dump(Path target) {
+        Path temp = Path.of(target + ".tmp");
+        try {
+            Files.writeString(temp, "# " + Instant.now() + "\n" + snapshot(), StandardCharsets.UTF_8);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Error writing metrics to {}", target, e);
+        }
+    }
+
+    private static <T> T get(String name, Class<T> type, Function<String, T> factory) {
+        Object metric = metrics.computeIfAbsent(name, key -> register(key, type.getSimpleName(), factory.apply(key)));
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    private static Object register(String name, String type, Object metric) {
+        if (!JMX_ENABLED) {
+            return metric;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(metric, objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Could not register metric {} with JMX", name, e);
+        }
+        return metric;
+    }
+}
@@ -0,0 +1,59 @@
+package com.zimenina.yuliya.metrics;
+
+/**
+ * Measures how long an operation takes. Durations are recorded in nanoseconds:
+ * <pre>
+ * long start = System.nanoTime();
+ * ...
+ * timer.recordSince(start);
+ * </pre>
+ */
+public class Timer implements TimerMBean {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final Histogram histogram = new Histogram();
+
+    /**
+     * Records a duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        histogram.record(nanos);
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()} value.
+     */
+    public void recordSince(long startNanos) {
+        histogram.record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return histogram.getSum() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return histogram.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return histogram.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return histogram.getP50() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return histogram.getP99() / NANOS_PER_MILLI;
+    }
+}
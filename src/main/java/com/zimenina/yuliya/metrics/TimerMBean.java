@@ -0,0 +1,18 @@
+package com.zimenina.yuliya.metrics;
+
+/**
+ * JMX view of a {@link Timer}. Durations are in milliseconds.
+ */
+public interface TimerMBean {
+    long getCount();
+
+    double getTotalMillis();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+}
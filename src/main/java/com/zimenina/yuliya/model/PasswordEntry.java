@@ -2,7 +2,13 @@ package com.zimenina.yuliya.model;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.function.Supplier;
+
 public class PasswordEntry {
+    // Stable identifier used by the vault log to address the entry across saves
+    @JsonProperty("id")
+    private long id;
+
     // Service name for the password entry (e.g., website or application name)
     @JsonProperty("service")
     private String service;
@@ -15,6 +21,9 @@ public class PasswordEntry {
     @JsonProperty("password")
     private String password;
 
+    // Source the password is decrypted from on demand when it is not kept in memory
+    private transient Supplier<String> passwordSource;
+
     // Flag indicating whether the password is visible or masked
     @JsonProperty("isPasswordVisible")
     private boolean isPasswordVisible;
@@ -31,6 +40,16 @@ public class PasswordEntry {
         this.isPasswordVisible = false; // Password is hidden by default
     }
 
+    // Returns the entry identifier (0 until the vault assigns one)
+    public long getId() {
+        return id;
+    }
+
+    // Sets the entry identifier
+    public void setId(long id) {
+        this.id = id;
+    }
+
     // Returns the service name
     public String getService() {
         return service;
@@ -53,17 +72,32 @@ public class PasswordEntry {
 
     // Returns the actual password
     public String getPassword() {
+        if (password == null && passwordSource != null) {
+            return passwordSource.get(); // Decrypted on every call, never cached
+        }
         return password; // Always returns the real password
     }
 
     // Sets the password
     public void setPassword(String password) {
         this.password = password;
+        this.passwordSource = null;
+    }
+
+    // Returns the source of a password that is not kept in memory, or null
+    public Supplier<String> getPasswordSource() {
+        return passwordSource;
+    }
+
+    // Replaces the in-memory password with a source that decrypts it on demand
+    public void setPasswordSource(Supplier<String> passwordSource) {
+        this.password = null;
+        this.passwordSource = passwordSource;
     }
 
     // Returns the password for display (either the actual password or a masked version)
     public String getDisplayedPassword() {
-        return isPasswordVisible ? password : "******"; // For display in a table
+        return isPasswordVisible ? getPassword() : "******"; // For display in a table
     }
 
     // Returns whether the password is visible
@@ -1,36 +1,62 @@
 package com.zimenina.yuliya.util;
 
 import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * AES encryption and decryption utility class.
  * Uses a master password as the encryption key.
+ * The key is derived once per password into a {@link CryptoContext}; the static
+ * methods below are thin wrappers around the session context. They encrypt in the original
+ * format ({@link CryptoContext#legacy()}) and are kept for the files and settings written in it;
+ * vault files and the vault log are encrypted by the context itself, which also has the bulk methods.
  */
 public class AESUtil {
     private static final Logger logger = LoggerFactory.getLogger(AESUtil.class);
-    private static final String ALGORITHM = "AES";
-    private static String masterPassword;
+    private static volatile String masterPassword;
+    private static volatile CryptoContext session;
 
     /**
      * Sets the master password to be used for encryption/decryption.
+     * The session key is derived here, once.
      */
     public static void setMasterPassword(String password) {
+        session = password != null ? CryptoContext.fromPassword(password) : null;
         masterPassword = password;
     }
 
     /**
-     * Generates a 16-byte key from the provided key string.
+     * Sets the crypto context of the session, e.g. with the vault key unwrapped by {@link MasterKey}.
+     * Explicit keys passed to {@link #encrypt(String, String)} are then never mapped to it.
      */
-    private static byte[] generateKey(String key) {
-        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-        byte[] aesKey = new byte[16]; // AES-128 requires a 16-byte key
-        System.arraycopy(keyBytes, 0, aesKey, 0, Math.min(keyBytes.length, aesKey.length));
-        return aesKey;
+    public static void setContext(CryptoContext context) {
+        masterPassword = null;
+        session = context;
+    }
+
+    /**
+     * Returns the crypto context of the current session.
+     * @throws IllegalStateException if the master password has not been set
+     */
+    public static CryptoContext getContext() {
+        CryptoContext context = session;
+        if (context == null) {
+            throw new IllegalStateException("Master password not set");
+        }
+        return context;
+    }
+
+    // Returns the context for an explicit key, reusing the session's when it is the master password.
+    // Other keys are not kept: they are often password candidates being checked, wrong ones included
+    private static CryptoContext contextFor(String key) {
+        if (key.equals(masterPassword)) {
+            CryptoContext context = session;
+            if (context != null) {
+                return context;
+            }
+        }
+        return CryptoContext.fromPassword(key);
     }
 
     /**
@@ -38,13 +64,7 @@ public class AESUtil {
      */
     public static String encrypt(String data, String key) {
         try {
-            SecretKeySpec keySpec = new SecretKeySpec(generateKey(key), ALGORITHM);
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec);
-            byte[] encrypted = cipher.doFinal(data.getBytes());
-            String result = Base64.getEncoder().encodeToString(encrypted);
-            logger.info("Data encrypted successfully");
-            return result;
+            return contextFor(key).legacy().encryptToBase64(data);
         } catch (Exception e) {
             logger.error("Encryption error: ", e);
             throw new RuntimeException("Data encryption error", e);
@@ -56,14 +76,7 @@ public class AESUtil {
      */
     public static String decrypt(String encryptedData, String key) {
         try {
-            SecretKeySpec keySpec = new SecretKeySpec(generateKey(key), ALGORITHM);
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, keySpec);
-            byte[] decoded = Base64.getDecoder().decode(encryptedData);
-            byte[] decrypted = cipher.doFinal(decoded);
-            String result = new String(decrypted);
-            logger.info("Data successfully decrypted");
-            return result;
+            return contextFor(key).legacy().decryptFromBase64(encryptedData);
         } catch (Exception e) {
             logger.error("Decryption error: ", e);
             throw new RuntimeException("Error decrypting data", e);
@@ -74,19 +87,48 @@ public class AESUtil {
      * Encrypts data using the master password as the key.
      */
     public static String encrypt(String data) {
-        if (masterPassword == null) {
-            throw new IllegalStateException("Master password not set");
+        CryptoContext context = getContext().legacy();
+        try {
+            return context.encryptToBase64(data);
+        } catch (Exception e) {
+            logger.error("Encryption error: ", e);
+            throw new RuntimeException("Data encryption error", e);
         }
-        return encrypt(data, masterPassword);
+    }
+
+    /**
+     * Creates a cipher initialized with the master password key.
+     * Used to stream files in the original format.
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     */
+    public static Cipher createCipher(int mode) {
+        return getContext().legacy().newCipher(mode);
+    }
+
+    /**
+     * Encrypts raw bytes with the master password key, without Base64 encoding.
+     */
+    public static byte[] encryptBytes(byte[] data) {
+        return getContext().legacy().encrypt(data);
+    }
+
+    /**
+     * Decrypts raw bytes produced by {@link #encryptBytes(byte[])}.
+     */
+    public static byte[] decryptBytes(byte[] encryptedData) {
+        return getContext().legacy().decrypt(encryptedData);
     }
 
     /**
      * Decrypts data using the master password as the key.
      */
     public static String decrypt(String encryptedData) {
-        if (masterPassword == null) {
-            throw new IllegalStateException("Master password not set");
+        CryptoContext context = getContext().legacy();
+        try {
+            return context.decryptFromBase64(encryptedData);
+        } catch (Exception e) {
+            logger.error("Decryption error: ", e);
+            throw new RuntimeException("Error decrypting data", e);
         }
-        return decrypt(encryptedData, masterPassword);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,415 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Holds the AES key of a session together with ready-to-use ciphers.
+ * Every value is encrypted with AES/GCM under a random 96-bit nonce, which is stored in front of
+ * the ciphertext and its 128-bit tag, so equal values never give equal ciphertexts and a changed
+ * ciphertext fails to decrypt instead of giving garbage. Random nonces are safe for up to 2^32
+ * values per key. A value can be bound to where it is stored by associated data, e.g. the id of its
+ * entry: the tag covers it, so the ciphertext only decrypts with the same associated data. {@link #legacy()} gives the same key in the original format (AES/ECB), which is
+ * only there to read files and settings written before and to write the original export format.
+ * The key is derived once; each thread gets its own encrypt and decrypt {@link Cipher},
+ * which is created on first use and reused for every following call.
+ * The bulk methods spread a list over the fork-join pool, so every worker
+ * thread uses its own cipher and results keep the order of the input.
+ */
+public class CryptoContext {
+    private static final String ALGORITHM = "AES";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    // The transformation the original formats were written with: ECB, as "AES" defaults to
+    private static final String LEGACY_TRANSFORMATION = "AES";
+    public static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    // Values per fork-join task; below this the split overhead outweighs the AES work
+    private static final int BULK_CHUNK_SIZE = 256;
+    private static final Timer ENCRYPT_TIMER = Metrics.timer("crypto.encrypt");
+    private static final Timer DECRYPT_TIMER = Metrics.timer("crypto.decrypt");
+
+    // Nonces are drawn on every encryption, from a generator per thread so the bulk methods do not contend
+    private static final ThreadLocal<SecureRandom> nonces = ThreadLocal.withInitial(CryptoContext::newRandom);
+
+    private final SecretKeySpec keySpec;
+    private final boolean legacy;
+    private final ThreadLocal<Cipher> encryptCipher;
+    private final ThreadLocal<Cipher> decryptCipher;
+    // The same key in the original format; null in a context that is in it already
+    private final CryptoContext legacyContext;
+
+    /**
+     * @param key the raw AES key (16, 24 or 32 bytes)
+     */
+    public CryptoContext(byte[] key) {
+        this(new SecretKeySpec(key, ALGORITHM), false);
+    }
+
+    private CryptoContext(SecretKeySpec spec, boolean legacy) {
+        // The ciphers capture the key only, so the context does not escape before it is constructed
+        this.keySpec = spec;
+        this.legacy = legacy;
+        if (legacy) {
+            this.encryptCipher = ThreadLocal.withInitial(() -> newLegacyCipher(spec, Cipher.ENCRYPT_MODE));
+            this.decryptCipher = ThreadLocal.withInitial(() -> newLegacyCipher(spec, Cipher.DECRYPT_MODE));
+            this.legacyContext = null;
+        } else {
+            this.encryptCipher = ThreadLocal.withInitial(CryptoContext::newGcmCipher);
+            this.decryptCipher = ThreadLocal.withInitial(CryptoContext::newGcmCipher);
+            this.legacyContext = new CryptoContext(spec, true);
+        }
+    }
+
+    /**
+     * Creates a context keyed the way vaults have always been keyed:
+     * the UTF-8 bytes of the password, truncated or zero-padded to 16 bytes.
+     */
+    public static CryptoContext fromPassword(String password) {
+        return new CryptoContext(legacyKey(password));
+    }
+
+    /**
+     * @return the key vaults were encrypted with before the master key was derived with PBKDF2
+     */
+    public static byte[] legacyKey(String password) {
+        byte[] keyBytes = password.getBytes(StandardCharsets.UTF_8);
+        byte[] aesKey = new byte[16]; // AES-128 requires a 16-byte key
+        System.arraycopy(keyBytes, 0, aesKey, 0, Math.min(keyBytes.length, aesKey.length));
+        return aesKey;
+    }
+
+    /**
+     * Returns the same key in the original format, AES/ECB without a nonce, for files and settings
+     * written in it. Equal values give equal ciphertexts there, so nothing new should be written in it
+     * but the original export format.
+     */
+    public CryptoContext legacy() {
+        return legacy ? this : legacyContext;
+    }
+
+    /**
+     * @return true if this context is in the original format, see {@link #legacy()}
+     */
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    /**
+     * @return true if both contexts encrypt with the same key in the same format, so the ciphertext
+     *         of one can be decrypted by the other
+     */
+    public boolean encryptsLike(CryptoContext other) {
+        return other == this || (other != null && other.legacy == legacy
+                && MessageDigest.isEqual(keySpec.getEncoded(), other.keySpec.getEncoded()));
+    }
+
+    /**
+     * Creates a new cipher that is not shared with anyone else.
+     * Needed for stream ciphers (CipherInputStream/CipherOutputStream) that keep state between calls.
+     * In the current format only encryption streams are supported: the cipher gets a fresh nonce, which
+     * the caller writes in front of the ciphertext ({@link Cipher#getIV()}) for {@link #decrypt} to find.
+     * @param mode Cipher.ENCRYPT_MODE, or in the original format also Cipher.DECRYPT_MODE
+     */
+    public Cipher newCipher(int mode) {
+        return newCipher(mode, null);
+    }
+
+    /**
+     * Creates a new encryption cipher like {@link #newCipher(int)} whose ciphertext is bound to the
+     * given associated data, see {@link #decrypt(ByteBuffer, byte[])}.
+     * @param associatedData the associated data, or null for none
+     */
+    public Cipher newCipher(int mode, byte[] associatedData) {
+        if (legacy) {
+            checkNoAssociatedData(associatedData);
+            return newLegacyCipher(keySpec, mode);
+        }
+        if (mode != Cipher.ENCRYPT_MODE) {
+            throw new IllegalArgumentException("Only encryption streams are supported in this format");
+        }
+        Cipher cipher = newGcmCipher();
+        initEncrypt(cipher, associatedData);
+        return cipher;
+    }
+
+    private static Cipher newLegacyCipher(SecretKeySpec keySpec, int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance(LEGACY_TRANSFORMATION);
+            cipher.init(mode, keySpec);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Cipher initialization error", e);
+        }
+    }
+
+    // Created without a key: a GCM cipher is initialized with a new nonce for every value anyway
+    private static Cipher newGcmCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Cipher initialization error", e);
+        }
+    }
+
+    private void initEncrypt(Cipher cipher, byte[] associatedData) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        nonces.get().nextBytes(nonce);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(TAG_BITS, nonce));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Cipher initialization error", e);
+        }
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+    }
+
+    private static void checkNoAssociatedData(byte[] associatedData) {
+        if (associatedData != null) {
+            throw new IllegalArgumentException("The original format has no associated data");
+        }
+    }
+
+    /**
+     * Encrypts raw bytes with the cipher of the current thread.
+     * @return the nonce followed by the ciphertext and its tag, or the bare ciphertext in the original format
+     */
+    public byte[] encrypt(byte[] data) {
+        return encrypt(data, null);
+    }
+
+    /**
+     * Encrypts raw bytes bound to the given associated data, which is authenticated but not stored:
+     * {@link #decrypt(byte[], byte[])} must be given the same.
+     * @param associatedData the associated data, or null for none; the original format has none
+     */
+    public byte[] encrypt(byte[] data, byte[] associatedData) {
+        long start = System.nanoTime();
+        try {
+            Cipher cipher = encryptCipher.get();
+            if (legacy) {
+                checkNoAssociatedData(associatedData);
+                return cipher.doFinal(data);
+            }
+            initEncrypt(cipher, associatedData);
+            byte[] output = new byte[NONCE_LENGTH + cipher.getOutputSize(data.length)];
+            System.arraycopy(cipher.getIV(), 0, output, 0, NONCE_LENGTH);
+            cipher.doFinal(data, 0, data.length, output, NONCE_LENGTH);
+            return output;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Data encryption error", e);
+        } finally {
+            ENCRYPT_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * Decrypts raw bytes produced by {@link #encrypt(byte[])} with the cipher of the current thread.
+     * @throws RuntimeException if the data was encrypted with another key or was changed since
+     */
+    public byte[] decrypt(byte[] encryptedData) {
+        return decrypt(encryptedData, null);
+    }
+
+    /**
+     * Decrypts raw bytes produced by {@link #encrypt(byte[], byte[])}.
+     * @param associatedData the associated data they were encrypted with, or null for none
+     * @throws RuntimeException if the data was encrypted with another key or other associated data,
+     *                          or was changed since
+     */
+    public byte[] decrypt(byte[] encryptedData, byte[] associatedData) {
+        long start = System.nanoTime();
+        try {
+            Cipher cipher = decryptCipher.get();
+            if (legacy) {
+                checkNoAssociatedData(associatedData);
+                return cipher.doFinal(encryptedData);
+            }
+            if (encryptedData.length < NONCE_LENGTH) {
+                throw new GeneralSecurityException("Ciphertext is too short");
+            }
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TAG_BITS, encryptedData, 0, NONCE_LENGTH));
+            if (associatedData != null) {
+                cipher.updateAAD(associatedData);
+            }
+            return cipher.doFinal(encryptedData, NONCE_LENGTH, encryptedData.length - NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error decrypting data", e);
+        } finally {
+            DECRYPT_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * Decrypts the remaining bytes of the buffer into a new buffer, positioned at the end of the plaintext.
+     */
+    public ByteBuffer decrypt(ByteBuffer encryptedData) {
+        return decrypt(encryptedData, null);
+    }
+
+    /**
+     * Decrypts the remaining bytes of the buffer, which were encrypted with the given associated data,
+     * into a new buffer positioned at the end of the plaintext.
+     * @param associatedData the associated data, or null for none
+     */
+    public ByteBuffer decrypt(ByteBuffer encryptedData, byte[] associatedData) {
+        long start = System.nanoTime();
+        try {
+            Cipher cipher = decryptCipher.get();
+            if (legacy) {
+                checkNoAssociatedData(associatedData);
+            } else {
+                if (encryptedData.remaining() < NONCE_LENGTH) {
+                    throw new GeneralSecurityException("Ciphertext is too short");
+                }
+                byte[] nonce = new byte[NONCE_LENGTH];
+                encryptedData.get(nonce);
+                cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TAG_BITS, nonce));
+                if (associatedData != null) {
+                    cipher.updateAAD(associatedData);
+                }
+            }
+            ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(encryptedData.remaining()));
+            cipher.doFinal(encryptedData, output);
+            return output;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error decrypting data", e);
+        } finally {
+            DECRYPT_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * Encrypts a string and returns the ciphertext as Base64.
+     */
+    public String encryptToBase64(String data) {
+        return Base64.getEncoder().encodeToString(encrypt(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Decrypts Base64 ciphertext produced by {@link #encryptToBase64(String)}.
+     */
+    public String decryptFromBase64(String encryptedData) {
+        return new String(decrypt(Base64.getDecoder().decode(encryptedData)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encrypts all values in parallel.
+     * @return the ciphertexts, in the order of the input
+     */
+    public List<byte[]> encryptAll(List<byte[]> data) {
+        return mapAll(data, this::encrypt);
+    }
+
+    /**
+     * Encrypts all values in parallel, each bound to the associated data at the same position.
+     * @return the ciphertexts, in the order of the input
+     */
+    public List<byte[]> encryptAll(List<byte[]> data, List<byte[]> associatedData) {
+        if (data.size() != associatedData.size()) {
+            throw new IllegalArgumentException("Every value needs its associated data");
+        }
+        List<byte[]> values = data instanceof RandomAccess ? data : new ArrayList<>(data);
+        List<byte[]> bound = associatedData instanceof RandomAccess ? associatedData : new ArrayList<>(associatedData);
+        return mapAll(IntStream.range(0, values.size()).boxed().toList(),
+                i -> encrypt(values.get(i), bound.get(i)));
+    }
+
+    /**
+     * Decrypts all values in parallel.
+     * @return the plaintexts, in the order of the input
+     */
+    public List<byte[]> decryptAll(List<byte[]> encryptedData) {
+        return mapAll(encryptedData, this::decrypt);
+    }
+
+    /**
+     * Encrypts all strings in parallel and returns them as Base64.
+     */
+    public List<String> encryptAllToBase64(List<String> data) {
+        return mapAll(data, this::encryptToBase64);
+    }
+
+    /**
+     * Decrypts all Base64 strings in parallel.
+     */
+    public List<String> decryptAllFromBase64(List<String> encryptedData) {
+        return mapAll(encryptedData, this::decryptFromBase64);
+    }
+
+    // DRBG (NIST SP 800-90A) does not share a lock between instances, unlike the platform's default
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    // Applies the function to every element on the common fork-join pool, keeping the input order
+    @SuppressWarnings("unchecked")
+    private static <T, R> List<R> mapAll(List<T> input, Function<T, R> function) {
+        List<T> source = input instanceof RandomAccess ? input : new ArrayList<>(input);
+        Object[] results = new Object[source.size()];
+        MapTask<T, R> task = new MapTask<>(source, results, function, 0, source.size());
+        if (source.size() <= BULK_CHUNK_SIZE) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+        return (List<R>) Arrays.asList(results);
+    }
+
+    /**
+     * Splits an index range in halves until it is small enough to process on one worker.
+     */
+    private static final class MapTask<T, R> extends RecursiveAction {
+        // Tasks are never serialized; ForkJoinTask only happens to be Serializable
+        private static final long serialVersionUID = 1L;
+        private final transient List<T> source;
+        private final transient Object[] results;
+        private final transient Function<T, R> function;
+        private final int from;
+        private final int to;
+
+        private MapTask(List<T> source, Object[] results, Function<T, R> function, int from, int to) {
+            this.source = source;
+            this.results = results;
+            this.function = function;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BULK_CHUNK_SIZE) {
+                for (int i = from; i < to; i++) {
+                    results[i] = function.apply(source.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new MapTask<>(source, results, function, from, middle),
+                    new MapTask<>(source, results, function, middle, to));
+        }
+    }
+}
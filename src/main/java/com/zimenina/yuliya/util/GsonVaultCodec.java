@@ -0,0 +1,74 @@
+package com.zimenina.yuliya.util;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.zimenina.yuliya.model.PasswordEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * {@link VaultCodec} based on Gson: entries are read with reflection, one array element at a time.
+ */
+public class GsonVaultCodec implements VaultCodec {
+    static final String NAME = "gson";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Gson gson = new Gson();
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void write(List<PasswordEntry> entries, OutputStream out) throws IOException {
+        // Not closed, so that the caller's stream stays open
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE));
+        writer.beginArray();
+        for (PasswordEntry entry : entries) {
+            writer.beginObject();
+            writer.name("id").value(entry.getId());
+            writer.name("service").value(entry.getService());
+            writer.name("username").value(entry.getUsername());
+            writer.name("password").value(entry.getPassword());
+            writer.name("isPasswordVisible").value(entry.isPasswordVisible());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    @Override
+    public void read(InputStream in, Consumer<PasswordEntry> consumer) throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE));
+        JsonToken token;
+        try {
+            token = reader.peek();
+        } catch (EOFException e) {
+            // Empty document
+            return;
+        }
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            consumer.accept(gson.fromJson(reader, PasswordEntry.class));
+        }
+        reader.endArray();
+    }
+}
@@ -0,0 +1,86 @@
+package com.zimenina.yuliya.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.zimenina.yuliya.model.PasswordEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * {@link VaultCodec} based on the Jackson streaming API: the fields are read and written by hand
+ * with {@link JsonParser} and {@link JsonGenerator}, without reflection or data binding.
+ */
+public class JacksonVaultCodec implements VaultCodec {
+    static final String NAME = "jackson";
+    private static final JsonFactory factory = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+            .build();
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void write(List<PasswordEntry> entries, OutputStream out) throws IOException {
+        // Closing the generator flushes it but leaves the stream open
+        try (JsonGenerator generator = factory.createGenerator(out)) {
+            generator.writeStartArray();
+            for (PasswordEntry entry : entries) {
+                generator.writeStartObject();
+                generator.writeNumberField("id", entry.getId());
+                generator.writeStringField("service", entry.getService());
+                generator.writeStringField("username", entry.getUsername());
+                generator.writeStringField("password", entry.getPassword());
+                generator.writeBooleanField("isPasswordVisible", entry.isPasswordVisible());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    @Override
+    public void read(InputStream in, Consumer<PasswordEntry> consumer) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            JsonToken token = parser.nextToken();
+            if (token == null || token == JsonToken.VALUE_NULL) {
+                return;
+            }
+            if (token != JsonToken.START_ARRAY) {
+                throw new IOException("Expected a JSON array but found " + token);
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                consumer.accept(readEntry(parser));
+            }
+        }
+    }
+
+    private static PasswordEntry readEntry(JsonParser parser) throws IOException {
+        PasswordEntry entry = new PasswordEntry();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (name) {
+                case "id" -> entry.setId(parser.getLongValue());
+                case "service" -> entry.setService(parser.getText());
+                case "username" -> entry.setUsername(parser.getText());
+                case "password" -> entry.setPassword(parser.getText());
+                case "isPasswordVisible" -> entry.setPasswordVisible(parser.getBooleanValue());
+                default -> parser.skipChildren();
+            }
+        }
+        return entry;
+    }
+}
@@ -1,17 +1,17 @@
 package com.zimenina.yuliya.util;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.zimenina.yuliya.model.PasswordEntry;
 
-import java.io.FileWriter;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 /**
  * Utility class for saving and loading password entries to and from a JSON file.
+ * The JSON is written and parsed by the configured {@link VaultCodec}.
  */
 public class JsonUtils {
     private static final String FILE_NAME = "passwords.json";
@@ -22,9 +22,18 @@ public class JsonUtils {
      * @param entries the list of PasswordEntry objects to save
      */
     public static void saveToJson(List<PasswordEntry> entries) {
-        try (FileWriter writer = new FileWriter(FILE_NAME)) {
-            Gson gson = new Gson();
-            gson.toJson(entries, writer);
+        saveToJson(entries, FILE_NAME);
+    }
+
+    /**
+     * Saves a list of PasswordEntry objects to the given JSON file.
+     *
+     * @param entries the list of PasswordEntry objects to save
+     * @param fileName the name of the file to save to
+     */
+    public static void saveToJson(List<PasswordEntry> entries, String fileName) {
+        try (OutputStream out = new FileOutputStream(fileName)) {
+            VaultCodec.configured().write(entries, out);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -36,10 +45,18 @@ public class JsonUtils {
      * @return the list of PasswordEntry objects, or null if an error occurs
      */
     public static List<PasswordEntry> loadFromJson() {
-        try (FileReader reader = new FileReader(FILE_NAME)) {
-            Gson gson = new Gson();
-            Type listType = new TypeToken<List<PasswordEntry>>(){}.getType();
-            return gson.fromJson(reader, listType);
+        return loadFromJson(FILE_NAME);
+    }
+
+    /**
+     * Loads a list of PasswordEntry objects from the given JSON file.
+     *
+     * @param fileName the name of the file to load from
+     * @return the list of PasswordEntry objects, or null if an error occurs
+     */
+    public static List<PasswordEntry> loadFromJson(String fileName) {
+        try (InputStream in = new FileInputStream(fileName)) {
+            return VaultCodec.configured().read(in);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -0,0 +1,63 @@
+package com.zimenina.yuliya.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * A password whose ciphertext stays in the memory-mapped vault file.
+ * The password is decrypted only when {@link #get()} is called and is not cached.
+ */
+public class MappedSecret implements Supplier<String> {
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+    private final CryptoContext context;
+    private final byte[] associatedData;
+
+    /**
+     * @param buffer the mapped vault file
+     * @param offset position of the ciphertext in the file
+     * @param length length of the ciphertext
+     * @param context the key the ciphertext was written with
+     * @param associatedData the associated data the ciphertext was written with, or null for none
+     */
+    public MappedSecret(ByteBuffer buffer, int offset, int length, CryptoContext context, byte[] associatedData) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.context = context;
+        this.associatedData = associatedData;
+    }
+
+    /**
+     * Decrypts and returns the password.
+     */
+    @Override
+    public String get() {
+        return new String(context.decrypt(ciphertext(), associatedData), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the key the ciphertext was written with.
+     */
+    public CryptoContext getContext() {
+        return context;
+    }
+
+    /**
+     * Returns the associated data the ciphertext was written with, or null for none.
+     */
+    public byte[] getAssociatedData() {
+        return associatedData;
+    }
+
+    /**
+     * Returns a copy of the raw ciphertext, so it can be written to a new file without decrypting it.
+     */
+    public byte[] ciphertext() {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,214 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The vault key, wrapped with a key derived from the master password by PBKDF2.
+ * One derivation gives two values: the key that wraps the vault key, and a check value whose
+ * hash is stored to verify the password. The iteration count is calibrated to the machine, so a
+ * derivation takes a chosen time, e.g. 250 ms; the user pays it once per session, an attacker
+ * guessing passwords pays it for every guess. Because the vault key is only wrapped, the
+ * parameters can change, e.g. on faster hardware, without re-encrypting the vault.
+ * Salt, iteration count, check value and wrapped key are kept in {@code password_manager.properties}.
+ */
+public final class MasterKey {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    // Below this a derivation is too cheap to slow down guessing, whatever the machine
+    public static final int MIN_ITERATIONS = 100_000;
+    private static final int SALT_LENGTH = 16;
+    private static final int VAULT_KEY_LENGTH = 32;
+    // Iterations per calibration run, and how long to keep running them
+    private static final int PROBE_ITERATIONS = 10_000;
+    private static final long PROBE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final String ALGORITHM_KEY = "kdf";
+    private static final String ITERATIONS_KEY = "kdfIterations";
+    private static final String SALT_KEY = "kdfSalt";
+    private static final String VERIFIER_KEY = "kdfVerifier";
+    private static final String WRAPPED_KEY = "wrappedVaultKey";
+    private static final Timer DERIVE_TIMER = Metrics.timer("crypto.kdf.derive");
+    private static final SecureRandom random = new SecureRandom();
+
+    private final byte[] salt;
+    private final int iterations;
+    private final byte[] verifier;
+    private final byte[] wrappedVaultKey;
+    private long lastDerivationNanos;
+
+    private MasterKey(byte[] salt, int iterations, byte[] verifier, byte[] wrappedVaultKey) {
+        this.salt = salt;
+        this.iterations = iterations;
+        this.verifier = verifier;
+        this.wrappedVaultKey = wrappedVaultKey;
+    }
+
+    /**
+     * @return a new random key for a vault
+     */
+    public static byte[] newVaultKey() {
+        byte[] key = new byte[VAULT_KEY_LENGTH];
+        random.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Wraps the vault key with a key derived from the password, using a new salt.
+     * @param vaultKey the raw AES key the vault is encrypted with
+     * @param iterations the PBKDF2 iteration count, e.g. from {@link #calibrate(long)}
+     */
+    public static MasterKey create(String password, byte[] vaultKey, int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        long start = System.nanoTime();
+        byte[] derived = derive(password, salt, iterations);
+        try {
+            Cipher cipher = Cipher.getInstance("AESWrap");
+            cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(expand(derived, "wrap"), "AES"));
+            byte[] wrapped = cipher.wrap(new SecretKeySpec(vaultKey, "AES"));
+            MasterKey masterKey = new MasterKey(salt, iterations, verifierOf(derived), wrapped);
+            masterKey.lastDerivationNanos = System.nanoTime() - start;
+            return masterKey;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Key derivation error", e);
+        } finally {
+            Arrays.fill(derived, (byte) 0);
+        }
+    }
+
+    /**
+     * Reads the parameters stored by {@link #store(Properties)}.
+     * @return the master key, or null if none is stored
+     */
+    public static MasterKey fromProperties(Properties properties) {
+        if (!ALGORITHM.equals(properties.getProperty(ALGORITHM_KEY))) {
+            return null;
+        }
+        Base64.Decoder decoder = Base64.getDecoder();
+        return new MasterKey(decoder.decode(properties.getProperty(SALT_KEY)),
+                Integer.parseInt(properties.getProperty(ITERATIONS_KEY)),
+                decoder.decode(properties.getProperty(VERIFIER_KEY)),
+                decoder.decode(properties.getProperty(WRAPPED_KEY)));
+    }
+
+    /**
+     * Writes the parameters, the check value and the wrapped key into the properties.
+     */
+    public void store(Properties properties) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        properties.setProperty(ALGORITHM_KEY, ALGORITHM);
+        properties.setProperty(ITERATIONS_KEY, Integer.toString(iterations));
+        properties.setProperty(SALT_KEY, encoder.encodeToString(salt));
+        properties.setProperty(VERIFIER_KEY, encoder.encodeToString(verifier));
+        properties.setProperty(WRAPPED_KEY, encoder.encodeToString(wrappedVaultKey));
+    }
+
+    /**
+     * Derives the key from the password and unwraps the vault key with it.
+     * @return the raw vault key, or null if the password is wrong
+     */
+    public byte[] unlock(String password) {
+        long start = System.nanoTime();
+        byte[] derived = derive(password, salt, iterations);
+        lastDerivationNanos = System.nanoTime() - start;
+        try {
+            if (!MessageDigest.isEqual(verifier, verifierOf(derived))) {
+                return null;
+            }
+            Cipher cipher = Cipher.getInstance("AESWrap");
+            cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(expand(derived, "wrap"), "AES"));
+            return cipher.unwrap(wrappedVaultKey, "AES", Cipher.SECRET_KEY).getEncoded();
+        } catch (InvalidKeyException e) {
+            // The check value matched but the wrapped key does not: the properties were tampered with
+            return null;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Key derivation error", e);
+        } finally {
+            Arrays.fill(derived, (byte) 0);
+        }
+    }
+
+    /**
+     * @return the PBKDF2 iteration count
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return how long the last derivation with these parameters took, in nanoseconds
+     */
+    public long getLastDerivationNanos() {
+        return lastDerivationNanos;
+    }
+
+    /**
+     * Measures this machine and returns the iteration count for which one derivation takes
+     * about the target time, but at least {@link #MIN_ITERATIONS}. Takes about 200 ms.
+     * The rate is measured in the JVM as it is, including any warm-up: a login runs in a freshly
+     * started JVM too, where the first derivation is partly interpreted and several times slower
+     * than later ones, and that is the time the user waits for.
+     */
+    public static int calibrate(long targetMillis) {
+        char[] probe = "calibration".toCharArray();
+        byte[] salt = new byte[SALT_LENGTH];
+        long iterations = 0;
+        long elapsed = 0;
+        while (elapsed < PROBE_NANOS) {
+            long start = System.nanoTime();
+            pbkdf2(probe, salt, PROBE_ITERATIONS);
+            elapsed += System.nanoTime() - start;
+            iterations += PROBE_ITERATIONS;
+        }
+        long wanted = iterations * TimeUnit.MILLISECONDS.toNanos(targetMillis) / elapsed;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_ITERATIONS, wanted));
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        long start = System.nanoTime();
+        char[] chars = password.toCharArray();
+        try {
+            return pbkdf2(chars, salt, iterations);
+        } finally {
+            Arrays.fill(chars, '\0');
+            DERIVE_TIMER.recordSince(start);
+        }
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations) {
+        // 256 bits are a single PBKDF2 block; every further block would cost the iterations again
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, 256);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Key derivation error", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // Separate keys for separate purposes out of one derivation, so neither reveals the other
+    private static byte[] expand(byte[] derived, String purpose) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(derived, "HmacSHA256"));
+        return mac.doFinal(purpose.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] verifierOf(byte[] derived) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256").digest(expand(derived, "verify"));
+    }
+}
@@ -0,0 +1,326 @@
+package com.zimenina.yuliya.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Generates random passwords by a policy: either a length and the classes of characters to use, or a
+ * number of words from a word list (a passphrase).
+ * A character password has at least one character of every class: one character per class goes to a
+ * random position and the others are drawn from all classes, so no password is ever thrown away and
+ * drawn again. Random numbers are read in bulk from one {@link SecureRandom} into a buffer that is
+ * wiped after each call. Each random 64-bit value is read as a fraction and yields several indices by
+ * multiplication, like digits, as long as the product of their ranges stays within 2^32: an index
+ * has a bias of at most 2^-32, without the rejection loop of {@link SecureRandom#nextInt(int)} and with
+ * a fraction of the random bytes.
+ * {@link #configured()} builds the generator of the add form from the {@code pm.generator.*} properties.
+ * Thread-safe.
+ */
+public final class PasswordGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(PasswordGenerator.class);
+    // Characters that are easily mistaken for one another when read or typed
+    private static final String AMBIGUOUS = "0O1Il|`'\"";
+    public static final int MAX_LENGTH = 1024;
+    public static final int MAX_WORDS = 64;
+    // Random values read at most and at least at a time: enough for a few hundred passwords, or one
+    private static final int BUFFER_LONGS = 4096;
+    private static final int MIN_READ_LONGS = 16;
+    // The product of the ranges of the indices taken from one random value
+    private static final long FRACTION_ROOM = 1L << 32;
+    private static final int DEFAULT_LENGTH = 20;
+    private static final int DEFAULT_WORDS = 6;
+
+    /**
+     * Classes of characters a password can be made of.
+     */
+    public enum CharacterClass {
+        LOWER("abcdefghijklmnopqrstuvwxyz"),
+        UPPER("ABCDEFGHIJKLMNOPQRSTUVWXYZ"),
+        DIGITS("0123456789"),
+        SYMBOLS("!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~");
+
+        private final String characters;
+
+        CharacterClass(String characters) {
+            this.characters = characters;
+        }
+    }
+
+    private final SecureRandom random = newRandom();
+    // Random values read for the current call, and about how many more it needs after them
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+    private long values;
+    // The random fraction indices are taken from, and the product of ranges it can still serve
+    private long fraction;
+    private long room;
+    // Character policy: all allowed characters and those of each class; null for a passphrase
+    private final char[] alphabet;
+    private final char[][] classes;
+    private final int length;
+    // Positions of a password, shuffled in part for every password to place one character per class
+    private final int[] positions;
+    // Passphrase policy
+    private final String[] words;
+    private final String separator;
+    private final double entropyBits;
+    private final int valuesPerPassword;
+
+    private PasswordGenerator(char[] alphabet, char[][] classes, int length, String[] words, String separator,
+                              double entropyBits) {
+        this.alphabet = alphabet;
+        this.classes = classes;
+        this.length = length;
+        this.positions = new int[length];
+        Arrays.setAll(positions, i -> i);
+        this.words = words;
+        this.separator = separator;
+        this.entropyBits = entropyBits;
+        this.valuesPerPassword = countValues();
+    }
+
+    /**
+     * A generator of passwords of the given length with at least one character of every given class.
+     * @param excludeAmbiguous leave out characters like O and 0 or l, I and 1
+     * @throws IllegalArgumentException if there are no classes or more classes than characters,
+     *                                  or the length is above {@value #MAX_LENGTH}
+     */
+    public static PasswordGenerator characters(int length, Set<CharacterClass> classes, boolean excludeAmbiguous) {
+        if (classes.isEmpty() || length < classes.size() || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("A password needs 1 to " + MAX_LENGTH
+                    + " characters and at least one per character class");
+        }
+        char[][] classCharacters = new char[classes.size()][];
+        StringBuilder alphabet = new StringBuilder();
+        int next = 0;
+        for (CharacterClass characterClass : EnumSet.copyOf(classes)) {
+            StringBuilder characters = new StringBuilder();
+            for (char c : characterClass.characters.toCharArray()) {
+                if (!excludeAmbiguous || AMBIGUOUS.indexOf(c) < 0) {
+                    characters.append(c);
+                }
+            }
+            classCharacters[next++] = characters.toString().toCharArray();
+            alphabet.append(characters);
+        }
+        // Given where the characters of each class went, every password has a single way to be drawn;
+        // not knowing where they went only adds to this
+        double entropy = (length - classCharacters.length) * log2(alphabet.length());
+        for (char[] characters : classCharacters) {
+            entropy += log2(characters.length);
+        }
+        return new PasswordGenerator(alphabet.toString().toCharArray(), classCharacters, length, null, null, entropy);
+    }
+
+    /**
+     * A generator of passphrases of the given number of words from the list, joined by the separator.
+     * @throws IllegalArgumentException if the list has fewer than two different words or the number of
+     *                                  words is not between 1 and {@value #MAX_WORDS}
+     */
+    public static PasswordGenerator passphrase(List<String> words, int wordCount, String separator) {
+        String[] distinct = new LinkedHashSet<>(words).toArray(new String[0]);
+        if (distinct.length < 2 || wordCount < 1 || wordCount > MAX_WORDS) {
+            throw new IllegalArgumentException("A passphrase needs 1 to " + MAX_WORDS
+                    + " words from a list of at least two");
+        }
+        return new PasswordGenerator(null, null, wordCount, distinct, separator, wordCount * log2(distinct.length));
+    }
+
+    /**
+     * Reads a word list with one word per line. Blank lines and lines starting with '#' are skipped;
+     * only the last field of a line is taken, so lists with dice numbers like "11111 abacus" work too.
+     */
+    public static List<String> loadWords(Path file) {
+        try {
+            List<String> words = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String trimmed = line.strip();
+                if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    String[] fields = trimmed.split("\\s+");
+                    words.add(fields[fields.length - 1]);
+                }
+            }
+            return words;
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading data", e);
+        }
+    }
+
+    /**
+     * The generator set up by the properties {@code pm.generator.words} (a word list file, which makes
+     * passphrases), {@code pm.generator.wordCount} and {@code pm.generator.separator}, or otherwise
+     * {@code pm.generator.length}, {@code pm.generator.classes} (e.g. "lower,upper,digits") and
+     * {@code pm.generator.excludeAmbiguous}. Without them: 20 characters of all classes, ambiguous ones
+     * left out. A policy that cannot be used is logged and replaced by the default.
+     */
+    public static PasswordGenerator configured() {
+        try {
+            String wordFile = System.getProperty("pm.generator.words");
+            if (wordFile != null) {
+                return passphrase(loadWords(Path.of(wordFile)),
+                        Integer.getInteger("pm.generator.wordCount", DEFAULT_WORDS),
+                        System.getProperty("pm.generator.separator", "-"));
+            }
+            Set<CharacterClass> classes = EnumSet.noneOf(CharacterClass.class);
+            for (String name : System.getProperty("pm.generator.classes", "lower,upper,digits,symbols").split(",")) {
+                classes.add(CharacterClass.valueOf(name.strip().toUpperCase(Locale.ROOT)));
+            }
+            return characters(Integer.getInteger("pm.generator.length", DEFAULT_LENGTH), classes,
+                    Boolean.parseBoolean(System.getProperty("pm.generator.excludeAmbiguous", "true")));
+        } catch (RuntimeException e) {
+            logger.warn("Invalid password generator settings, using the default: ", e);
+            return characters(DEFAULT_LENGTH, EnumSet.allOf(CharacterClass.class), true);
+        }
+    }
+
+    /**
+     * @return the entropy of a generated password in bits, a lower bound for character passwords
+     */
+    public double entropyBits() {
+        return entropyBits;
+    }
+
+    /**
+     * @return a new password
+     */
+    public synchronized String generate() {
+        values = valuesPerPassword;
+        try {
+            return next();
+        } finally {
+            wipe();
+        }
+    }
+
+    /**
+     * @return the given number of new passwords, e.g. to replace many at once
+     */
+    public synchronized List<String> generate(int count) {
+        List<String> passwords = new ArrayList<>(count);
+        values = (long) count * valuesPerPassword;
+        try {
+            for (int i = 0; i < count; i++) {
+                passwords.add(next());
+            }
+            return passwords;
+        } finally {
+            wipe();
+        }
+    }
+
+    private String next() {
+        if (words != null) {
+            StringBuilder passphrase = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    passphrase.append(separator);
+                }
+                passphrase.append(words[index(words.length)]);
+            }
+            return passphrase.toString();
+        }
+        char[] password = new char[length];
+        for (int i = 0; i < length; i++) {
+            password[i] = alphabet[index(alphabet.length)];
+        }
+        // A partial Fisher-Yates shuffle picks a distinct random position for each class; it starts
+        // from the order the last password left, which is as good as any
+        for (int c = 0; c < classes.length; c++) {
+            int swap = c + index(length - c);
+            int position = positions[swap];
+            positions[swap] = positions[c];
+            positions[c] = position;
+            password[position] = classes[c][index(classes[c].length)];
+        }
+        String result = new String(password);
+        Arrays.fill(password, '\0');
+        return result;
+    }
+
+    // A uniform index below bound: the integer part of the random fraction times the bound, whose
+    // fractional part is left for the next index
+    private int index(int bound) {
+        if (room < bound) {
+            fraction = nextValue();
+            room = FRACTION_ROOM;
+        }
+        int index = (int) Math.unsignedMultiplyHigh(fraction, bound);
+        fraction *= bound;
+        room /= bound;
+        return index;
+    }
+
+    private long nextValue() {
+        if (!buffer.hasRemaining()) {
+            int longs = (int) Math.max(MIN_READ_LONGS, Math.min(values, BUFFER_LONGS));
+            values -= longs;
+            if (buffer.capacity() != longs * Long.BYTES) {
+                buffer = ByteBuffer.allocate(longs * Long.BYTES);
+            }
+            buffer.clear();
+            random.nextBytes(buffer.array());
+        }
+        return buffer.getLong();
+    }
+
+    // The random values one password takes at most, found by going through the ranges of its indices
+    // the way index() does, with one more for what the password before may have left
+    private int countValues() {
+        int count = 1;
+        long left = 0;
+        int draws = words != null ? length : length + 2 * classes.length;
+        for (int i = 0; i < draws; i++) {
+            int bound;
+            if (words != null) {
+                bound = words.length;
+            } else if (i < length) {
+                bound = alphabet.length;
+            } else {
+                int c = (i - length) / 2;
+                bound = (i - length) % 2 == 0 ? length - c : classes[c].length;
+            }
+            if (left < bound) {
+                count++;
+                left = FRACTION_ROOM;
+            }
+            left /= bound;
+        }
+        return count;
+    }
+
+    // Random values left over would tell the next passwords
+    private void wipe() {
+        Arrays.fill(buffer.array(), (byte) 0);
+        buffer.position(buffer.limit());
+        values = 0;
+        fraction = 0;
+        room = 0;
+    }
+
+    // DRBG (NIST SP 800-90A) reads several times faster than the platform's default in bulk
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    private static double log2(int value) {
+        return Math.log(value) / Math.log(2);
+    }
+}
@@ -0,0 +1,382 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
+import com.zimenina.yuliya.model.PasswordEntry;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Password health of the entries of a vault: weak passwords, passwords used for more than one
+ * entry, and entries with the same service and username.
+ * Reuse is found by a keyed hash: every password is hashed with HMAC-SHA256 under a random key that
+ * exists only as long as this object, and entries are grouped by the first 128 bits of the hash.
+ * No password is kept, and the hashes can neither be compared with those of another session nor
+ * looked up in a list of known passwords. Strength is estimated from the length, the kinds of
+ * characters and common patterns, see {@link #strengthOf(String, PasswordEntry)}.
+ * Entries are registered with {@link #add(PasswordEntry)} as they appear, which is cheap, and
+ * analyzed by {@link #analyzePending()}, which decrypts and hashes all waiting entries in parallel;
+ * after the first run only entries added or changed since are waiting. Thread-safe.
+ */
+public class PasswordHealth {
+    // Bits of estimated entropy below which a password falls into the first four classes
+    private static final int[] STRENGTH_BITS = {28, 36, 60, 80};
+    // A password that is one of these, give or take case and a few trailing digits or symbols, is very weak
+    private static final Set<String> COMMON_PASSWORDS = Set.of(
+            "password", "passw0rd", "123456", "12345678", "123456789", "1234567890", "qwerty",
+            "qwertyuiop", "azerty", "abc123", "111111", "000000", "letmein", "welcome", "admin",
+            "administrator", "iloveyou", "monkey", "dragon", "sunshine", "princess", "football",
+            "baseball", "master", "superman", "trustno1", "login", "secret", "changeme", "default");
+    private static final Pattern COMMON_SUFFIX = Pattern.compile("[\\d\\p{Punct}]{0,4}$");
+    private static final Pattern NAME_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    // Service and username parts shorter than this are too common to count when found in a password
+    private static final int MIN_NAME_PART = 4;
+    private static final Timer ANALYZE_TIMER = Metrics.timer("health.analyze");
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Estimated strength of a password, weakest first.
+     */
+    public enum Strength {
+        VERY_WEAK, WEAK, FAIR, STRONG, VERY_STRONG;
+
+        /**
+         * @return true for passwords that should be changed
+         */
+        public boolean isWeak() {
+            return compareTo(WEAK) <= 0;
+        }
+    }
+
+    /**
+     * The health of one entry.
+     * @param strength the estimated strength of its password
+     * @param uses the number of analyzed entries with the same password, this one included
+     * @param logins the number of analyzed entries with the same service and username, this one included
+     */
+    public record Report(Strength strength, int uses, int logins) {
+        public boolean isReused() {
+            return uses > 1;
+        }
+
+        public boolean isDuplicate() {
+            return logins > 1;
+        }
+
+        public boolean isHealthy() {
+            return !strength.isWeak() && !isReused() && !isDuplicate();
+        }
+    }
+
+    /**
+     * Counts over all registered entries.
+     * @param reused entries whose password is used by another entry too
+     * @param reuseGroups passwords used by more than one entry
+     * @param duplicates entries whose service and username another entry has too
+     */
+    public record Summary(int entries, int pending, int weak, int reused, int reuseGroups, int duplicates) {
+    }
+
+    private record Digest(long high, long low) {
+    }
+
+    private record Finding(Digest digest, Strength strength, String login) {
+    }
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+    // Every registered entry; the finding is null until the entry has been analyzed
+    private final Map<PasswordEntry, Finding> findings = new IdentityHashMap<>();
+    // The registered entries not analyzed yet, so that a run after an edit does not scan the whole vault.
+    // Each registration has its own token: a result is kept only if the entry was not registered again
+    // while it was being analyzed
+    private final Map<PasswordEntry, Object> pending = new IdentityHashMap<>();
+    private final Map<Digest, Integer> passwordUses = new HashMap<>();
+    private final Map<String, Integer> loginUses = new HashMap<>();
+    // Passwords and logins whose counts changed since the last run, so the reports of the other
+    // entries that share them changed too
+    private final Set<Digest> changedDigests = new HashSet<>();
+    private final Set<String> changedLogins = new HashSet<>();
+
+    public PasswordHealth() {
+        byte[] keyBytes = new byte[32];
+        random.nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "HmacSHA256");
+        Arrays.fill(keyBytes, (byte) 0);
+    }
+
+    /**
+     * Registers an entry for the next analysis, or re-registers it if it was analyzed before.
+     */
+    public synchronized void add(PasswordEntry entry) {
+        forget(findings.put(entry, null));
+        pending.put(entry, new Object());
+    }
+
+    /**
+     * Registers all entries for the next analysis.
+     */
+    public synchronized void addAll(Collection<? extends PasswordEntry> entries) {
+        for (PasswordEntry entry : entries) {
+            add(entry);
+        }
+    }
+
+    /**
+     * Removes an entry, which no longer counts for reuse and duplicates.
+     */
+    public synchronized void remove(PasswordEntry entry) {
+        forget(findings.remove(entry));
+        pending.remove(entry);
+    }
+
+    /**
+     * Analyzes every registered entry that is waiting, on all cores. Entries added meanwhile wait
+     * for the next run; results for entries removed or re-registered meanwhile are dropped.
+     * @return the number of entries analyzed
+     */
+    public int analyzePending() {
+        return analyzePending(entry -> {
+        });
+    }
+
+    /**
+     * Analyzes every registered entry that is waiting, like {@link #analyzePending()}, and tells
+     * which reports changed: those of the entries analyzed, and those of the entries that share a
+     * password or a login with an entry added, changed or removed since the last run.
+     * @param changed receives each entry whose report changed, once the run is over
+     * @return the number of entries analyzed
+     */
+    public int analyzePending(Consumer<? super PasswordEntry> changed) {
+        long start = System.nanoTime();
+        List<PasswordEntry> waiting;
+        List<Object> tokens;
+        synchronized (this) {
+            waiting = new ArrayList<>(pending.keySet());
+            tokens = new ArrayList<>(pending.values());
+        }
+        List<Finding> analyzed = waiting.parallelStream().map(this::analyze).toList();
+        Set<PasswordEntry> reports = Collections.newSetFromMap(new IdentityHashMap<>());
+        int count = 0;
+        synchronized (this) {
+            Map<Digest, Integer> runDigests = new HashMap<>();
+            Map<String, Integer> runLogins = new HashMap<>();
+            for (int i = 0; i < waiting.size(); i++) {
+                PasswordEntry entry = waiting.get(i);
+                Finding finding = analyzed.get(i);
+                if (finding != null && pending.remove(entry, tokens.get(i))) {
+                    findings.put(entry, finding);
+                    passwordUses.merge(finding.digest(), 1, Integer::sum);
+                    loginUses.merge(finding.login(), 1, Integer::sum);
+                    runDigests.merge(finding.digest(), 1, Integer::sum);
+                    runLogins.merge(finding.login(), 1, Integer::sum);
+                    changedDigests.add(finding.digest());
+                    changedLogins.add(finding.login());
+                    reports.add(entry);
+                    count++;
+                }
+            }
+            addSharing(reports, runDigests, runLogins);
+        }
+        reports.forEach(changed);
+        ANALYZE_TIMER.recordSince(start);
+        return count;
+    }
+
+    /**
+     * @return the health of the entry, or null if it has not been analyzed yet
+     */
+    public synchronized Report report(PasswordEntry entry) {
+        Finding finding = findings.get(entry);
+        if (finding == null) {
+            return null;
+        }
+        return new Report(finding.strength(), passwordUses.get(finding.digest()), loginUses.get(finding.login()));
+    }
+
+    /**
+     * @return the counts over all registered entries
+     */
+    public synchronized Summary summary() {
+        int weak = 0;
+        int reused = 0;
+        int duplicates = 0;
+        for (Finding finding : findings.values()) {
+            if (finding == null) {
+                continue;
+            }
+            if (finding.strength().isWeak()) {
+                weak++;
+            }
+            if (passwordUses.get(finding.digest()) > 1) {
+                reused++;
+            }
+            if (loginUses.get(finding.login()) > 1) {
+                duplicates++;
+            }
+        }
+        int reuseGroups = 0;
+        for (int uses : passwordUses.values()) {
+            if (uses > 1) {
+                reuseGroups++;
+            }
+        }
+        return new Summary(findings.size(), pending.size(), weak, reused, reuseGroups, duplicates);
+    }
+
+    /**
+     * Estimates the strength of a password. Every character counts for the bits of the kinds of
+     * characters the password uses (lower case, upper case, digits, symbols, others), except that
+     * repeating the previous character or continuing a run like "abc" or "321" counts a quarter.
+     * Common passwords are very weak, and passwords containing the entry's service or username
+     * are weak at best.
+     * @param entry the entry the password belongs to, or null
+     */
+    public static Strength strengthOf(String password, PasswordEntry entry) {
+        if (password == null || password.isEmpty()) {
+            return Strength.VERY_WEAK;
+        }
+        String lower = password.toLowerCase(Locale.ROOT);
+        if (COMMON_PASSWORDS.contains(COMMON_SUFFIX.matcher(lower).replaceFirst(""))
+                || COMMON_PASSWORDS.contains(lower)) {
+            return Strength.VERY_WEAK;
+        }
+        boolean hasLower = false;
+        boolean hasUpper = false;
+        boolean hasDigit = false;
+        boolean hasSymbol = false;
+        boolean hasOther = false;
+        double length = 0;
+        int previous = -1;
+        int step = 0;
+        for (int i = 0; i < password.length(); ) {
+            int c = password.codePointAt(i);
+            i += Character.charCount(c);
+            if (c >= 'a' && c <= 'z') {
+                hasLower = true;
+            } else if (c >= 'A' && c <= 'Z') {
+                hasUpper = true;
+            } else if (c >= '0' && c <= '9') {
+                hasDigit = true;
+            } else if (c >= ' ' && c <= '~') {
+                hasSymbol = true;
+            } else {
+                hasOther = true;
+            }
+            int currentStep = previous < 0 ? Integer.MAX_VALUE : c - previous;
+            boolean predictable = currentStep == 0 || (Math.abs(currentStep) == 1 && (step == currentStep || step == 0));
+            length += predictable ? 0.25 : 1;
+            step = Math.abs(currentStep) <= 1 ? currentStep : Integer.MAX_VALUE;
+            previous = c;
+        }
+        int pool = (hasLower ? 26 : 0) + (hasUpper ? 26 : 0) + (hasDigit ? 10 : 0)
+                + (hasSymbol ? 33 : 0) + (hasOther ? 100 : 0);
+        double bits = length * Math.log(pool) / Math.log(2);
+        Strength strength = Strength.VERY_STRONG;
+        for (int i = 0; i < STRENGTH_BITS.length; i++) {
+            if (bits < STRENGTH_BITS[i]) {
+                strength = Strength.values()[i];
+                break;
+            }
+        }
+        if (entry != null && strength.compareTo(Strength.WEAK) > 0
+                && (containsPart(lower, entry.getService()) || containsPart(lower, entry.getUsername()))) {
+            strength = Strength.WEAK;
+        }
+        return strength;
+    }
+
+    // Null if the vault freed the password meanwhile: the entry was replaced or removed, and is
+    // about to be removed here too
+    private Finding analyze(PasswordEntry entry) {
+        String password;
+        try {
+            password = entry.getPassword();
+        } catch (IllegalStateException e) {
+            return null;
+        }
+        byte[] bytes = (password != null ? password : "").getBytes(StandardCharsets.UTF_8);
+        try {
+            ByteBuffer hash = ByteBuffer.wrap(macs.get().doFinal(bytes));
+            Digest digest = new Digest(hash.getLong(), hash.getLong());
+            return new Finding(digest, strengthOf(password, entry), loginOf(entry));
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    private void forget(Finding finding) {
+        if (finding != null) {
+            passwordUses.computeIfPresent(finding.digest(), (digest, uses) -> uses > 1 ? uses - 1 : null);
+            loginUses.computeIfPresent(finding.login(), (login, uses) -> uses > 1 ? uses - 1 : null);
+            changedDigests.add(finding.digest());
+            changedLogins.add(finding.login());
+        }
+    }
+
+    // Adds the analyzed entries whose password or login changed count, other than those of this run.
+    // Most edits touch passwords and logins no other entry has, which needs no scan of the vault
+    private void addSharing(Set<PasswordEntry> reports, Map<Digest, Integer> runDigests, Map<String, Integer> runLogins) {
+        changedDigests.removeIf(digest -> passwordUses.getOrDefault(digest, 0) <= runDigests.getOrDefault(digest, 0));
+        changedLogins.removeIf(login -> loginUses.getOrDefault(login, 0) <= runLogins.getOrDefault(login, 0));
+        if (!changedDigests.isEmpty() || !changedLogins.isEmpty()) {
+            findings.forEach((entry, finding) -> {
+                if (finding != null && (changedDigests.contains(finding.digest()) || changedLogins.contains(finding.login()))) {
+                    reports.add(entry);
+                }
+            });
+        }
+        changedDigests.clear();
+        changedLogins.clear();
+    }
+
+    // Service and username as a user would tell them apart: case and surrounding blanks do not matter
+    private static String loginOf(PasswordEntry entry) {
+        return normalize(entry.getService()) + '\n' + normalize(entry.getUsername());
+    }
+
+    private static String normalize(String value) {
+        return value != null ? value.strip().toLowerCase(Locale.ROOT) : "";
+    }
+
+    // True if the password contains a word of the name, e.g. "github" of "github.com" or "alice" of "alice@mail.org"
+    private static boolean containsPart(String password, String name) {
+        if (name == null) {
+            return false;
+        }
+        for (String part : NAME_SEPARATOR.split(name.toLowerCase(Locale.ROOT))) {
+            if (part.length() >= MIN_NAME_PART && password.contains(part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Password hashing error", e);
+        }
+    }
+}
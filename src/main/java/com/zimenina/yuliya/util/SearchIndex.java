@@ -0,0 +1,792 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.metrics.Histogram;
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
+import com.zimenina.yuliya.model.PasswordEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * In-memory trigram index over the service and username of password entries.
+ * Every lower-cased three-character sequence points to the sorted slots of the entries containing it.
+ * A search intersects the postings of all trigrams of the query, starting with the rarest,
+ * and only checks the remaining entries instead of the whole vault; queries shorter than
+ * three characters fall back to a scan.
+ * {@link #rank} finds the best matches of a query with typos; the trigrams it shares with an entry
+ * decide which entries are scored first, so that a ranking cut short by its time budget has seen the
+ * likeliest ones.
+ * The index is updated entry by entry. It is thread-safe: a ranking on a background thread holds the
+ * lock only to copy the slots and the postings of the query's trigrams, and scores that copy, so
+ * updates of the index never wait for its budget. Postings only ever grow in place or are replaced,
+ * which makes a copy of one no more than its array and size.
+ */
+public class SearchIndex {
+    private static final int MIN_QUERY_LENGTH = 3;
+    // matcher() filters by scanning when more than 1/SCAN_RATIO of the entries are candidates
+    private static final int SCAN_RATIO = 8;
+    // Typos allowed by rank(): none up to this query length, one up to the next, two beyond
+    private static final int EXACT_QUERY_LENGTH = 3;
+    private static final int ONE_TYPO_QUERY_LENGTH = 6;
+    // Scores of rank(): each typo less is worth more than where the match is and how long the text is
+    private static final int NO_MATCH = -1;
+    private static final int TYPO_WEIGHT = 100;
+    private static final int START_BONUS = 30;
+    private static final int WORD_BONUS = 20;
+    private static final int SERVICE_BONUS = 5;
+    private static final int MAX_LENGTH_PENALTY = 20;
+    // rank() looks at the clock and the cancellation every this many entries
+    private static final int CHECK_INTERVAL = 256;
+    private static final Comparator<Hit> WORST_FIRST =
+            Comparator.comparingInt(Hit::score).thenComparing(Comparator.comparingInt(Hit::slot).reversed());
+    private static final Timer SEARCH_TIMER = Metrics.timer("search.query");
+    private static final Timer RANK_TIMER = Metrics.timer("search.rank");
+    private static final Histogram CANDIDATES = Metrics.histogram("search.candidates");
+
+    /**
+     * The best matches of a query, best first.
+     * @param complete false if the time budget ran out or the ranking was cancelled before every
+     *                 candidate was scored; the entries are then the best of those scored
+     */
+    public record Ranking(List<PasswordEntry> entries, boolean complete) {
+    }
+
+    private record Hit(PasswordEntry entry, int slot, int score) {
+    }
+
+    private final List<PasswordEntry> entries = new ArrayList<>();
+    private final Map<PasswordEntry, Integer> slots = new IdentityHashMap<>();
+    private final IntList freeSlots = new IntList();
+    private final TrigramMap postings = new TrigramMap();
+    // Postings left behind by removed or changed entries, dropped on the next rebuild
+    private long stalePostings;
+    private long totalPostings;
+    // The buffers of the last ranking, taken by the next one; rankings replaced by a newer one may overlap
+    private final AtomicReference<Ranker> spareRanker = new AtomicReference<>();
+
+    /**
+     * Adds an entry, or re-indexes it if it is already in the index.
+     */
+    public synchronized void add(PasswordEntry entry) {
+        if (slots.containsKey(entry)) {
+            remove(entry);
+        }
+        int slot;
+        if (freeSlots.size() > 0) {
+            slot = freeSlots.removeLast();
+            entries.set(slot, entry);
+        } else {
+            slot = entries.size();
+            entries.add(entry);
+        }
+        slots.put(entry, slot);
+        index(entry, slot);
+    }
+
+    /**
+     * Adds all entries.
+     */
+    public synchronized void addAll(Collection<? extends PasswordEntry> newEntries) {
+        for (PasswordEntry entry : newEntries) {
+            add(entry);
+        }
+    }
+
+    /**
+     * Removes an entry. Its postings are skipped from now on and dropped on the next rebuild.
+     */
+    public synchronized void remove(PasswordEntry entry) {
+        Integer slot = slots.remove(entry);
+        if (slot == null) {
+            return;
+        }
+        entries.set(slot, null);
+        freeSlots.add(slot);
+        stalePostings += countTrigrams(entry);
+        if (stalePostings > totalPostings / 2 && stalePostings > 1024) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Re-indexes an entry after its service or username changed.
+     */
+    public synchronized void update(PasswordEntry entry) {
+        add(entry);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        slots.clear();
+        freeSlots.clear();
+        postings.clear();
+        stalePostings = 0;
+        totalPostings = 0;
+    }
+
+    /**
+     * @return the number of indexed entries
+     */
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * Finds the entries whose service or username contains the query, ignoring case.
+     * @return matching entries in no particular order
+     */
+    public synchronized List<PasswordEntry> search(String query) {
+        List<PasswordEntry> result = new ArrayList<>();
+        if (query == null || query.isEmpty()) {
+            for (PasswordEntry entry : entries) {
+                if (entry != null) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        }
+        long start = System.nanoTime();
+        int[] candidates = candidates(query);
+        if (candidates == null) {
+            for (PasswordEntry entry : entries) {
+                if (entry != null && matches(entry, query)) {
+                    result.add(entry);
+                }
+            }
+            SEARCH_TIMER.recordSince(start);
+            return result;
+        }
+        CANDIDATES.record(candidates.length);
+        for (int slot : candidates) {
+            PasswordEntry entry = entries.get(slot);
+            // Postings of removed or changed entries are still listed, so every candidate is checked
+            if (entry != null && matches(entry, query)) {
+                result.add(entry);
+            }
+        }
+        SEARCH_TIMER.recordSince(start);
+        return result;
+    }
+
+    /**
+     * Returns a filter for the given query, e.g. for a FilteredList.
+     * Selective queries are answered by the index once and the filter only checks membership;
+     * queries that match a large part of the vault are cheaper to test entry by entry.
+     */
+    public synchronized Predicate<PasswordEntry> matcher(String query) {
+        if (query == null || query.isEmpty()) {
+            return entry -> true;
+        }
+        long start = System.nanoTime();
+        int[] candidates = candidates(query);
+        if (candidates != null) {
+            CANDIDATES.record(candidates.length);
+        }
+        if (candidates == null || candidates.length > slots.size() / SCAN_RATIO) {
+            return entry -> matches(entry, query);
+        }
+        if (candidates.length == 0) {
+            return entry -> false;
+        }
+        // A small identity set stays in cache, unlike a lookup in the slot map of the whole vault
+        Set<PasswordEntry> matching = Collections.newSetFromMap(new IdentityHashMap<>(candidates.length));
+        for (int slot : candidates) {
+            PasswordEntry entry = entries.get(slot);
+            if (entry != null && matches(entry, query)) {
+                matching.add(entry);
+            }
+        }
+        SEARCH_TIMER.recordSince(start);
+        return matching::contains;
+    }
+
+    /**
+     * Finds the entries whose service or username matches the query with at most a few typos
+     * (a changed, missing, extra or swapped character each): none for queries of up to three characters,
+     * one for up to six and two for longer ones. Fewer typos rank higher, then matches at the start
+     * of the text or of a word, then shorter texts; the service counts a little more than the
+     * username, and ties keep the order in which the entries were added.
+     * Only the best {@code limit} entries are kept while scoring, and once there are that many, only
+     * entries that could still beat the worst of them are looked at closely. Scoring stops when the
+     * budget is spent or {@code cancelled} returns true, which is checked every few hundred entries.
+     */
+    public Ranking rank(String query, int limit, long budgetNanos, BooleanSupplier cancelled) {
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        String pattern = query.strip().toLowerCase(Locale.ROOT);
+        int trigrams = Math.max(0, pattern.length() - MIN_QUERY_LENGTH + 1);
+        PasswordEntry[] snapshot;
+        IntList[] lists = new IntList[trigrams];
+        synchronized (this) {
+            snapshot = entries.toArray(new PasswordEntry[0]);
+            for (int i = 0; i < trigrams; i++) {
+                IntList list = postings.get(trigram(pattern, i));
+                lists[i] = list != null ? list.view() : null;
+            }
+        }
+        Ranker ranker = spareRanker.getAndSet(null);
+        if (ranker == null) {
+            ranker = new Ranker();
+        }
+        try {
+            Ranking ranking = ranker.rank(snapshot, lists, pattern, limit, deadline, cancelled);
+            RANK_TIMER.recordSince(start);
+            return ranking;
+        } finally {
+            spareRanker.set(ranker);
+        }
+    }
+
+    /**
+     * @return true if the service or username contains the query, ignoring case
+     */
+    public static boolean matches(PasswordEntry entry, String query) {
+        return indexOfIgnoreCase(entry.getService(), query) >= 0 || indexOfIgnoreCase(entry.getUsername(), query) >= 0;
+    }
+
+    // Case-insensitive indexOf without creating lower-case copies, -1 if not found or the text is null
+    private static int indexOfIgnoreCase(String text, String query) {
+        if (text == null) {
+            return -1;
+        }
+        int last = text.length() - query.length();
+        for (int i = 0; i <= last; i++) {
+            if (text.regionMatches(true, i, query, 0, query.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void index(PasswordEntry entry, int slot) {
+        totalPostings += indexText(entry.getService(), slot);
+        totalPostings += indexText(entry.getUsername(), slot);
+    }
+
+    private int indexText(String text, int slot) {
+        if (text == null) {
+            return 0;
+        }
+        int added = 0;
+        for (int i = 0; i + MIN_QUERY_LENGTH <= text.length(); i++) {
+            // The same trigram can occur several times in one entry
+            if (postings.getOrCreate(trigram(text, i)).addSorted(slot)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private static int countTrigrams(PasswordEntry entry) {
+        return Math.max(0, length(entry.getService()) - MIN_QUERY_LENGTH + 1)
+                + Math.max(0, length(entry.getUsername()) - MIN_QUERY_LENGTH + 1);
+    }
+
+    private static int length(String text) {
+        return text != null ? text.length() : 0;
+    }
+
+    // Returns the sorted slots listed under every trigram of the query, or null for short queries
+    private int[] candidates(String query) {
+        if (query.length() < MIN_QUERY_LENGTH) {
+            return null;
+        }
+        int count = query.length() - MIN_QUERY_LENGTH + 1;
+        IntList[] lists = new IntList[count];
+        for (int i = 0; i < count; i++) {
+            lists[i] = postings.get(trigram(query, i));
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+        int[] result = lists[0].toArray();
+        int size = result.length;
+        for (int i = 1; i < count && size > 0; i++) {
+            int kept = 0;
+            for (int j = 0; j < size; j++) {
+                if (lists[i].contains(result[j])) {
+                    result[kept++] = result[j];
+                }
+            }
+            size = kept;
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    private void rebuild() {
+        List<PasswordEntry> live = new ArrayList<>(slots.size());
+        for (PasswordEntry entry : entries) {
+            if (entry != null) {
+                live.add(entry);
+            }
+        }
+        clear();
+        addAll(live);
+    }
+
+    private static long trigram(String text, int start) {
+        return ((long) Character.toLowerCase(text.charAt(start)) << 32)
+                | ((long) Character.toLowerCase(text.charAt(start + 1)) << 16)
+                | Character.toLowerCase(text.charAt(start + 2));
+    }
+
+    /**
+     * The scoring of one ranking at a time, over a copy of the slots and postings, with buffers that
+     * are reused by the next ranking.
+     */
+    private static final class Ranker {
+        // Rows of the edit distance matrix and the start of the match each cell belongs to
+        private int[] distances = new int[0];
+        private int[] starts = new int[0];
+        // The trigrams each slot shares with the query being ranked, and the query's character positions
+        private int[] sharedTrigrams = new int[0];
+        private String pattern = "";
+        private final long[] asciiPositions = new long[128];
+
+        // Scores the slots of the copy, the likeliest first, see SearchIndex.rank()
+        Ranking rank(PasswordEntry[] entries, IntList[] lists, String pattern, int limit, long deadline,
+                     BooleanSupplier cancelled) {
+            int maxTypos = pattern.length() <= EXACT_QUERY_LENGTH ? 0 : pattern.length() <= ONE_TYPO_QUERY_LENGTH ? 1 : 2;
+            int trigrams = lists.length;
+            int[] order = rankingOrder(entries, lists, pattern, maxTypos);
+            preparePattern(pattern);
+            PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, WORST_FIRST);
+            int allowedTypos = limit > 0 ? maxTypos : -1;
+            boolean complete = true;
+            for (int i = 0; i < order.length; i++) {
+                if (i % CHECK_INTERVAL == CHECK_INTERVAL - 1 && (System.nanoTime() > deadline || cancelled.getAsBoolean())) {
+                    complete = false;
+                    break;
+                }
+                // Entries come with the most shared trigrams first, so the fewest typos possible only grow
+                int fewestTypos = (trigrams - sharedTrigrams[order[i]] + 3) / 4;
+                if (fewestTypos > allowedTypos) {
+                    break;
+                }
+                PasswordEntry entry = entries[order[i]];
+                if (entry == null) {
+                    continue;
+                }
+                // Postings of a reused slot may count trigrams of the entry before, never fewer of this one
+                boolean mayContain = sharedTrigrams[order[i]] == trigrams;
+                int score = score(entry, pattern, maxTypos, allowedTypos, mayContain);
+                if (score == NO_MATCH) {
+                    continue;
+                }
+                // The worst kept hit has the highest slot of its score, and slots come in no particular order
+                if (best.size() == limit && WORST_FIRST.compare(new Hit(entry, order[i], score), best.peek()) <= 0) {
+                    continue;
+                }
+                best.add(new Hit(entry, order[i], score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+                if (best.size() == limit) {
+                    while (allowedTypos >= 0 && bestScore(maxTypos, allowedTypos) < best.peek().score()) {
+                        allowedTypos--;
+                    }
+                }
+            }
+            List<PasswordEntry> ranked = new ArrayList<>(best.size());
+            while (!best.isEmpty()) {
+                ranked.add(best.poll().entry());
+            }
+            Collections.reverse(ranked);
+            return new Ranking(ranked, complete);
+        }
+
+        // Slots in the order rank() scores them, most trigrams shared with the query first, with the number
+        // shared left in sharedTrigrams. A typo changes at most four trigrams of the query (a swap touches two
+        // characters), so entries sharing fewer than the rest cannot match and are left out; when typos could
+        // change every trigram, the entries sharing none follow in slot order.
+        private int[] rankingOrder(PasswordEntry[] entries, IntList[] lists, String pattern, int maxTypos) {
+            int trigrams = pattern.length() - MIN_QUERY_LENGTH + 1;
+            int required = trigrams - 4 * maxTypos;
+            if (sharedTrigrams.length < entries.length) {
+                sharedTrigrams = new int[entries.length];
+            } else {
+                Arrays.fill(sharedTrigrams, 0);
+            }
+            if (trigrams <= 0) {
+                int[] all = new int[entries.length];
+                Arrays.setAll(all, slot -> slot);
+                return all;
+            }
+            IntList shared = new IntList();
+            for (int i = 0; i < trigrams; i++) {
+                IntList list = lists[i];
+                if (list == null) {
+                    continue;
+                }
+                for (int j = 0; j < list.size(); j++) {
+                    int slot = list.get(j);
+                    // A query may repeat a trigram, but an entry cannot share it more often than it occurs
+                    if (sharedTrigrams[slot]++ == 0) {
+                        shared.add(slot);
+                    }
+                }
+            }
+            // Counting sort of the slots by shared trigrams, most first
+            int lowest = Math.max(1, required);
+            int[] offsets = new int[trigrams + 2];
+            for (int j = 0; j < shared.size(); j++) {
+                int count = Math.min(sharedTrigrams[shared.get(j)], trigrams);
+                sharedTrigrams[shared.get(j)] = count;
+                if (count >= lowest) {
+                    offsets[trigrams - count + 1]++;
+                }
+            }
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] += offsets[i - 1];
+            }
+            int sharing = offsets[offsets.length - 1];
+            int[] order = new int[required <= 0 ? entries.length : sharing];
+            for (int j = 0; j < shared.size(); j++) {
+                int count = sharedTrigrams[shared.get(j)];
+                if (count >= lowest) {
+                    order[offsets[trigrams - count]++] = shared.get(j);
+                }
+            }
+            if (required <= 0) {
+                int next = sharing;
+                for (int slot = 0; slot < entries.length; slot++) {
+                    if (sharedTrigrams[slot] == 0) {
+                        order[next++] = slot;
+                    }
+                }
+            }
+            return order;
+        }
+
+        // The highest score an entry can reach with the given number of typos
+        private static int bestScore(int maxTypos, int typos) {
+            return (maxTypos + 1 - typos) * TYPO_WEIGHT + START_BONUS + SERVICE_BONUS;
+        }
+
+        // An entry that lacks a trigram of the pattern cannot contain it, which saves looking for it
+        private int score(PasswordEntry entry, String pattern, int maxTypos, int allowedTypos, boolean mayContain) {
+            int service = fieldScore(entry.getService(), pattern, maxTypos, allowedTypos, mayContain);
+            int username = fieldScore(entry.getUsername(), pattern, maxTypos, allowedTypos, mayContain);
+            return Math.max(service == NO_MATCH ? NO_MATCH : service + SERVICE_BONUS, username);
+        }
+
+        private int fieldScore(String text, String pattern, int maxTypos, int allowedTypos, boolean mayContain) {
+            if (text == null) {
+                return NO_MATCH;
+            }
+            int typos = 0;
+            int start = mayContain ? indexOfIgnoreCase(text, pattern) : -1;
+            if (start < 0) {
+                if (allowedTypos == 0 || typos(text) > allowedTypos) {
+                    return NO_MATCH;
+                }
+                long match = approximateMatch(text, pattern, allowedTypos);
+                if (match < 0) {
+                    return NO_MATCH;
+                }
+                typos = (int) (match >>> 32);
+                start = (int) match;
+            }
+            int score = (maxTypos + 1 - typos) * TYPO_WEIGHT;
+            if (start == 0) {
+                score += START_BONUS;
+            } else if (!Character.isLetterOrDigit(text.charAt(start - 1))) {
+                score += WORD_BONUS;
+            }
+            return score - Math.min(Math.max(0, text.length() - pattern.length()), MAX_LENGTH_PENALTY);
+        }
+
+        // Sets up typos() for the lower-case pattern: a bit per position for each character
+        private void preparePattern(String pattern) {
+            this.pattern = pattern;
+            Arrays.fill(asciiPositions, 0);
+            if (pattern.length() > Long.SIZE) {
+                return;
+            }
+            for (int i = 0; i < pattern.length(); i++) {
+                if (pattern.charAt(i) < asciiPositions.length) {
+                    asciiPositions[pattern.charAt(i)] |= 1L << i;
+                }
+            }
+        }
+
+        private long positions(char c) {
+            if (c < asciiPositions.length) {
+                return asciiPositions[c];
+            }
+            long positions = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                if (pattern.charAt(i) == c) {
+                    positions |= 1L << i;
+                }
+            }
+            return positions;
+        }
+
+        // The fewest typos with which the pattern of preparePattern() occurs somewhere in the text, as
+        // approximateMatch() counts them but without where the match starts: the columns of its matrix are
+        // kept as bit vectors of the differences between neighbouring cells, one word per column (Myers,
+        // with swaps after Hyyro). A fraction of the cost, so approximateMatch() only runs for matches.
+        private int typos(String text) {
+            int m = pattern.length();
+            if (m > Long.SIZE) {
+                return 0;
+            }
+            long last = 1L << (m - 1);
+            long mask = m == Long.SIZE ? -1L : (1L << m) - 1;
+            long vp = mask;
+            long vn = 0;
+            long d0 = 0;
+            long previousEq = 0;
+            int distance = m;
+            int fewest = m;
+            for (int j = 0; j < text.length(); j++) {
+                long eq = positions(Character.toLowerCase(text.charAt(j)));
+                long swapped = (((~d0) & eq) << 1) & previousEq;
+                d0 = ((((eq & vp) + vp) ^ vp) | eq | vn | swapped) & mask;
+                long hp = vn | ~(d0 | vp);
+                long hn = d0 & vp;
+                if ((hp & last) != 0) {
+                    distance++;
+                } else if ((hn & last) != 0) {
+                    distance--;
+                }
+                fewest = Math.min(fewest, distance);
+                // The first row stays 0: a match may start anywhere in the text
+                hp <<= 1;
+                hn <<= 1;
+                vn = hp & d0;
+                vp = (hn | ~(hp | d0)) & mask;
+                previousEq = eq;
+            }
+            return fewest;
+        }
+
+        // The fewest typos with which the lower-case pattern occurs somewhere in the text, in the high
+        // half, and where that occurrence starts, in the low half; -1 if it takes more than maxTypos.
+        // Edit distance against every substring of the text (Sellers) with swaps of two neighbouring
+        // characters as one typo, a row per pattern character; the smallest value of a row never
+        // decreases further down, so a row above maxTypos ends the search.
+        private long approximateMatch(String text, String pattern, int maxTypos) {
+            int width = text.length() + 1;
+            if (distances.length < 3 * width) {
+                distances = new int[3 * width];
+                starts = new int[3 * width];
+            }
+            // Offsets of the rows for the pattern character before the previous one, the previous one and this one
+            int before = 2 * width;
+            int previous = 0;
+            int current = width;
+            for (int j = 0; j < width; j++) {
+                distances[j] = 0;
+                starts[j] = j;
+            }
+            for (int i = 1; i <= pattern.length(); i++) {
+                char c = pattern.charAt(i - 1);
+                distances[current] = i;
+                starts[current] = 0;
+                int rowMin = i;
+                for (int j = 1; j < width; j++) {
+                    char t = Character.toLowerCase(text.charAt(j - 1));
+                    int distance = distances[previous + j - 1] + (t == c ? 0 : 1);
+                    int start = starts[previous + j - 1];
+                    if (distances[previous + j] + 1 < distance) {
+                        distance = distances[previous + j] + 1;
+                        start = starts[previous + j];
+                    }
+                    if (distances[current + j - 1] + 1 < distance) {
+                        distance = distances[current + j - 1] + 1;
+                        start = starts[current + j - 1];
+                    }
+                    if (i > 1 && j > 1 && t == pattern.charAt(i - 2) && c == Character.toLowerCase(text.charAt(j - 2))
+                            && distances[before + j - 2] + 1 < distance) {
+                        distance = distances[before + j - 2] + 1;
+                        start = starts[before + j - 2];
+                    }
+                    distances[current + j] = distance;
+                    starts[current + j] = start;
+                    rowMin = Math.min(rowMin, distance);
+                }
+                if (rowMin > maxTypos) {
+                    return -1;
+                }
+                int oldest = before;
+                before = previous;
+                previous = current;
+                current = oldest;
+            }
+            int best = 0;
+            for (int j = 1; j < width; j++) {
+                if (distances[previous + j] < distances[previous + best]) {
+                    best = j;
+                }
+            }
+            return ((long) distances[previous + best] << 32) | starts[previous + best];
+        }
+    }
+
+    /**
+     * Growable list of primitive ints. Postings are kept sorted with {@link #addSorted(int)}, which
+     * never changes a value in place, so a {@link #view()} stays valid while the list grows.
+     */
+    private static final class IntList {
+        private int[] values = new int[2];
+        private int size;
+
+        void add(int value) {
+            grow();
+            values[size++] = value;
+        }
+
+        // Inserts the value in order; appending is the common case since new slots are increasing
+        boolean addSorted(int value) {
+            if (size == 0 || values[size - 1] < value) {
+                add(value);
+                return true;
+            }
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0) {
+                return false;
+            }
+            // Inserting in the middle moves values, which a view may be reading, so it takes a new array
+            index = -index - 1;
+            int[] inserted = new int[Math.max(values.length, size + 1)];
+            System.arraycopy(values, 0, inserted, 0, index);
+            System.arraycopy(values, index, inserted, index + 1, size - index);
+            inserted[index] = value;
+            values = inserted;
+            size++;
+            return true;
+        }
+
+        // The values added so far, unaffected by later calls to addSorted()
+        IntList view() {
+            IntList view = new IntList();
+            view.values = values;
+            view.size = size;
+            return view;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        boolean contains(int value) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        private void grow() {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+        }
+
+        int removeLast() {
+            return values[--size];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Open-addressing map from packed trigrams to posting lists, avoiding boxed keys.
+     */
+    private static final class TrigramMap {
+        private static final long EMPTY = -1L;
+        private long[] keys = newKeys(1024);
+        private IntList[] values = new IntList[1024];
+        private int size;
+
+        IntList get(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                if (keys[i] == EMPTY) {
+                    return null;
+                }
+            }
+        }
+
+        IntList getOrCreate(long key) {
+            if (size * 2 >= keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != EMPTY) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = new IntList();
+            size++;
+            return values[i];
+        }
+
+        void clear() {
+            keys = newKeys(1024);
+            values = new IntList[1024];
+            size = 0;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            IntList[] oldValues = values;
+            keys = newKeys(oldKeys.length * 2);
+            values = new IntList[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != EMPTY) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (keys[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static long[] newKeys(int capacity) {
+            long[] newKeys = new long[capacity];
+            Arrays.fill(newKeys, EMPTY);
+            return newKeys;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
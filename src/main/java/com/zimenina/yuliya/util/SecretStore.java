@@ -0,0 +1,211 @@
+package com.zimenina.yuliya.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Keeps decrypted passwords outside the Java heap, in direct buffers, so they are neither
+ * copied by the garbage collector nor left behind in memory after they are no longer needed.
+ * Each password gets a slot in a 64 KB slab of its size class (16, 32, 64, ... bytes) and the
+ * caller keeps a {@link Secret} handle to it; a freed slot is zeroed and reused. {@link #wipe()}
+ * zeroes every slab at once, e.g. when the vault is closed. A handle checks on every read that
+ * its slot was not freed or reused meanwhile, and throws if it was.
+ * Passwords only come back to the heap as the String returned by {@link Secret#get()}.
+ */
+public final class SecretStore {
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final int MIN_SLOT_SIZE = 16;
+    // Slots per slab are at most 4096, so a slot number is the slab number and 12 bits of index
+    private static final int SLOT_BITS = Integer.numberOfTrailingZeros(SLAB_SIZE / MIN_SLOT_SIZE);
+    private static final int SIZE_CLASSES = SLOT_BITS + 1;
+
+    private final List<Slab> slabs = new ArrayList<>();
+    // Per size class: its slabs, the one slots are currently taken from, and the freed slots
+    private final List<List<Slab>> slabsByClass = new ArrayList<>();
+    private final int[] currentSlab = new int[SIZE_CLASSES];
+    private final int[][] freeSlots = new int[SIZE_CLASSES][16];
+    private final int[] freeCount = new int[SIZE_CLASSES];
+    // Raised by wipe, which invalidates every handle handed out before
+    private int epoch;
+    private long bytesInUse;
+
+    /**
+     * A slab of slots of one size, in a direct buffer that is allocated once and reused after a wipe.
+     */
+    private static final class Slab {
+        private final int number;
+        private final int slotSize;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+        // Raised whenever a slot is freed, which invalidates the handles to it
+        private final int[] generations;
+        private int used;
+
+        private Slab(int number, int slotSize) {
+            this.number = number;
+            this.slotSize = slotSize;
+            this.generations = new int[SLAB_SIZE / slotSize];
+        }
+    }
+
+    /**
+     * Handle to a password in the store. It holds no part of the password itself.
+     */
+    public static final class Secret implements Supplier<String> {
+        private final SecretStore store;
+        private final int slot;
+        private final int generation;
+        private final int epoch;
+        private final int length;
+
+        private Secret(SecretStore store, int slot, int generation, int epoch, int length) {
+            this.store = store;
+            this.slot = slot;
+            this.generation = generation;
+            this.epoch = epoch;
+            this.length = length;
+        }
+
+        /**
+         * Returns the password as a new String.
+         * @throws IllegalStateException if the secret was freed or the store wiped
+         */
+        @Override
+        public String get() {
+            return store.read(this);
+        }
+
+        /**
+         * Zeroes the password and releases its slot. Freeing twice has no effect.
+         */
+        public void free() {
+            store.free(this);
+        }
+    }
+
+    public SecretStore() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            slabsByClass.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Copies the password into the store.
+     * @return the handle to read or free it with
+     * @throws IllegalArgumentException if the password takes more than 64 KB in UTF-8
+     */
+    public Secret put(String password) {
+        byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (bytes.length > SLAB_SIZE) {
+                throw new IllegalArgumentException("Secret is larger than " + SLAB_SIZE + " bytes");
+            }
+            synchronized (this) {
+                int slot = allocate(sizeClassOf(bytes.length));
+                Slab slab = slabs.get(slot >>> SLOT_BITS);
+                int index = indexOf(slot);
+                slab.buffer.put(index * slab.slotSize, bytes);
+                bytesInUse += slab.slotSize;
+                return new Secret(this, slot, slab.generations[index], epoch, bytes.length);
+            }
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Zeroes every password in the store. All handles handed out so far become invalid;
+     * the store itself can be used again and keeps its slabs.
+     */
+    public synchronized void wipe() {
+        byte[] zeros = new byte[SLAB_SIZE];
+        for (Slab slab : slabs) {
+            slab.buffer.put(0, zeros);
+            Arrays.fill(slab.generations, 0);
+            slab.used = 0;
+        }
+        Arrays.fill(currentSlab, 0);
+        Arrays.fill(freeCount, 0);
+        epoch++;
+        bytesInUse = 0;
+    }
+
+    /**
+     * @return the bytes taken by the slots of the passwords in the store
+     */
+    public synchronized long getBytesInUse() {
+        return bytesInUse;
+    }
+
+    private synchronized String read(Secret secret) {
+        Slab slab = slabOf(secret);
+        if (slab == null) {
+            throw new IllegalStateException("Secret has been freed");
+        }
+        byte[] bytes = new byte[secret.length];
+        try {
+            slab.buffer.get(indexOf(secret.slot) * slab.slotSize, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    private synchronized void free(Secret secret) {
+        Slab slab = slabOf(secret);
+        if (slab == null) {
+            return;
+        }
+        int index = indexOf(secret.slot);
+        slab.buffer.put(index * slab.slotSize, new byte[slab.slotSize]);
+        slab.generations[index]++;
+        bytesInUse -= slab.slotSize;
+        int sizeClass = sizeClassOf(slab.slotSize);
+        if (freeCount[sizeClass] == freeSlots[sizeClass].length) {
+            freeSlots[sizeClass] = Arrays.copyOf(freeSlots[sizeClass], freeCount[sizeClass] * 2);
+        }
+        freeSlots[sizeClass][freeCount[sizeClass]++] = secret.slot;
+    }
+
+    // The slab of a secret that is still valid, or null
+    private Slab slabOf(Secret secret) {
+        if (secret.epoch != epoch) {
+            return null;
+        }
+        Slab slab = slabs.get(secret.slot >>> SLOT_BITS);
+        return slab.generations[indexOf(secret.slot)] == secret.generation ? slab : null;
+    }
+
+    private int allocate(int sizeClass) {
+        if (freeCount[sizeClass] > 0) {
+            return freeSlots[sizeClass][--freeCount[sizeClass]];
+        }
+        List<Slab> classSlabs = slabsByClass.get(sizeClass);
+        int current = currentSlab[sizeClass];
+        if (current < classSlabs.size() && classSlabs.get(current).used == classSlabs.get(current).generations.length) {
+            current = ++currentSlab[sizeClass];
+        }
+        if (current == classSlabs.size()) {
+            Slab slab = new Slab(slabs.size(), MIN_SLOT_SIZE << sizeClass);
+            slabs.add(slab);
+            classSlabs.add(slab);
+        }
+        Slab slab = classSlabs.get(current);
+        return slab.number << SLOT_BITS | slab.used++;
+    }
+
+    private static int sizeClassOf(int length) {
+        int sizeClass = 0;
+        while ((MIN_SLOT_SIZE << sizeClass) < length) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private static int indexOf(int slot) {
+        return slot & ((1 << SLOT_BITS) - 1);
+    }
+}
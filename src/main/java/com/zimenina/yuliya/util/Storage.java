@@ -1,48 +1,175 @@
 package com.zimenina.yuliya.util;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
 import com.zimenina.yuliya.model.PasswordEntry;
-import javafx.collections.ObservableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.lang.reflect.Type;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Handles saving and loading password entries to/from a file.
- * Uses JSON for serialization and AES encryption with the master password.
+ * The file starts with a small header (magic and format version), followed by the individually
+ * encrypted passwords and an encrypted binary index with one length-prefixed record per entry
+ * (id, position of the password, service, username). A trailer at the end points to the index.
+ * Each password and the index are encrypted with AES/GCM under a nonce of their own, see
+ * {@link CryptoContext}, so a changed file fails to load instead of giving wrong entries.
+ * A password is bound by associated data to the id of its entry and to the shard it is stored in,
+ * and the index to the header and the shard, so swapped or moved ciphertext does not decrypt either.
+ * Loading maps the file into memory and decrypts only the index; passwords stay in the mapped
+ * region until an entry asks for one. All ciphertext is stored raw, without Base64.
+ * The index repeats service names and domains a lot, so it can be deflated before it is encrypted;
+ * a flag in the header tells whether it was. The level is set with the system property
+ * {@code pm.storage.compression} (0, the default, turns compression off; 1-9 as in {@link Deflater}).
+ * Version 3 files (AES/GCM without associated data), version 2 files (the same layout, encrypted
+ * with AES/ECB), version 1 files (JSON index) and the original format (Base64 of the encrypted JSON
+ * list) are still loaded, and {@link #upgrade(String)} rewrites them once in the current format.
+ * A vault can also be split into shards, each a file of this format (see {@link VaultShards});
+ * their indexes are decrypted in parallel and their entries merged in the order they were added,
+ * and a save that is told which entries changed rewrites only their shards. The number of shards is
+ * set with the system property {@code pm.storage.shards} (1, the default, keeps a single file).
  */
 public class Storage {
     private static final Logger logger = LoggerFactory.getLogger(Storage.class);
-    private static final Gson gson = new Gson();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] MAGIC = {'P', 'M', 'V', 'T'};
+    private static final byte VERSION = 4;
+    // Version 3 was encrypted with AES/GCM too, but bound nothing as associated data
+    private static final byte VERSION_UNBOUND = 3;
+    // Version 2 had the same layout but was encrypted in the original format, without nonces
+    private static final byte VERSION_ECB = 2;
+    // Version 1 stored the index as JSON
+    private static final byte VERSION_JSON_INDEX = 1;
+    // Format "version" reported for the original Base64 JSON files
+    private static final int VERSION_LEGACY = 0;
+    private static final String BACKUP_SUFFIX = ".bak";
+    // Header flags, stored in the byte after the version
+    private static final byte FLAG_DEFLATE = 1;
+    private static final int COMPRESSION_LEVEL = Integer.getInteger("pm.storage.compression", Deflater.NO_COMPRESSION);
+    private static volatile int shards = checkedShards(Integer.getInteger("pm.storage.shards", 1));
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int ENCRYPT_BATCH_SIZE = 8192;
+    private static final Timer SAVE_TIMER = Metrics.timer("storage.save");
+    private static final Timer ENCRYPT_TIMER = Metrics.timer("storage.save.encrypt");
+    private static final Timer SERIALIZE_TIMER = Metrics.timer("storage.save.serialize");
+    private static final Timer WRITE_TIMER = Metrics.timer("storage.save.write");
+    private static final Timer LOAD_TIMER = Metrics.timer("storage.load");
+    private static final Timer READ_TIMER = Metrics.timer("storage.load.read");
+    private static final Timer DECRYPT_TIMER = Metrics.timer("storage.load.decrypt");
+    private static final Timer PARSE_TIMER = Metrics.timer("storage.load.parse");
+    private static final Timer INFLATE_TIMER = Metrics.timer("storage.load.inflate");
+
+    /**
+     * Sets the number of shards saves split the vault into; 1 keeps it in a single file.
+     * A vault in another layout is converted by {@link #upgrade(String)}.
+     * @param count 1 to 256
+     */
+    public static void setShards(int count) {
+        shards = checkedShards(count);
+    }
 
     /**
      * Saves the given list of password entries to a file.
+     * The file is written next to the target and moved over it when complete, so entries
+     * still backed by the mapping of the old file stay readable.
      * @param entries the list of password entries to save
      * @param fileName the name of the file to save to
      */
-    public static void save(ObservableList<PasswordEntry> entries, String fileName) {
-        try {
-            logger.info("Saving data to a file: {}", fileName);
-            List<PasswordEntry> list = new ArrayList<>(entries);
-            String json = gson.toJson(list);
-            logger.info("The data is serialized in JSON: {}", json);
-            String encrypted = AESUtil.encrypt(json);
-            logger.info("The data is encrypted");
-            try (FileWriter writer = new FileWriter(fileName)) {
-                writer.write(encrypted);
-                logger.info("Data successfully written to file");
-            }
-        } catch (Exception e) {
-            logger.error("Error saving data: ", e);
-            throw new RuntimeException("Error saving data", e);
+    public static void save(List<PasswordEntry> entries, String fileName) {
+        save(entries, fileName, COMPRESSION_LEVEL, shards, null);
+    }
+
+    /**
+     * Saves the entries of a vault that was loaded from the same file and changed since.
+     * In the sharded layout only the shards of the changed entries are rewritten.
+     * @param entries the list of password entries to save
+     * @param fileName the name of the file to save to
+     * @param changedIds the ids of the entries added, changed or removed since the file was written
+     */
+    public static void save(List<PasswordEntry> entries, String fileName, Set<Long> changedIds) {
+        save(entries, fileName, COMPRESSION_LEVEL, shards, changedIds);
+    }
+
+    /**
+     * Saves the given list of password entries to a single file with the given index compression.
+     * @param entries the list of password entries to save
+     * @param fileName the name of the file to save to
+     * @param compressionLevel 0 for no compression, 1 (fastest) to 9 (smallest)
+     */
+    public static void save(List<PasswordEntry> entries, String fileName, int compressionLevel) {
+        save(entries, fileName, compressionLevel, 1, null);
+    }
+
+    /**
+     * Saves the entries to a single file, whatever the number of shards, e.g. so that the file
+     * can replace a vault with one move.
+     * @param entries the list of password entries to save
+     * @param fileName the name of the file to save to
+     */
+    public static void saveSingleFile(List<PasswordEntry> entries, String fileName) {
+        save(entries, fileName, COMPRESSION_LEVEL, 1, null);
+    }
+
+    private static void save(List<PasswordEntry> entries, String fileName, int compressionLevel,
+                             int shardCount, Set<Long> changedIds) {
+        long start = System.nanoTime();
+        try (Writer writer = new Writer(fileName, compressionLevel, shardCount, changedIds)) {
+            writer.add(entries);
+            writer.commit();
         }
+        SAVE_TIMER.recordSince(start);
+    }
+
+    /**
+     * Opens a writer that builds a vault file from entries handed over in batches,
+     * for callers that do not have all entries in memory at once.
+     * @param fileName the name of the file to save to
+     */
+    public static Writer writer(String fileName) {
+        return new Writer(fileName, COMPRESSION_LEVEL, shards, null);
     }
 
     /**
@@ -51,25 +178,907 @@ public class Storage {
      * @return the list of password entries
      */
     public static List<PasswordEntry> load(String fileName) {
+        List<PasswordEntry> result = new ArrayList<>();
+        load(fileName, Integer.MAX_VALUE, result::addAll);
+        return result;
+    }
+
+    /**
+     * Loads the password entries from a file and hands them over in batches as they are parsed,
+     * so a caller can show the first entries before the whole file is read.
+     * @param fileName the name of the file to load from
+     * @param batchSize the number of entries per batch; the last batch may be smaller
+     * @param consumer receives each batch on the calling thread
+     * @return the number of entries loaded
+     */
+    public static int load(String fileName, int batchSize, Consumer<List<PasswordEntry>> consumer) {
         File file = new File(fileName);
         if (!file.exists()) {
             logger.info("File {} does not exist, returning empty list", fileName);
-            return new ArrayList<>();
-        }
-        try (FileReader reader = new FileReader(file)) {
-            StringBuilder sb = new StringBuilder();
-            int c;
-            while ((c = reader.read()) != -1) sb.append((char) c);
-            logger.info("Data read from file: {}", sb.toString());
-            String decrypted = AESUtil.decrypt(sb.toString());
-            logger.info("Data decrypted: {}", decrypted);
-            Type listType = new TypeToken<List<PasswordEntry>>(){}.getType();
-            List<PasswordEntry> result = gson.fromJson(decrypted, listType);
-            logger.info("Data deserialized, records:{}", result != null ? result.size() : 0);
-            return result != null ? result : new ArrayList<>();
+            return 0;
+        }
+        if (file.length() == 0) {
+            logger.info("File {} is empty, returning empty list", fileName);
+            return 0;
+        }
+        long start = System.nanoTime();
+        try {
+            Batcher batcher = new Batcher(batchSize, consumer);
+            int shardCount = VaultShards.readManifest(fileName);
+            boolean mapped = shardCount > 0;
+            if (mapped) {
+                loadShards(fileName, shardCount, batcher);
+            } else {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    mapped = hasMagic(channel);
+                    if (mapped) {
+                        loadMapped(channel, batcher);
+                    }
+                }
+            }
+            if (!mapped) {
+                loadLegacy(file, batcher);
+            }
+            batcher.finish();
+            LOAD_TIMER.recordSince(start);
+            logger.info("Data deserialized, records:{}", batcher.count);
+            return batcher.count;
+        } catch (Exception e) {
+            logger.error("Error loading data: ", e);
+            throw new RuntimeException("Error loading data", e);
+        }
+    }
+
+    /**
+     * Reads the file into the page cache without decrypting anything, so that a {@link #load} that
+     * follows maps pages already in memory. Needs no key, e.g. while the master password is typed.
+     * @param fileName the vault file
+     * @return the number of bytes read
+     */
+    public static long prefetch(String fileName) {
+        try {
+            int shardCount = VaultShards.readManifest(fileName);
+            if (shardCount == 0) {
+                return prefetch(Path.of(fileName));
+            }
+            long size = 0;
+            for (int i = 0; i < shardCount; i++) {
+                size += prefetch(VaultShards.shardPath(fileName, i, shardCount));
+            }
+            return size;
+        } catch (IOException e) {
+            logger.error("Error loading data: ", e);
+            throw new RuntimeException("Error loading data", e);
+        }
+    }
+
+    private static long prefetch(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = Math.min(channel.size(), Integer.MAX_VALUE);
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, size).load();
+            return size;
+        }
+    }
+
+    /**
+     * Tells whether the session key opens a single vault file, by decrypting its index only.
+     * @param fileName the vault file, in one of the formats with an index
+     * @return false if the index does not decrypt with the key, e.g. because it was written with another one
+     */
+    public static boolean canDecrypt(String fileName) {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            if (!hasMagic(channel)) {
+                throw new IOException("Not a vault file with an index: " + fileName);
+            }
+            IndexReader.open(channel, 0, 1).close();
+            return true;
         } catch (Exception e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                return false;
+            }
+            logger.error("Error loading data: ", e);
+            throw new RuntimeException("Error loading data", e);
+        }
+    }
+
+    /**
+     * Rewrites a vault stored in an earlier format in the current one.
+     * The original file is kept next to it with the ".bak" suffix.
+     * A current vault in another layout than the configured number of shards is converted.
+     * @param fileName the vault file
+     * @return true if the file was rewritten, false if it is missing or already current
+     */
+    public static boolean upgrade(String fileName) {
+        int version = formatVersion(fileName);
+        if (version < 0) {
+            return false;
+        }
+        if (version == VERSION) {
+            return convertLayout(fileName);
+        }
+        List<PasswordEntry> entries = load(fileName);
+        Path backup = Path.of(fileName + BACKUP_SUFFIX);
+        try {
+            Files.copy(Path.of(fileName), backup, StandardCopyOption.REPLACE_EXISTING);
+            int shardCount = VaultShards.readManifest(fileName);
+            for (int i = 0; i < shardCount; i++) {
+                Path shard = VaultShards.shardPath(fileName, i, shardCount);
+                Files.copy(shard, Path.of(shard + BACKUP_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.error("Error saving data: ", e);
+            throw new RuntimeException("Error saving data", e);
+        }
+        save(entries, fileName);
+        logger.info("Migrated {} from format version {} to {}, previous file kept as {}",
+                fileName, version, VERSION, backup);
+        return true;
+    }
+
+    /**
+     * Writes the entries in the original format (Base64 of the encrypted JSON list),
+     * e.g. to hand a vault to an older version of the application.
+     * @param entries the list of password entries to export
+     * @param fileName the name of the file to write
+     */
+    public static void saveLegacy(List<PasswordEntry> entries, String fileName) {
+        Path target = Path.of(fileName);
+        Path temp = Path.of(fileName + TEMP_SUFFIX);
+        try {
+            Cipher cipher = AESUtil.createCipher(Cipher.ENCRYPT_MODE);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // Closing the stream finishes the cipher and the Base64 padding
+                try (OutputStream out = new CipherOutputStream(Base64.getEncoder().wrap(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)), cipher)) {
+                    VaultCodec.configured().write(entries, out);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Data exported in the legacy format, records: {}", entries.size());
+        } catch (Exception e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            logger.error("Error saving data: ", e);
+            throw new RuntimeException("Error saving data", e);
+        }
+    }
+
+    // Splits a single-file vault into shards, changes their number or joins them back into one file,
+    // as configured. Shards of another layout are removed also if there is nothing to convert:
+    // they are left over from a conversion that was interrupted.
+    private static boolean convertLayout(String fileName) {
+        int current;
+        try {
+            current = Math.max(1, VaultShards.readManifest(fileName));
+        } catch (IOException e) {
             logger.error("Error loading data: ", e);
             throw new RuntimeException("Error loading data", e);
         }
+        int wanted = shards;
+        if (current == wanted) {
+            VaultShards.deleteShards(fileName, wanted > 1 ? wanted : 0);
+            return false;
+        }
+        save(load(fileName), fileName);
+        logger.info("Converted {} from {} to {} shards", fileName, current, wanted);
+        return true;
+    }
+
+    // Returns the format version of the file, 0 for the original format and -1 if there is nothing to read.
+    // A sharded vault is as old as its oldest shard
+    private static int formatVersion(String fileName) {
+        File file = new File(fileName);
+        if (!file.exists() || file.length() == 0) {
+            return -1;
+        }
+        try {
+            int shardCount = VaultShards.readManifest(fileName);
+            if (shardCount == 0) {
+                return formatVersion(file.toPath());
+            }
+            int version = VERSION;
+            for (int i = 0; i < shardCount; i++) {
+                version = Math.min(version, formatVersion(VaultShards.shardPath(fileName, i, shardCount)));
+            }
+            return version;
+        } catch (IOException e) {
+            logger.error("Error loading data: ", e);
+            throw new RuntimeException("Error loading data", e);
+        }
+    }
+
+    private static int formatVersion(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (!hasMagic(channel)) {
+                return VERSION_LEGACY;
+            }
+            ByteBuffer version = ByteBuffer.allocate(1);
+            channel.read(version, MAGIC.length);
+            return version.get(0);
+        }
+    }
+
+    // Length-prefixed UTF-8; -1 stands for null
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Corrupted vault index");
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    // Passwords that are still in a mapped file under the same key, format and associated data are
+    // copied as ciphertext, the others are encrypted together on all cores
+    private static List<byte[]> ciphertextsOf(List<PasswordEntry> entries, CryptoContext context,
+                                              int shard, int shardCount) {
+        byte[][] ciphertexts = new byte[entries.size()][];
+        List<byte[]> plaintexts = new ArrayList<>();
+        List<byte[]> bindings = new ArrayList<>();
+        int[] positions = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            PasswordEntry entry = entries.get(i);
+            byte[] binding = passwordBinding(entry.getId(), shard, shardCount);
+            if (entry.getPasswordSource() instanceof MappedSecret secret && secret.getContext().encryptsLike(context)
+                    && Arrays.equals(secret.getAssociatedData(), binding)) {
+                ciphertexts[i] = secret.ciphertext();
+            } else if (entry.getPassword() != null) {
+                positions[plaintexts.size()] = i;
+                plaintexts.add(entry.getPassword().getBytes(StandardCharsets.UTF_8));
+                bindings.add(binding);
+            }
+        }
+        List<byte[]> encrypted = context.encryptAll(plaintexts, bindings);
+        for (int i = 0; i < encrypted.size(); i++) {
+            ciphertexts[positions[i]] = encrypted.get(i);
+        }
+        return Arrays.asList(ciphertexts);
+    }
+
+    // Associated data of a password: the shard it is stored in and the id of its entry
+    private static byte[] passwordBinding(long id, int shard, int shardCount) {
+        return ByteBuffer.allocate(2 * Integer.BYTES + Long.BYTES).putInt(shard).putInt(shardCount).putLong(id).array();
+    }
+
+    // Associated data of the index: the header of its file and the shard it is stored in
+    private static byte[] indexBinding(byte[] header, int shard, int shardCount) {
+        return ByteBuffer.allocate(HEADER_SIZE + 2 * Integer.BYTES).put(header).putInt(shard).putInt(shardCount).array();
+    }
+
+    private static int checkedPosition(CountingOutputStream out) throws IOException {
+        if (out.getCount() > Integer.MAX_VALUE - TRAILER_SIZE) {
+            throw new IOException("Vault file exceeds the maximum size of 2 GB");
+        }
+        return (int) out.getCount();
+    }
+
+    private static boolean hasMagic(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE + TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+        channel.read(header, 0);
+        return Arrays.equals(header.array(), MAGIC);
+    }
+
+    private static void loadMapped(FileChannel channel, Batcher batcher) throws Exception {
+        try (IndexReader reader = IndexReader.open(channel, 0, 1)) {
+            // Includes the time the batch consumer takes
+            long parseStart = System.nanoTime();
+            while (reader.hasNext()) {
+                batcher.add(reader.next());
+            }
+            PARSE_TIMER.recordSince(parseStart);
+        }
+    }
+
+    // Decrypts the indexes of all shards on a core each, then merges their entries into the order of
+    // their ids, which is the order they were added in: a shard is saved in that order, so the next
+    // entry is always at the head of one of them. Entries are parsed as they are handed over, so the
+    // first batch comes as early as from a single file
+    private static void loadShards(String fileName, int shardCount, Batcher batcher) throws Exception {
+        List<Callable<IndexReader>> tasks = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            int number = i;
+            Path shard = VaultShards.shardPath(fileName, i, shardCount);
+            tasks.add(() -> {
+                try (FileChannel channel = FileChannel.open(shard, StandardOpenOption.READ)) {
+                    if (!hasMagic(channel)) {
+                        throw new IOException("Corrupted vault shard " + shard);
+                    }
+                    return IndexReader.open(channel, number, shardCount);
+                }
+            });
+        }
+        List<IndexReader> readers = runAll(tasks);
+        try {
+            long parseStart = System.nanoTime();
+            PasswordEntry[] heads = new PasswordEntry[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                heads[i] = readers.get(i).hasNext() ? readers.get(i).next() : null;
+            }
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < shardCount; i++) {
+                    if (heads[i] != null && (next < 0 || heads[i].getId() < heads[next].getId())) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                batcher.add(heads[next]);
+                heads[next] = readers.get(next).hasNext() ? readers.get(next).next() : null;
+            }
+            PARSE_TIMER.recordSince(parseStart);
+        } finally {
+            for (IndexReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    // Runs the tasks on the common fork-join pool and returns their results in order
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+        return results;
+    }
+
+    private static int checkedShards(int count) {
+        if (count < 1 || count > VaultShards.MAX_SHARDS) {
+            throw new IllegalArgumentException("Number of shards must be between 1 and "
+                    + VaultShards.MAX_SHARDS + ": " + count);
+        }
+        return count;
+    }
+
+    // Returns the inflated bytes positioned at their end, like a freshly decrypted buffer
+    private static ByteBuffer inflate(ByteBuffer compressed) throws IOException {
+        long start = System.nanoTime();
+        try (InflaterInputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(compressed.array(), 0, compressed.position()))) {
+            byte[] bytes = in.readAllBytes();
+            return ByteBuffer.wrap(bytes).position(bytes.length);
+        } finally {
+            INFLATE_TIMER.recordSince(start);
+        }
+    }
+
+    private static PasswordEntry readIndexRecord(ByteBuffer index, ByteBuffer buffer, int secretsEnd,
+                                                 CryptoContext context, LongFunction<byte[]> binding)
+            throws IOException {
+        PasswordEntry entry = new PasswordEntry();
+        entry.setId(index.getLong());
+        int offset = index.getInt();
+        int length = index.getInt();
+        entry.setService(readString(index));
+        entry.setUsername(readString(index));
+        attachSecret(entry, buffer, offset, length, secretsEnd, context, binding.apply(entry.getId()));
+        return entry;
+    }
+
+    private static PasswordEntry readIndexEntry(JsonReader reader, ByteBuffer buffer, int secretsEnd,
+                                                CryptoContext context) throws IOException {
+        PasswordEntry entry = new PasswordEntry();
+        int offset = 0;
+        int length = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id" -> entry.setId(reader.nextLong());
+                case "service" -> entry.setService(reader.nextString());
+                case "username" -> entry.setUsername(reader.nextString());
+                case "offset" -> offset = reader.nextInt();
+                case "length" -> length = reader.nextInt();
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        attachSecret(entry, buffer, offset, length, secretsEnd, context, null);
+        return entry;
+    }
+
+    private static void attachSecret(PasswordEntry entry, ByteBuffer buffer, int offset, int length,
+                                     int secretsEnd, CryptoContext context, byte[] associatedData)
+            throws IOException {
+        if (length >= 0) {
+            if (offset < HEADER_SIZE || offset + length > secretsEnd) {
+                throw new IOException("Corrupted vault index");
+            }
+            entry.setPasswordSource(new MappedSecret(buffer, offset, length, context, associatedData));
+        }
+    }
+
+    // Streams the earlier format: Base64 of the AES ciphertext of a JSON list
+    private static void loadLegacy(File file, Batcher batcher) throws IOException {
+        Cipher cipher = AESUtil.createCipher(Cipher.DECRYPT_MODE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             InputStream in = new CipherInputStream(
+                     Base64.getDecoder().wrap(
+                             new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE)),
+                     cipher)) {
+            VaultCodec.configured().read(in, batcher::add);
+        }
+    }
+
+    /**
+     * Writes a vault while the entries are still arriving, as a single file or as one file per shard
+     * and the manifest (see {@link VaultShards}). Shards that none of the changed entries belong to are
+     * left as they are. Shards are committed in parallel, before the manifest; closing a writer that
+     * was not committed discards the partial files.
+     */
+    public static final class Writer implements AutoCloseable {
+        private final String fileName;
+        private final int shardCount;
+        // One per shard; null for a shard that is kept as it is
+        private final VaultFileWriter[] files;
+        private int count;
+
+        private Writer(String fileName, int compressionLevel, int shardCount, Set<Long> changedIds) {
+            this.fileName = fileName;
+            this.shardCount = shardCount;
+            this.files = new VaultFileWriter[shardCount];
+            if (shardCount == 1) {
+                files[0] = new VaultFileWriter(fileName, compressionLevel, 0, 1);
+                return;
+            }
+            try {
+                boolean[] changed = new boolean[shardCount];
+                boolean sameLayout = changedIds != null && VaultShards.readManifest(fileName) == shardCount;
+                if (sameLayout) {
+                    for (long id : changedIds) {
+                        changed[VaultShards.shardOf(id, shardCount)] = true;
+                    }
+                }
+                for (int i = 0; i < shardCount; i++) {
+                    Path shard = VaultShards.shardPath(fileName, i, shardCount);
+                    if (!sameLayout || changed[i] || !Files.exists(shard)) {
+                        files[i] = new VaultFileWriter(shard.toString(), compressionLevel, i, shardCount);
+                    }
+                }
+            } catch (Exception e) {
+                close();
+                logger.error("Error saving data to {}: ", fileName, e);
+                throw e instanceof RuntimeException runtimeException
+                        ? runtimeException : new RuntimeException("Error saving data", e);
+            }
+        }
+
+        /**
+         * Encrypts the passwords of the given entries and appends them to their file.
+         */
+        public void add(List<PasswordEntry> entries) {
+            if (shardCount == 1) {
+                files[0].add(entries);
+            } else {
+                List<List<PasswordEntry>> byShard = new ArrayList<>(shardCount);
+                for (int i = 0; i < shardCount; i++) {
+                    byShard.add(new ArrayList<>());
+                }
+                for (PasswordEntry entry : entries) {
+                    byShard.get(VaultShards.shardOf(entry.getId(), shardCount)).add(entry);
+                }
+                for (int i = 0; i < shardCount; i++) {
+                    if (files[i] != null && !byShard.get(i).isEmpty()) {
+                        files[i].add(byShard.get(i));
+                    }
+                }
+            }
+            count += entries.size();
+        }
+
+        /**
+         * @return the number of entries added so far, including those of shards that are kept
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Commits every file that was written and, in the sharded layout, then the manifest.
+         * Shards of another layout are removed afterwards.
+         */
+        public void commit() {
+            if (shardCount == 1) {
+                files[0].commit();
+                VaultShards.deleteShards(fileName, 0);
+                return;
+            }
+            try {
+                List<Callable<Void>> commits = new ArrayList<>();
+                for (VaultFileWriter file : files) {
+                    if (file != null) {
+                        commits.add(() -> {
+                            file.commit();
+                            return null;
+                        });
+                    }
+                }
+                runAll(commits);
+                if (VaultShards.readManifest(fileName) != shardCount) {
+                    VaultShards.writeManifest(fileName, shardCount);
+                }
+            } catch (Exception e) {
+                close();
+                logger.error("Error saving data to {}: ", fileName, e);
+                throw e instanceof RuntimeException runtimeException
+                        ? runtimeException : new RuntimeException("Error saving data", e);
+            }
+            VaultShards.deleteShards(fileName, shardCount);
+            logger.info("Data successfully written to {} shards, records: {}", shardCount, count);
+        }
+
+        /**
+         * Discards the partial files unless they were committed.
+         */
+        @Override
+        public void close() {
+            for (VaultFileWriter file : files) {
+                if (file != null) {
+                    file.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a vault file in the current format while the entries are still arriving.
+     * Passwords are encrypted in parallel, one batch at a time, and written right away; only the
+     * index records (id, position, service, username) are kept until {@link #commit()} encrypts
+     * them behind the passwords. Both are bound to the shard the file holds (0 of 1 for a single
+     * file). The file is written next to the target and moved over it on
+     * commit, so entries still backed by the mapping of the old file stay readable. Closing a
+     * writer that was not committed discards the partial file.
+     */
+    private static final class VaultFileWriter implements AutoCloseable {
+        private final String fileName;
+        private final Path target;
+        private final Path temp;
+        private final int compressionLevel;
+        private final int shard;
+        private final int shardCount;
+        private final byte[] header;
+        private final CryptoContext context = AESUtil.getContext();
+        private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        private final DataOutputStream indexRecords = new DataOutputStream(indexBytes);
+        private FileChannel channel;
+        private CountingOutputStream out;
+        private int count;
+        private boolean committed;
+        private boolean closed;
+
+        private VaultFileWriter(String fileName, int compressionLevel, int shard, int shardCount) {
+            if (compressionLevel < 0 || compressionLevel > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Compression level must be between 0 and 9: " + compressionLevel);
+            }
+            this.fileName = fileName;
+            this.target = Path.of(fileName);
+            this.temp = Path.of(fileName + TEMP_SUFFIX);
+            this.compressionLevel = compressionLevel;
+            this.shard = shard;
+            this.shardCount = shardCount;
+            this.header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC)
+                    .put(new byte[]{VERSION, compressionLevel > 0 ? FLAG_DEFLATE : 0, 0, 0}).array();
+            try {
+                logger.info("Saving data to a file: {}", fileName);
+                if (Files.exists(target) && !Files.isWritable(target)) {
+                    throw new AccessDeniedException(fileName);
+                }
+                channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                out = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+                out.write(header);
+            } catch (Exception e) {
+                throw failed(e);
+            }
+        }
+
+        /**
+         * Encrypts the passwords of the given entries and appends them to the file.
+         */
+        public void add(List<PasswordEntry> entries) {
+            checkOpen();
+            try {
+                for (int from = 0; from < entries.size(); from += ENCRYPT_BATCH_SIZE) {
+                    List<PasswordEntry> batch = entries.subList(from, Math.min(from + ENCRYPT_BATCH_SIZE, entries.size()));
+                    long encryptStart = System.nanoTime();
+                    List<byte[]> ciphertexts = ciphertextsOf(batch, context, shard, shardCount);
+                    ENCRYPT_TIMER.recordSince(encryptStart);
+                    for (int i = 0; i < batch.size(); i++) {
+                        PasswordEntry entry = batch.get(i);
+                        byte[] ciphertext = ciphertexts.get(i);
+                        indexRecords.writeLong(entry.getId());
+                        indexRecords.writeInt(checkedPosition(out));
+                        indexRecords.writeInt(ciphertext != null ? ciphertext.length : -1);
+                        writeString(indexRecords, entry.getService());
+                        writeString(indexRecords, entry.getUsername());
+                        if (ciphertext != null) {
+                            out.write(ciphertext);
+                        }
+                    }
+                    count += batch.size();
+                }
+            } catch (Exception e) {
+                throw failed(e);
+            }
+        }
+
+        /**
+         * Writes the index, forces the file to disk and moves it over the target.
+         */
+        public void commit() {
+            checkOpen();
+            try {
+                int indexOffset = checkedPosition(out);
+                long serializeStart = System.nanoTime();
+                Cipher cipher = context.newCipher(Cipher.ENCRYPT_MODE, indexBinding(header, shard, shardCount));
+                out.write(cipher.getIV());
+                OutputStream encrypted = new CipherOutputStream(out, cipher);
+                boolean deflate = compressionLevel > 0;
+                Deflater deflater = deflate ? new Deflater(compressionLevel) : null;
+                // Closing the data stream finishes the deflater and the cipher; the counting stream itself stays open
+                try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                        deflate ? new DeflaterOutputStream(encrypted, deflater, BUFFER_SIZE) : encrypted, BUFFER_SIZE))) {
+                    index.writeInt(count);
+                    indexBytes.writeTo(index);
+                } finally {
+                    if (deflater != null) {
+                        deflater.end();
+                    }
+                }
+                SERIALIZE_TIMER.recordSince(serializeStart);
+                int indexLength = checkedPosition(out) - indexOffset;
+                out.write(ByteBuffer.allocate(TRAILER_SIZE).putLong(indexOffset).putInt(indexLength).array());
+
+                long writeStart = System.nanoTime();
+                out.flush();
+                channel.force(false);
+                channel.close();
+                WRITE_TIMER.recordSince(writeStart);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                committed = true;
+                logger.info("Data successfully written to file, records: {}", count);
+            } catch (Exception e) {
+                throw failed(e);
+            }
+        }
+
+        /**
+         * Discards the partial file unless the writer was committed.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (committed) {
+                return;
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                logger.warn("Could not remove {}", temp, e);
+            }
+        }
+
+        private void checkOpen() {
+            if (committed || closed) {
+                throw new IllegalStateException("Vault writer is closed");
+            }
+        }
+
+        private RuntimeException failed(Exception e) {
+            close();
+            logger.error("Error saving data to {}: ", fileName, e);
+            return new RuntimeException("Error saving data", e);
+        }
+    }
+
+    /**
+     * The entries of a mapped vault file, parsed one at a time from its decrypted index.
+     * The passwords stay in the mapping, which remains valid after the channel is closed.
+     */
+    private static final class IndexReader implements AutoCloseable {
+        private final MappedByteBuffer buffer;
+        private final int secretsEnd;
+        private final CryptoContext context;
+        // The associated data of the password of an entry, by its id; null in the formats without any
+        private final LongFunction<byte[]> binding;
+        // The binary index and the records left in it, or the reader of a JSON index
+        private final ByteBuffer index;
+        private int remaining;
+        private final JsonReader json;
+        private boolean ended;
+
+        private IndexReader(MappedByteBuffer buffer, int secretsEnd, CryptoContext context,
+                            LongFunction<byte[]> binding, ByteBuffer index, JsonReader json) {
+            this.buffer = buffer;
+            this.secretsEnd = secretsEnd;
+            this.context = context;
+            this.binding = binding;
+            this.index = index;
+            this.json = json;
+        }
+
+        // Maps the file, which holds the given shard (0 of 1 for a single file), and decrypts its index
+        static IndexReader open(FileChannel channel, int shard, int shardCount) throws Exception {
+            long readStart = System.nanoTime();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Vault file exceeds the maximum size of 2 GB");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte version = buffer.get(MAGIC.length);
+            byte flags = buffer.get(MAGIC.length + 1);
+            if (version != VERSION && version != VERSION_UNBOUND && version != VERSION_ECB
+                    && version != VERSION_JSON_INDEX) {
+                throw new IOException("Unsupported vault version: " + version);
+            }
+            long indexOffset = buffer.getLong((int) size - TRAILER_SIZE);
+            int indexLength = buffer.getInt((int) size - Integer.BYTES);
+            if (indexOffset < HEADER_SIZE || indexLength < 0 || indexOffset + indexLength != size - TRAILER_SIZE) {
+                throw new IOException("Corrupted vault index");
+            }
+
+            READ_TIMER.recordSince(readStart);
+
+            long decryptStart = System.nanoTime();
+            CryptoContext context = version == VERSION || version == VERSION_UNBOUND
+                    ? AESUtil.getContext() : AESUtil.getContext().legacy();
+            byte[] associatedData = null;
+            LongFunction<byte[]> binding = id -> null;
+            if (version == VERSION) {
+                byte[] header = new byte[HEADER_SIZE];
+                buffer.get(0, header);
+                associatedData = indexBinding(header, shard, shardCount);
+                binding = id -> passwordBinding(id, shard, shardCount);
+            }
+            ByteBuffer index = context.decrypt(buffer.slice((int) indexOffset, indexLength), associatedData);
+            DECRYPT_TIMER.recordSince(decryptStart);
+            if ((flags & FLAG_DEFLATE) != 0) {
+                index = inflate(index);
+            }
+            if (version != VERSION_JSON_INDEX) {
+                index.flip();
+                IndexReader reader = new IndexReader(buffer, (int) indexOffset, context, binding, index, null);
+                reader.remaining = index.getInt();
+                return reader;
+            }
+            JsonReader json = new JsonReader(new InputStreamReader(
+                    new ByteArrayInputStream(index.array(), 0, index.position()), StandardCharsets.UTF_8));
+            json.beginArray();
+            return new IndexReader(buffer, (int) indexOffset, context, binding, null, json);
+        }
+
+        boolean hasNext() throws IOException {
+            if (json == null) {
+                return remaining > 0;
+            }
+            if (ended) {
+                return false;
+            }
+            if (json.hasNext()) {
+                return true;
+            }
+            json.endArray();
+            ended = true;
+            return false;
+        }
+
+        PasswordEntry next() throws IOException {
+            if (json == null) {
+                remaining--;
+                return readIndexRecord(index, buffer, secretsEnd, context, binding);
+            }
+            return readIndexEntry(json, buffer, secretsEnd, context);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (json != null) {
+                json.close();
+            }
+        }
+    }
+
+    /**
+     * Collects loaded entries into batches of a fixed size.
+     */
+    private static final class Batcher {
+        private final int batchSize;
+        private final Consumer<List<PasswordEntry>> consumer;
+        private List<PasswordEntry> batch = new ArrayList<>();
+        private int count;
+
+        private Batcher(int batchSize, Consumer<List<PasswordEntry>> consumer) {
+            this.batchSize = batchSize;
+            this.consumer = consumer;
+        }
+
+        private void add(PasswordEntry entry) {
+            batch.add(entry);
+            count++;
+            if (batch.size() >= batchSize) {
+                consumer.accept(batch);
+                batch = new ArrayList<>();
+            }
+        }
+
+        private void finish() {
+            if (!batch.isEmpty()) {
+                consumer.accept(batch);
+                batch = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes written through it. Closing it only flushes, so that
+     * wrapping streams (like the index cipher stream) can be closed early.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private long getCount() {
+            return count;
+        }
     }
-}
\ No newline at end of file
+}
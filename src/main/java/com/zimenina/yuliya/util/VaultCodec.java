@@ -0,0 +1,86 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.function.Consumer;
+
+/**
+ * Turns lists of password entries into JSON and back.
+ * The plain JSON files of {@link JsonUtils} and the legacy format of {@link Storage} both go
+ * through the codec named by the system property {@code pm.codec}: {@code jackson} (the default,
+ * faster in {@code CodecBenchmark}) or {@code gson}. Further codecs can be added as services of this interface
+ * ({@code META-INF/services/com.zimenina.yuliya.util.VaultCodec}) and chosen by their name.
+ * All codecs read and write the same document: an array of objects with the fields
+ * {@code id}, {@code service}, {@code username}, {@code password} and {@code isPasswordVisible}.
+ */
+public interface VaultCodec {
+
+    /**
+     * Name under which the codec is selected.
+     */
+    String name();
+
+    /**
+     * Writes the entries as a JSON array. The stream is flushed but not closed.
+     */
+    void write(List<PasswordEntry> entries, OutputStream out) throws IOException;
+
+    /**
+     * Reads a JSON array and hands over each entry as soon as it is parsed.
+     * A {@code null} or empty document yields no entries. The stream is not closed.
+     */
+    void read(InputStream in, Consumer<PasswordEntry> consumer) throws IOException;
+
+    /**
+     * Reads a JSON array into a list.
+     */
+    default List<PasswordEntry> read(InputStream in) throws IOException {
+        List<PasswordEntry> entries = new ArrayList<>();
+        read(in, entries::add);
+        return entries;
+    }
+
+    /**
+     * Returns the codec selected with {@code pm.codec}.
+     */
+    static VaultCodec configured() {
+        return Holder.CONFIGURED;
+    }
+
+    /**
+     * Returns the codec with the given name.
+     *
+     * @throws IllegalArgumentException if no codec has that name
+     */
+    static VaultCodec forName(String name) {
+        switch (name) {
+            case GsonVaultCodec.NAME:
+                return new GsonVaultCodec();
+            case JacksonVaultCodec.NAME:
+                return new JacksonVaultCodec();
+            default:
+                for (VaultCodec codec : ServiceLoader.load(VaultCodec.class)) {
+                    if (codec.name().equals(name)) {
+                        return codec;
+                    }
+                }
+                throw new IllegalArgumentException("Unknown vault codec: " + name);
+        }
+    }
+
+    /**
+     * Resolves the configured codec once, on first use.
+     */
+    final class Holder {
+        private static final VaultCodec CONFIGURED = forName(System.getProperty("pm.codec", JacksonVaultCodec.NAME));
+
+        private Holder() {
+        }
+    }
+}
@@ -0,0 +1,852 @@
+package com.zimenina.yuliya.util;
+
+import com.google.gson.Gson;
+import com.zimenina.yuliya.metrics.Counter;
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
+import com.zimenina.yuliya.model.PasswordEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Log-structured persistence for the password vault.
+ * The vault is a snapshot written by {@link Storage} plus an append-only log next to it
+ * ("data.json.log"). Every add, edit or delete becomes one encrypted record in the log,
+ * so a save only costs as much as the number of changes since the last one. A record is a line
+ * with the format version, a colon and the Base64 of the record encrypted by {@link CryptoContext};
+ * lines without a version were written in the original format and are still read.
+ * Records address entries by id and are idempotent, which lets the background compactor
+ * replace the snapshot before it trims the log without risking a double-applied change.
+ * Passwords of entries loaded from the snapshot stay encrypted in the file (see {@link MappedSecret});
+ * those read from the log or recorded as changed are moved into a {@link SecretStore}, off the
+ * heap, and the entries keep a handle. A password is freed when its entry is replaced or removed,
+ * or after the snapshot being written, and the store is wiped when the vault is closed.
+ * What loading needs no key for can be done in advance with {@link #prefetch()}.
+ */
+public class VaultLog {
+    private static final Logger logger = LoggerFactory.getLogger(VaultLog.class);
+    private static final Gson gson = new Gson();
+    private static final String LOG_SUFFIX = ".log";
+    // Written in front of every record; Base64 has no colon, so records of the original format have none
+    private static final String RECORD_PREFIX = "2:";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String REKEY_SUFFIX = ".rekey";
+    private static final String DAMAGED_SUFFIX = ".damaged";
+    private static final String OP_PUT = "PUT";
+    private static final String OP_DELETE = "DELETE";
+    // Compaction is not worth it for a handful of records
+    private static final int MIN_COMPACTION_RECORDS = 64;
+    // Entries handed to the snapshot writer at once by addAll
+    private static final int BULK_BATCH_SIZE = 8192;
+    private static final Timer LOAD_TIMER = Metrics.timer("vault.load");
+    private static final Timer PREFETCH_TIMER = Metrics.timer("vault.prefetch");
+    private static final Timer FLUSH_TIMER = Metrics.timer("vault.flush");
+    private static final Timer COMPACTION_TIMER = Metrics.timer("vault.compaction");
+    private static final Timer BULK_ADD_TIMER = Metrics.timer("vault.bulkAdd");
+    private static final Counter APPENDED_RECORDS = Metrics.counter("vault.log.appendedRecords");
+
+    private final Path snapshotPath;
+    private final Path logPath;
+    private final Object lock = new Object();
+    // Held while the log file is written, so appends and the compactor's trim never overlap;
+    // recording changes only needs the lock and is not blocked by a slow write
+    private final Object writeLock = new Object();
+    private final List<Record> pending = new ArrayList<>();
+    // The entries as of the last recorded change; compaction snapshots these, not a list handed in
+    // by the caller, so a change recorded while a save is running can never be trimmed unseen
+    private final Map<Long, PasswordEntry> live = new LinkedHashMap<>();
+    // Passwords of the live entries; those of replaced or removed entries are freed right away, so
+    // readers of an old entry get an IllegalStateException and drop it, like a removed one
+    private final SecretStore secrets = new SecretStore();
+    // Passwords of replaced or removed entries that the snapshot being written still holds, freed
+    // once it is done like the daemon frees those of a snapshot once a newer one is published
+    private final List<SecretStore.Secret> retired = new ArrayList<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "vault-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long nextId = 1;
+    private int snapshotRecords;
+    private int logRecords;
+    private long logSize;
+    // The id of every record in the log, in log order; a compaction only has to rewrite their shards
+    private final List<Long> loggedIds = new ArrayList<>();
+    private boolean compactionScheduled;
+    // Set from the moment addAll is called, so no compaction with a copy taken before it can follow it
+    private boolean addingAll;
+    private boolean loaded;
+    private Listener listener;
+    // The log as read by prefetch, used by load if the file is still the same
+    private byte[] prefetchedLog;
+    private FileTime prefetchedLogTime;
+
+    /**
+     * A single change in the log: the new state of an entry or its removal.
+     */
+    private static final class Record {
+        private String op;
+        private long id;
+        private PasswordEntry entry;
+
+        private Record(String op, long id, PasswordEntry entry) {
+            this.op = op;
+            this.id = id;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Produces entries one at a time, e.g. while parsing a file.
+     */
+    @FunctionalInterface
+    public interface EntrySource {
+        void forEach(Consumer<PasswordEntry> consumer) throws IOException;
+    }
+
+    /**
+     * Follows the entries of the vault, e.g. to keep a copy of them elsewhere.
+     * It is called with the vault's lock held, in the order the changes were made, and only
+     * ever receives copies; implementations should hand the work to another thread and return.
+     */
+    public interface Listener {
+        // All entries, after the vault was loaded or entries were added in bulk
+        void reset(List<PasswordEntry> entries);
+
+        // An entry was added or changed
+        void put(PasswordEntry entry);
+
+        // The entry with this id was removed
+        void deleted(long id);
+    }
+
+    private VaultLog(Path snapshotPath) {
+        this.snapshotPath = snapshotPath;
+        this.logPath = Path.of(snapshotPath + LOG_SUFFIX);
+    }
+
+    /**
+     * Opens the vault stored under the given snapshot file name.
+     * @param fileName the snapshot file, e.g. "data.json"
+     */
+    public static VaultLog open(String fileName) {
+        return new VaultLog(Path.of(fileName));
+    }
+
+    /**
+     * Does what {@link #load} can do without the key, while the user is still typing the master
+     * password: the log is read into memory and the snapshot into the page cache, and the cipher and
+     * the record parser are used once with a throwaway key, so their classes are loaded and initialized.
+     * A log that changes before the vault is loaded is read again.
+     */
+    public void prefetch() {
+        long start = System.nanoTime();
+        synchronized (lock) {
+            try {
+                if (Files.exists(logPath)) {
+                    // Time first: a change after it gives the file a different time
+                    prefetchedLogTime = Files.getLastModifiedTime(logPath);
+                    prefetchedLog = Files.readAllBytes(logPath);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error loading data", e);
+            }
+            long snapshotSize = Storage.prefetch(snapshotPath.toString());
+            warmUp();
+            PREFETCH_TIMER.recordSince(start);
+            logger.info("Vault prefetched: {} bytes of snapshot, {} bytes of log in {} ms", snapshotSize,
+                    prefetchedLog != null ? prefetchedLog.length : 0, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    /**
+     * Loads the snapshot and replays the log on top of it.
+     * Snapshots in an earlier file format are upgraded first (see {@link Storage#upgrade(String)}),
+     * and a {@link #rekey} that was interrupted is finished or undone.
+     * Snapshots written before the log existed have no entry ids; they are assigned
+     * here and the snapshot is rewritten once, so that log records can refer to them.
+     * @return the current list of password entries
+     */
+    public List<PasswordEntry> load() {
+        List<PasswordEntry> result = new ArrayList<>();
+        load(Integer.MAX_VALUE, result::addAll);
+        return result;
+    }
+
+    /**
+     * Loads the vault and hands the entries over in batches while the snapshot is still being read.
+     * The log is read first, so every snapshot entry is replaced or dropped according to its
+     * last record before it is handed over and no batch has to be corrected afterwards.
+     * Entries that exist only in the log follow at the end. Changes can be recorded and
+     * flushed only after this method returns.
+     * @param batchSize the number of entries per batch
+     * @param consumer receives each batch on the calling thread
+     */
+    public void load(int batchSize, Consumer<List<PasswordEntry>> consumer) {
+        long start = System.nanoTime();
+        synchronized (lock) {
+            finishRekey();
+            // One-time migration of snapshots written in an earlier format
+            Storage.upgrade(snapshotPath.toString());
+            Map<Long, Record> changes = readLog();
+            Map<Long, PasswordEntry> entries = new LinkedHashMap<>();
+            List<PasswordEntry> held = new ArrayList<>();
+            boolean[] missingIds = {false};
+            int[] emitted = {0};
+            snapshotRecords = Storage.load(snapshotPath.toString(), batchSize, batch -> {
+                List<PasswordEntry> current = new ArrayList<>(batch.size());
+                for (PasswordEntry entry : batch) {
+                    if (!missingIds[0] && (entry.getId() <= 0 || entries.containsKey(entry.getId()))) {
+                        // From here on ids are not trustworthy; the rest is handed over after the migration
+                        missingIds[0] = true;
+                    }
+                    Record change = missingIds[0] ? null : changes.remove(entry.getId());
+                    if (change != null && OP_DELETE.equals(change.op)) {
+                        continue;
+                    }
+                    PasswordEntry loadedEntry = seal(change != null ? change.entry : entry);
+                    if (!missingIds[0]) {
+                        entries.put(loadedEntry.getId(), loadedEntry);
+                    }
+                    current.add(loadedEntry);
+                }
+                held.addAll(current);
+                if (!missingIds[0] && !current.isEmpty()) {
+                    emitted[0] = held.size();
+                    consumer.accept(current);
+                }
+            });
+            Map<Long, PasswordEntry> result = entries;
+            if (missingIds[0]) {
+                result = migrate(held);
+                emitBatches(held.subList(emitted[0], held.size()), batchSize, consumer);
+            } else {
+                List<PasswordEntry> added = new ArrayList<>();
+                for (Record change : changes.values()) {
+                    if (OP_PUT.equals(change.op)) {
+                        entries.put(change.id, seal(change.entry));
+                        added.add(change.entry);
+                    }
+                }
+                emitBatches(added, batchSize, consumer);
+            }
+            for (long id : result.keySet()) {
+                nextId = Math.max(nextId, id + 1);
+            }
+            live.clear();
+            live.putAll(result);
+            loaded = true;
+            if (listener != null) {
+                listener.reset(liveCopy());
+            }
+            LOAD_TIMER.recordSince(start);
+            logger.info("Vault loaded: {} snapshot records, {} log records, {} entries",
+                    snapshotRecords, logRecords, result.size());
+        }
+    }
+
+    /**
+     * Records that an entry was added or changed. The entry gets an id if it has none, and a
+     * password held as a String is moved off the heap; the vault keeps a copy sharing it.
+     * The password of the entry this one replaces is freed.
+     */
+    public void recordPut(PasswordEntry entry) {
+        synchronized (lock) {
+            if (entry.getId() <= 0) {
+                entry.setId(nextId++);
+            }
+            pending.add(new Record(OP_PUT, entry.getId(), copyOf(entry)));
+            PasswordEntry kept = snapshotCopyOf(seal(entry));
+            release(live.put(entry.getId(), kept), kept);
+            if (listener != null) {
+                listener.put(snapshotCopyOf(kept));
+            }
+        }
+    }
+
+    /**
+     * Records that an entry was removed, and frees its password.
+     */
+    public void recordDelete(PasswordEntry entry) {
+        synchronized (lock) {
+            if (entry.getId() > 0) {
+                release(live.remove(entry.getId()), null);
+                pending.add(new Record(OP_DELETE, entry.getId(), null));
+                if (listener != null) {
+                    listener.deleted(entry.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the listener that follows the entries, or removes it with null.
+     * If the vault is already loaded, the listener first receives the current entries.
+     */
+    public void setListener(Listener listener) {
+        synchronized (lock) {
+            this.listener = listener;
+            if (listener != null && loaded) {
+                listener.reset(liveCopy());
+            }
+        }
+    }
+
+    /**
+     * @return the current entries, in vault order
+     */
+    public List<PasswordEntry> entries() {
+        synchronized (lock) {
+            return new ArrayList<>(live.values());
+        }
+    }
+
+    /**
+     * Adds a large number of entries with a single new snapshot instead of one log record each.
+     * The snapshot holds the current entries followed by the new ones; their passwords are
+     * encrypted and written in batches as the source produces them, so memory use does not grow
+     * with the passwords of the source. Runs on the compactor thread, which keeps compactions
+     * from overwriting the snapshot meanwhile; the calling thread waits for it.
+     * The new entries get ids and are returned as loaded back from the snapshot, with their
+     * passwords left in the file. If the source fails, the vault is left unchanged.
+     * @param source the entries to add
+     * @return the added entries
+     */
+    public List<PasswordEntry> addAll(EntrySource source) {
+        Future<List<PasswordEntry>> result;
+        synchronized (lock) {
+            if (!loaded) {
+                throw new IllegalStateException("Vault is not loaded");
+            }
+            if (addingAll) {
+                throw new IllegalStateException("Entries are already being added");
+            }
+            addingAll = true;
+            try {
+                result = compactor.submit(() -> writeWithAdded(source));
+            } catch (RuntimeException e) {
+                addingAll = false;
+                throw e;
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    // The snapshot is being replaced; returning early would hide the outcome
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            logger.error("Error saving data: ", e.getCause());
+            throw new RuntimeException("Error saving data", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if there are changes that have not been written yet
+     */
+    public boolean hasPendingChanges() {
+        synchronized (lock) {
+            return !pending.isEmpty();
+        }
+    }
+
+    /**
+     * Appends all pending records to the log. If most of the records in the vault are
+     * superseded afterwards, a compaction of the current entries is scheduled.
+     * Meant to run off the UI thread: changes recorded while the file is written wait for the next flush.
+     */
+    public void flush() {
+        long start = System.nanoTime();
+        synchronized (writeLock) {
+            List<Record> batch;
+            synchronized (lock) {
+                if (!loaded) {
+                    // Compacting against a list that failed to load would drop the vault contents
+                    throw new IllegalStateException("Vault is not loaded");
+                }
+                batch = new ArrayList<>(pending);
+                pending.clear();
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    append(batch);
+                } catch (RuntimeException e) {
+                    synchronized (lock) {
+                        pending.addAll(0, batch);
+                    }
+                    throw e;
+                }
+                APPENDED_RECORDS.add(batch.size());
+                logger.info("Appended {} records to the vault log", batch.size());
+            }
+            synchronized (lock) {
+                int liveRecords = live.size();
+                int deadRecords = snapshotRecords + logRecords - liveRecords;
+                if (!compactionScheduled && !addingAll
+                        && logRecords >= MIN_COMPACTION_RECORDS && deadRecords > liveRecords) {
+                    scheduleCompaction();
+                }
+            }
+        }
+        FLUSH_TIMER.recordSince(start);
+    }
+
+    /**
+     * Waits for a running compaction to finish, stops the compactor thread and zeroes the passwords
+     * held off the heap. Entries read from the log or recorded since the load can no longer return
+     * their password afterwards.
+     */
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        secrets.wipe();
+    }
+
+    /**
+     * Encrypts the vault with a new key and closes it. The entries, with the changes not yet flushed,
+     * are written to a single snapshot "data.json.rekey" with the new key; the key is stored, and only
+     * then does that file replace the vault and the log. An interruption before the key was stored
+     * leaves the vault as it was, one after it is finished by the next {@link #load}.
+     * A sharded vault is split up again after the move. Nothing else may use the vault meanwhile.
+     * @param vaultKey the new key, used by the session from here on
+     * @param storeKey stores the new key; if it throws, the vault and the session key are left as they were
+     * @return the number of entries encrypted
+     * @throws IllegalStateException if the vault has not been loaded
+     */
+    public int rekey(byte[] vaultKey, Runnable storeKey) {
+        List<PasswordEntry> plain;
+        synchronized (lock) {
+            if (!loaded) {
+                throw new IllegalStateException("The vault must be loaded before it is rekeyed");
+            }
+            // Closing wipes the passwords the vault holds off the heap, so they are read first
+            plain = new ArrayList<>(live.size());
+            for (PasswordEntry entry : live.values()) {
+                plain.add(copyOf(entry));
+            }
+        }
+        // No compaction may write the old key's snapshot afterwards
+        close();
+        CryptoContext previous = AESUtil.getContext();
+        Path staged = Path.of(snapshotPath + REKEY_SUFFIX);
+        AESUtil.setContext(new CryptoContext(vaultKey));
+        try {
+            Storage.saveSingleFile(plain, staged.toString());
+            storeKey.run();
+        } catch (RuntimeException e) {
+            AESUtil.setContext(previous);
+            try {
+                Files.deleteIfExists(staged);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        replaceWithRekeyed(staged);
+        // Also removes the shards still encrypted with the old key
+        Storage.upgrade(snapshotPath.toString());
+        logger.info("Vault {} encrypted with a new key, {} entries", snapshotPath, plain.size());
+        return plain.size();
+    }
+
+    // A rekey that was interrupted left its snapshot next to the vault. If the session key opens it, the
+    // key was stored and the snapshot replaces the vault; otherwise the old key is still the stored one.
+    // A snapshot that cannot be read at all is moved aside, so the vault still opens as it is
+    private void finishRekey() {
+        Path staged = Path.of(snapshotPath + REKEY_SUFFIX);
+        if (!Files.exists(staged)) {
+            return;
+        }
+        boolean rekeyed;
+        try {
+            rekeyed = Storage.canDecrypt(staged.toString());
+        } catch (RuntimeException e) {
+            Path aside = Path.of(staged + DAMAGED_SUFFIX);
+            logger.error("Cannot read {}, moving it to {} and loading the vault as it is: ", staged, aside, e);
+            try {
+                Files.move(staged, aside, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException moveFailed) {
+                logger.error("Failed to move {} aside: ", staged, moveFailed);
+            }
+            return;
+        }
+        if (rekeyed) {
+            logger.warn("Finishing the interrupted rekey of {}", snapshotPath);
+            replaceWithRekeyed(staged);
+        } else {
+            logger.warn("Removing {}, its key was never stored", staged);
+            try {
+                Files.delete(staged);
+            } catch (IOException e) {
+                // Checked again at the next load
+                logger.error("Failed to remove {}: ", staged, e);
+            }
+        }
+    }
+
+    // The log goes first: its records are in the new snapshot and could not be read with the new key
+    private void replaceWithRekeyed(Path staged) {
+        try {
+            Files.deleteIfExists(logPath);
+            Files.move(staged, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving data", e);
+        }
+    }
+
+    // Assigns ids to a snapshot written without them and rewrites it before any record refers to them
+    private Map<Long, PasswordEntry> migrate(List<PasswordEntry> snapshot) {
+        logger.info("Migrating {} to the vault log format", snapshotPath);
+        Map<Long, PasswordEntry> entries = new LinkedHashMap<>();
+        for (PasswordEntry entry : snapshot) {
+            entry.setId(nextId++);
+            entries.put(entry.getId(), entry);
+        }
+        Storage.save(snapshot, snapshotPath.toString());
+        try {
+            Files.deleteIfExists(logPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading data", e);
+        }
+        snapshotRecords = snapshot.size();
+        logRecords = 0;
+        logSize = 0;
+        loggedIds.clear();
+        return entries;
+    }
+
+    private static void emitBatches(List<PasswordEntry> entries, int batchSize,
+                                    Consumer<List<PasswordEntry>> consumer) {
+        for (int from = 0; from < entries.size(); from += batchSize) {
+            int to = (int) Math.min((long) from + batchSize, entries.size());
+            consumer.accept(new ArrayList<>(entries.subList(from, to)));
+        }
+    }
+
+    // Reads the log and keeps the last record of every id, in the order the entries were created.
+    // Records are decrypted in parallel; a last record without its line break was torn by
+    // an interrupted write and is cut off.
+    private Map<Long, Record> readLog() {
+        logRecords = 0;
+        logSize = 0;
+        loggedIds.clear();
+        Map<Long, Record> changes = new LinkedHashMap<>();
+        if (!Files.exists(logPath)) {
+            return changes;
+        }
+        try {
+            String content = new String(readLogBytes(), StandardCharsets.US_ASCII);
+            int completeLength = content.lastIndexOf('\n') + 1;
+            if (completeLength < content.length()) {
+                logger.warn("Dropping incomplete record at the end of {}", logPath);
+                try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+                    channel.truncate(completeLength);
+                }
+            }
+            List<String> lines = completeLength > 0
+                    ? List.of(content.substring(0, completeLength - 1).split("\n"))
+                    : List.of();
+            for (String json : decryptRecords(lines)) {
+                Record record = gson.fromJson(json, Record.class);
+                loggedIds.add(record.id);
+                Record previous = changes.get(record.id);
+                if (OP_PUT.equals(record.op) && (previous == null || OP_DELETE.equals(previous.op))) {
+                    // A new or re-created entry goes to the end, like a list add
+                    changes.remove(record.id);
+                }
+                changes.put(record.id, record);
+            }
+            logRecords = lines.size();
+            logSize = completeLength;
+            return changes;
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading data", e);
+        }
+    }
+
+    // Decrypts the records in parallel, those in the original format with the same key in that format
+    private static List<String> decryptRecords(List<String> lines) {
+        CryptoContext context = AESUtil.getContext();
+        List<String> current = new ArrayList<>(lines.size());
+        List<String> legacy = new ArrayList<>();
+        for (String line : lines) {
+            if (line.startsWith(RECORD_PREFIX)) {
+                current.add(line.substring(RECORD_PREFIX.length()));
+            } else {
+                legacy.add(line);
+            }
+        }
+        if (legacy.isEmpty()) {
+            return context.decryptAllFromBase64(current);
+        }
+        Iterator<String> decrypted = context.decryptAllFromBase64(current).iterator();
+        Iterator<String> decryptedLegacy = context.legacy().decryptAllFromBase64(legacy).iterator();
+        List<String> records = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            records.add(line.startsWith(RECORD_PREFIX) ? decrypted.next() : decryptedLegacy.next());
+        }
+        return records;
+    }
+
+    // The log as prefetched if the file has not changed since, otherwise as it is now
+    private byte[] readLogBytes() throws IOException {
+        byte[] bytes = prefetchedLog;
+        prefetchedLog = null;
+        if (bytes != null && bytes.length == Files.size(logPath)
+                && Files.getLastModifiedTime(logPath).equals(prefetchedLogTime)) {
+            return bytes;
+        }
+        return Files.readAllBytes(logPath);
+    }
+
+    // Encrypts, decrypts and parses a record with a throwaway key, as loading does with the real one
+    private static void warmUp() {
+        CryptoContext context = new CryptoContext(MasterKey.newVaultKey());
+        Record record = new Record(OP_PUT, 1, new PasswordEntry("service", "username", "password"));
+        List<String> lines = context.encryptAllToBase64(List.of(gson.toJson(record)));
+        gson.fromJson(context.decryptAllFromBase64(lines).get(0), Record.class);
+        context.decrypt(ByteBuffer.wrap(context.encrypt(new byte[64])));
+    }
+
+    private void append(List<Record> records) {
+        List<String> json = new ArrayList<>(records.size());
+        for (Record record : records) {
+            json.add(gson.toJson(record));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : AESUtil.getContext().encryptAllToBase64(json)) {
+            sb.append(RECORD_PREFIX).append(line).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            logger.error("Error saving data: ", e);
+            throw new RuntimeException("Error saving data", e);
+        }
+        synchronized (lock) {
+            logRecords += records.size();
+            logSize += bytes.length;
+            for (Record record : records) {
+                loggedIds.add(record.id);
+            }
+        }
+    }
+
+    // Must be called with both locks held, right after a flush, so the copy matches the log exactly
+    private void scheduleCompaction() {
+        List<PasswordEntry> copy = liveCopy();
+        long compactedSize = logSize;
+        int compactedRecords = logRecords;
+        Set<Long> changedIds = new HashSet<>(loggedIds);
+        compactionScheduled = true;
+        logger.info("Scheduling compaction: {} live entries, {} records in vault",
+                copy.size(), snapshotRecords + logRecords);
+        compactor.execute(() -> compact(copy, changedIds, compactedSize, compactedRecords));
+    }
+
+    // Runs on the compactor thread. The snapshot is replaced before the log is trimmed,
+    // so a crash in between only replays records that are already part of the snapshot.
+    private void compact(List<PasswordEntry> entries, Set<Long> changedIds, long compactedSize, int compactedRecords) {
+        long start = System.nanoTime();
+        try {
+            Storage.save(entries, snapshotPath.toString(), changedIds);
+            trimLog(compactedSize, compactedRecords, entries.size());
+            COMPACTION_TIMER.recordSince(start);
+        } catch (Exception e) {
+            logger.error("Error compacting vault: ", e);
+        } finally {
+            synchronized (lock) {
+                compactionScheduled = false;
+                freeRetired();
+            }
+        }
+    }
+
+    // Runs on the compactor thread. Changes recorded meanwhile are already in the copy or still
+    // pending, and records are idempotent, so the log is trimmed exactly like after a compaction.
+    private List<PasswordEntry> writeWithAdded(EntrySource source) throws IOException {
+        long start = System.nanoTime();
+        List<PasswordEntry> copy;
+        long compactedSize;
+        int compactedRecords;
+        long firstId;
+        synchronized (writeLock) {
+            synchronized (lock) {
+                copy = liveCopy();
+                compactedSize = logSize;
+                compactedRecords = logRecords;
+                firstId = nextId;
+            }
+        }
+        try {
+            int total;
+            try (Storage.Writer writer = Storage.writer(snapshotPath.toString())) {
+                writer.add(copy);
+                List<PasswordEntry> batch = new ArrayList<>(BULK_BATCH_SIZE);
+                source.forEach(entry -> {
+                    synchronized (lock) {
+                        entry.setId(nextId++);
+                    }
+                    batch.add(entry);
+                    if (batch.size() >= BULK_BATCH_SIZE) {
+                        writer.add(batch);
+                        batch.clear();
+                    }
+                });
+                writer.add(batch);
+                total = writer.getCount();
+                writer.commit();
+            }
+            trimLog(compactedSize, compactedRecords, total);
+
+            List<PasswordEntry> added = new ArrayList<>(total - copy.size());
+            Storage.load(snapshotPath.toString(), BULK_BATCH_SIZE, batch -> {
+                for (PasswordEntry entry : batch) {
+                    if (entry.getId() >= firstId) {
+                        added.add(entry);
+                    }
+                }
+            });
+            synchronized (lock) {
+                for (PasswordEntry entry : added) {
+                    live.put(entry.getId(), entry);
+                }
+                if (listener != null) {
+                    listener.reset(liveCopy());
+                }
+            }
+            BULK_ADD_TIMER.recordSince(start);
+            logger.info("Added {} entries with a new snapshot of {} entries", added.size(), total);
+            return added;
+        } finally {
+            synchronized (lock) {
+                addingAll = false;
+                freeRetired();
+            }
+        }
+    }
+
+    // Drops the first records of the log, which the snapshot just written already contains
+    private void trimLog(long compactedSize, int compactedRecords, int snapshotEntries) throws IOException {
+        synchronized (writeLock) {
+            synchronized (lock) {
+                Path tempLog = Path.of(logPath + TEMP_SUFFIX);
+                if (Files.exists(logPath)) {
+                    try (FileChannel source = FileChannel.open(logPath, StandardOpenOption.READ);
+                         FileChannel target = FileChannel.open(tempLog, StandardOpenOption.CREATE,
+                                 StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        long position = compactedSize;
+                        long end = source.size();
+                        while (position < end) {
+                            position += source.transferTo(position, end - position, target);
+                        }
+                        target.force(false);
+                    }
+                    Files.move(tempLog, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                snapshotRecords = snapshotEntries;
+                logRecords -= compactedRecords;
+                logSize -= compactedSize;
+                loggedIds.subList(0, compactedRecords).clear();
+                logger.info("Log trimmed: {} entries in snapshot, {} records left in log",
+                        snapshotRecords, logRecords);
+            }
+        }
+    }
+
+    private List<PasswordEntry> liveCopy() {
+        List<PasswordEntry> copy = new ArrayList<>(live.size());
+        for (PasswordEntry entry : live.values()) {
+            copy.add(snapshotCopyOf(entry));
+        }
+        return copy;
+    }
+
+    // Moves a password held as a String into the secret store
+    private PasswordEntry seal(PasswordEntry entry) {
+        if (entry.getPasswordSource() == null && entry.getPassword() != null) {
+            entry.setPasswordSource(secrets.put(entry.getPassword()));
+        }
+        return entry;
+    }
+
+    // Frees the password of an entry the vault no longer holds, unless its replacement shares it
+    private void release(PasswordEntry old, PasswordEntry replacement) {
+        if (old != null && old.getPasswordSource() instanceof SecretStore.Secret secret
+                && (replacement == null || replacement.getPasswordSource() != secret)) {
+            retired.add(secret);
+            freeRetired();
+        }
+    }
+
+    // Must be called with the lock held
+    private void freeRetired() {
+        if (!compactionScheduled && !addingAll) {
+            retired.forEach(SecretStore.Secret::free);
+            retired.clear();
+        }
+    }
+
+    // Log records carry the password itself
+    private static PasswordEntry copyOf(PasswordEntry entry) {
+        PasswordEntry copy = new PasswordEntry(entry.getService(), entry.getUsername(), entry.getPassword());
+        copy.setId(entry.getId());
+        return copy;
+    }
+
+    // Snapshot copies keep passwords that are not in memory where they are, to avoid decrypting them
+    private static PasswordEntry snapshotCopyOf(PasswordEntry entry) {
+        if (entry.getPasswordSource() == null) {
+            return copyOf(entry);
+        }
+        PasswordEntry copy = new PasswordEntry(entry.getService(), entry.getUsername(), null);
+        copy.setId(entry.getId());
+        copy.setPasswordSource(entry.getPasswordSource());
+        return copy;
+    }
+}
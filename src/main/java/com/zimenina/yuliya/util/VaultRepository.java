@@ -0,0 +1,251 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The password entries of the open vault, keyed by service (ignoring case) and username.
+ * Lookups, additions and removals take constant time, and a service and username can be
+ * added only once. Snapshots are immutable lists that readers on any thread can keep as long
+ * as they like; one is built on the first request after a change and shared until the next one.
+ * The repository never changes the values of an entry it holds: {@link #update} replaces the entry
+ * with a new one, so the entries of a snapshot keep the service, username and password they had.
+ * Persistence is left to {@link VaultLog}, which assigns entry ids; the table follows the
+ * repository through a {@link Listener}. All methods are thread-safe.
+ */
+public class VaultRepository {
+    private final Object lock = new Object();
+    // One node per entry, in the order the entries were added; a replaced entry keeps its node
+    private final Set<Node> order = new LinkedHashSet<>();
+    private final Map<PasswordEntry, Node> nodes = new IdentityHashMap<>();
+    // The first entry of each key. Vaults written before keys were enforced may hold an entry
+    // more than once; their keys are counted in duplicates and found by a scan when needed
+    private final Map<Key, PasswordEntry> byKey = new HashMap<>();
+    private final Map<Key, Integer> duplicates = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private List<PasswordEntry> snapshot = List.of();
+    private boolean snapshotStale;
+
+    /**
+     * Receives every change, on the thread that made it and in order. Called with the
+     * repository's lock held, so implementations must only record the change and return.
+     */
+    public interface Listener {
+        // Entries were appended in this order
+        void added(List<PasswordEntry> entries);
+
+        // An entry was removed
+        void removed(PasswordEntry entry);
+
+        // An entry was replaced by a new one in the same position
+        void replaced(PasswordEntry oldEntry, PasswordEntry newEntry);
+    }
+
+    private static final class Node {
+        private PasswordEntry entry;
+        private Key key;
+
+        private Node(PasswordEntry entry, Key key) {
+            this.entry = entry;
+            this.key = key;
+        }
+    }
+
+    private record Key(String service, String username) {
+        private static Key of(String service, String username) {
+            return new Key(service != null ? service.toLowerCase(Locale.ROOT) : "", username != null ? username : "");
+        }
+
+        private static Key of(PasswordEntry entry) {
+            return of(entry.getService(), entry.getUsername());
+        }
+    }
+
+    /**
+     * Adds a listener.
+     * @return the entries at the moment the listener was added; it receives every later change
+     */
+    public List<PasswordEntry> addListener(Listener listener) {
+        synchronized (lock) {
+            listeners.add(listener);
+            return snapshot();
+        }
+    }
+
+    /**
+     * Finds the entry with the given service, ignoring case, and username.
+     * @return the entry, or null if there is none
+     */
+    public PasswordEntry find(String service, String username) {
+        synchronized (lock) {
+            return byKey.get(Key.of(service, username));
+        }
+    }
+
+    /**
+     * Adds an entry unless one with the same service and username exists.
+     * @return true if the entry was added
+     */
+    public boolean add(PasswordEntry entry) {
+        synchronized (lock) {
+            Key key = Key.of(entry);
+            if (byKey.containsKey(key) || nodes.containsKey(entry)) {
+                return false;
+            }
+            insert(entry, key);
+            fireAdded(List.of(entry));
+            return true;
+        }
+    }
+
+    /**
+     * Adds entries read from the vault. Unlike {@link #add}, entries whose service and username
+     * are already present are kept, so no stored entry is hidden.
+     */
+    public void addLoaded(Collection<PasswordEntry> loaded) {
+        synchronized (lock) {
+            List<PasswordEntry> added = new ArrayList<>(loaded.size());
+            for (PasswordEntry entry : loaded) {
+                if (!nodes.containsKey(entry)) {
+                    insert(entry, Key.of(entry));
+                    added.add(entry);
+                }
+            }
+            if (!added.isEmpty()) {
+                fireAdded(added);
+            }
+        }
+    }
+
+    /**
+     * Replaces an entry with a copy that has the given values, the same id and the same position.
+     * @return the new entry, or null if the entry is not in the repository or another entry
+     *         already has the new service and username
+     */
+    public PasswordEntry update(PasswordEntry entry, String service, String username, String password) {
+        synchronized (lock) {
+            Node node = nodes.get(entry);
+            if (node == null) {
+                return null;
+            }
+            Key newKey = Key.of(service, username);
+            PasswordEntry holder = byKey.get(newKey);
+            if (holder != null && holder != entry && !newKey.equals(node.key)) {
+                return null;
+            }
+            PasswordEntry updated = new PasswordEntry(service, username, password);
+            updated.setId(entry.getId());
+            updated.setPasswordVisible(entry.isPasswordVisible());
+            unindex(node);
+            nodes.remove(entry);
+            node.entry = updated;
+            node.key = newKey;
+            nodes.put(updated, node);
+            index(node);
+            snapshotStale = true;
+            for (Listener listener : listeners) {
+                listener.replaced(entry, updated);
+            }
+            return updated;
+        }
+    }
+
+    /**
+     * Removes an entry.
+     * @return true if the entry was in the repository
+     */
+    public boolean remove(PasswordEntry entry) {
+        synchronized (lock) {
+            Node node = nodes.remove(entry);
+            if (node == null) {
+                return false;
+            }
+            order.remove(node);
+            unindex(node);
+            snapshotStale = true;
+            for (Listener listener : listeners) {
+                listener.removed(entry);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size() {
+        synchronized (lock) {
+            return nodes.size();
+        }
+    }
+
+    /**
+     * Returns the entries in the order they were added, as an immutable list.
+     * The list does not change when the repository does; take a new snapshot to see changes.
+     */
+    public List<PasswordEntry> snapshot() {
+        synchronized (lock) {
+            if (snapshotStale) {
+                List<PasswordEntry> current = new ArrayList<>(order.size());
+                for (Node node : order) {
+                    current.add(node.entry);
+                }
+                snapshot = List.copyOf(current);
+                snapshotStale = false;
+            }
+            return snapshot;
+        }
+    }
+
+    private void insert(PasswordEntry entry, Key key) {
+        Node node = new Node(entry, key);
+        order.add(node);
+        nodes.put(entry, node);
+        index(node);
+        snapshotStale = true;
+    }
+
+    private void index(Node node) {
+        if (byKey.putIfAbsent(node.key, node.entry) != null) {
+            duplicates.merge(node.key, 1, Integer::sum);
+        }
+    }
+
+    // Removes the node's entry from the key index; another entry with the same key takes its place
+    private void unindex(Node node) {
+        Integer count = duplicates.get(node.key);
+        if (count == null) {
+            byKey.remove(node.key);
+            return;
+        }
+        if (count == 1) {
+            duplicates.remove(node.key);
+        } else {
+            duplicates.put(node.key, count - 1);
+        }
+        if (byKey.get(node.key) == node.entry) {
+            for (Node other : order) {
+                if (other != node && other.key.equals(node.key)) {
+                    byKey.put(node.key, other.entry);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void fireAdded(List<PasswordEntry> added) {
+        for (Listener listener : listeners) {
+            listener.added(added);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.zimenina.yuliya.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * File layout of a vault split into shards, used by {@link Storage}.
+ * The vault file itself ("data.json") becomes a small manifest, and the entries are spread over
+ * "data.json.shard-0-of-4", "data.json.shard-1-of-4", ... by their id. Each shard is a complete vault
+ * file; the manifest only holds a magic, a version and the number of shards, so it is rewritten only
+ * when that number changes. The number is part of the shard names: a vault that changes its number of
+ * shards is written next to the old one, and moving the manifest in place switches from one to the other.
+ * An entry keeps its id for good, so editing it never moves it to another shard, and the ids of the
+ * changed entries tell which shards a save has to rewrite.
+ */
+final class VaultShards {
+    private static final Logger logger = LoggerFactory.getLogger(VaultShards.class);
+    private static final byte[] MAGIC = {'P', 'M', 'V', 'S'};
+    private static final byte VERSION = 1;
+    // Magic, version, three reserved bytes and the number of shards
+    private static final int MANIFEST_SIZE = 12;
+    private static final String SHARD_SUFFIX = ".shard-";
+    private static final String SHARD_NUMBER = "(\\d{1,3})-of-(\\d{1,3})";
+    private static final String TEMP_SUFFIX = ".tmp";
+    static final int MAX_SHARDS = 256;
+
+    private VaultShards() {
+    }
+
+    /**
+     * @return the shard the entry with this id belongs to
+     */
+    static int shardOf(long id, int shards) {
+        return (int) Math.floorMod(id, (long) shards);
+    }
+
+    /**
+     * @return the file of one shard of the vault with the given number of shards
+     */
+    static Path shardPath(String fileName, int shard, int shards) {
+        return Path.of(fileName + SHARD_SUFFIX + shard + "-of-" + shards);
+    }
+
+    /**
+     * @return the number of shards if the file is a manifest, 0 if it is missing or a single-file vault
+     */
+    static int readManifest(String fileName) throws IOException {
+        Path path = Path.of(fileName);
+        if (!Files.exists(path) || Files.size(path) != MANIFEST_SIZE) {
+            return 0;
+        }
+        ByteBuffer manifest = ByteBuffer.wrap(Files.readAllBytes(path));
+        byte[] magic = new byte[MAGIC.length];
+        manifest.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            return 0;
+        }
+        byte version = manifest.get();
+        int shards = manifest.getInt(MAGIC.length + 4);
+        if (version != VERSION || shards < 1 || shards > MAX_SHARDS) {
+            throw new IOException("Corrupted vault manifest");
+        }
+        return shards;
+    }
+
+    /**
+     * Writes the manifest next to the vault file and moves it over it. The shards must be complete
+     * by then: until the move, a crash leaves the previous layout.
+     */
+    static void writeManifest(String fileName, int shards) throws IOException {
+        Path target = Path.of(fileName);
+        Path temp = Path.of(fileName + TEMP_SUFFIX);
+        ByteBuffer manifest = ByteBuffer.allocate(MANIFEST_SIZE).put(MAGIC).put(VERSION).put(new byte[3]).putInt(shards);
+        manifest.flip();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (manifest.hasRemaining()) {
+                channel.write(manifest);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the shard files of every other number of shards than the given one (0 for a single-file
+     * vault), left over from an earlier layout or a switch that was interrupted.
+     * Entries still mapped from them stay readable.
+     */
+    static void deleteShards(String fileName, int shards) {
+        Path path = Path.of(fileName).toAbsolutePath();
+        String prefix = path.getFileName() + SHARD_SUFFIX;
+        Pattern number = Pattern.compile(SHARD_NUMBER);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path.getParent(), prefix + "*")) {
+            for (Path file : files) {
+                Matcher matcher = number.matcher(file.getFileName().toString().substring(prefix.length()));
+                if (matcher.matches() && Integer.parseInt(matcher.group(2)) != shards) {
+                    Files.delete(file);
+                    logger.info("Removed unused vault shard {}", file);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not remove unused shards of {}", fileName, e);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.zimenina.yuliya.util;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Bulk import and export of password entries as CSV or in the plain JSON format of {@link JsonUtils}.
+ * Both directions stream. An import parses, validates and de-duplicates the file row by row and
+ * commits it to the vault as one new snapshot ({@link VaultLog#addAll}), where the passwords are
+ * encrypted in parallel batches. An export writes one row per entry and decrypts each password
+ * only when its row is written. Apart from the vault itself, memory is bounded by one batch and
+ * an 8-byte hash per distinct entry, whatever the size of the file.
+ * CSV files need a header row. Columns are found by name, which covers the exports of most
+ * password managers (service/name/title/url, username/login_username/login/email, password/login_password).
+ */
+public final class VaultTransfer {
+    private static final Logger logger = LoggerFactory.getLogger(VaultTransfer.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Rejected rows reported individually; the counts are always complete
+    private static final int MAX_PROBLEMS = 100;
+    private static final List<String> SERVICE_COLUMNS =
+            List.of("service", "name", "title", "url", "login_uri", "website");
+    private static final List<String> USERNAME_COLUMNS = List.of("username", "login_username", "login", "user", "email");
+    private static final List<String> PASSWORD_COLUMNS = List.of("password", "login_password");
+
+    private VaultTransfer() {
+    }
+
+    /**
+     * File formats for import and export.
+     */
+    public enum Format {
+        CSV, JSON;
+
+        /**
+         * Chooses the format by file extension: ".csv" is CSV, anything else JSON.
+         */
+        public static Format of(Path file) {
+            return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv") ? CSV : JSON;
+        }
+    }
+
+    /**
+     * Outcome of an import.
+     * @param added entries added to the vault
+     * @param duplicates rows skipped because the vault or an earlier row has the same service and username
+     * @param rejected rows skipped because a service or password is missing
+     * @param problems the line (CSV) or entry (JSON) and reason of each rejected row, up to the first hundred
+     */
+    public record ImportResult(int added, int duplicates, int rejected, List<String> problems) {
+    }
+
+    /**
+     * Imports a CSV or JSON file, chosen by its extension, into the vault.
+     */
+    public static ImportResult importFile(VaultLog vault, Path file) {
+        return importFile(vault, file, Format.of(file));
+    }
+
+    /**
+     * Imports a file into the vault. Rows without a service or password are rejected, and rows whose
+     * service (ignoring case) and username are already in the vault or earlier in the file are skipped,
+     * so importing the same file twice adds nothing. Existing entries are never changed.
+     * @param vault a loaded vault
+     * @param file the file to read
+     * @param format the format of the file
+     */
+    public static ImportResult importFile(VaultLog vault, Path file, Format format) {
+        KeySet keys = new KeySet();
+        for (PasswordEntry entry : vault.entries()) {
+            keys.add(key(entry.getService(), entry.getUsername()));
+        }
+        int[] counts = new int[2];
+        List<String> problems = new ArrayList<>();
+        List<PasswordEntry> added = vault.addAll(consumer -> {
+            try (InputStream in = Files.newInputStream(file)) {
+                RowHandler handler = (row, service, username, password) -> {
+                    String problem = service == null || service.isBlank() ? "service is missing"
+                            : password == null || password.isEmpty() ? "password is missing"
+                            : null;
+                    if (problem != null) {
+                        counts[1]++;
+                        if (problems.size() < MAX_PROBLEMS) {
+                            problems.add((format == Format.CSV ? "line " : "entry ") + row + ": " + problem);
+                        }
+                        return;
+                    }
+                    String trimmedService = service.strip();
+                    String trimmedUsername = username != null ? username.strip() : "";
+                    if (!keys.add(key(trimmedService, trimmedUsername))) {
+                        counts[0]++;
+                        return;
+                    }
+                    consumer.accept(new PasswordEntry(trimmedService, trimmedUsername, password));
+                };
+                if (format == Format.CSV) {
+                    readCsv(in, handler);
+                } else {
+                    int[] row = {0};
+                    VaultCodec.configured().read(in, entry -> handler.accept(++row[0],
+                            entry.getService(), entry.getUsername(), entry.getPassword()));
+                }
+            }
+        });
+        ImportResult result = new ImportResult(added.size(), counts[0], counts[1], List.copyOf(problems));
+        logger.info("Imported {}: {} added, {} duplicates, {} rejected",
+                file, result.added(), result.duplicates(), result.rejected());
+        return result;
+    }
+
+    /**
+     * Exports the entries to a CSV or JSON file, chosen by its extension.
+     * @return the number of entries written
+     */
+    public static int exportFile(List<PasswordEntry> entries, Path file) {
+        return exportFile(entries, file, Format.of(file));
+    }
+
+    /**
+     * Exports the entries, with their passwords in plain text, to a file.
+     * The file is written next to the target and moved over it when complete. It is readable by
+     * its owner only, from before the first password is written.
+     * @return the number of entries written
+     */
+    public static int exportFile(List<PasswordEntry> entries, Path file, Format format) {
+        Path temp = Path.of(file + TEMP_SUFFIX);
+        try {
+            createOwnerOnly(temp);
+            try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.WRITE)) {
+                if (format == Format.CSV) {
+                    writeCsv(entries, out);
+                } else {
+                    VaultCodec.configured().write(entries, out);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Exported {} entries to {}", entries.size(), file);
+            return entries.size();
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            logger.error("Error saving data: ", e);
+            throw new RuntimeException("Error saving data", e);
+        }
+    }
+
+    // A file left over by an export that failed may have other permissions, so it is created anew
+    private static void createOwnerOnly(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            logger.warn("Could not restrict access to {}", file);
+            Files.createFile(file);
+        }
+    }
+
+    /**
+     * Receives one row of an imported file.
+     */
+    @FunctionalInterface
+    private interface RowHandler {
+        void accept(int row, String service, String username, String password);
+    }
+
+    private static void readCsv(InputStream in, RowHandler handler) throws IOException {
+        CsvReader reader = new CsvReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE));
+        List<String> header = reader.next();
+        if (header == null) {
+            return;
+        }
+        List<String> names = new ArrayList<>(header.size());
+        for (String name : header) {
+            names.add(name.strip().toLowerCase(Locale.ROOT));
+        }
+        int service = column(names, SERVICE_COLUMNS);
+        int username = column(names, USERNAME_COLUMNS);
+        int password = column(names, PASSWORD_COLUMNS);
+        if (service < 0 || password < 0) {
+            throw new IOException("The CSV header needs a service and a password column: " + header);
+        }
+        List<String> fields;
+        while ((fields = reader.next()) != null) {
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                continue;
+            }
+            handler.accept(reader.recordLine, field(fields, service), field(fields, username), field(fields, password));
+        }
+    }
+
+    private static int column(List<String> names, List<String> candidates) {
+        for (String candidate : candidates) {
+            int index = names.indexOf(candidate);
+            if (index >= 0) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static String field(List<String> fields, int index) {
+        return index >= 0 && index < fields.size() ? fields.get(index) : null;
+    }
+
+    private static void writeCsv(List<PasswordEntry> entries, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        writer.write("service,username,password\n");
+        for (PasswordEntry entry : entries) {
+            writeCsvField(writer, entry.getService());
+            writer.write(',');
+            writeCsvField(writer, entry.getUsername());
+            writer.write(',');
+            writeCsvField(writer, entry.getPassword());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    // Quotes a field when it would otherwise not read back unchanged
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = !value.isEmpty() && (Character.isWhitespace(value.charAt(0))
+                || Character.isWhitespace(value.charAt(value.length() - 1)));
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private static long key(String service, String username) {
+        // 64-bit FNV-1a; a collision would skip a row as a duplicate, at odds of about 1 in 10^9 for 150k rows
+        long hash = 0xcbf29ce484222325L;
+        String normalized = (service != null ? service.toLowerCase(Locale.ROOT) : "") + '\0'
+                + (username != null ? username : "");
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Reads RFC 4180 CSV one record at a time: quoted fields may contain commas, line breaks
+     * and doubled quotes; lines may end with LF or CRLF.
+     */
+    private static final class CsvReader {
+        private final Reader in;
+        private int line = 1;
+        private int recordLine;
+        private boolean first = true;
+
+        private CsvReader(Reader in) {
+            this.in = in;
+        }
+
+        // Returns the fields of the next record, or null at the end of the input
+        private List<String> next() throws IOException {
+            int c = in.read();
+            if (first && c == '\uFEFF') {
+                c = in.read();
+            }
+            first = false;
+            if (c == -1) {
+                return null;
+            }
+            recordLine = line;
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quoted field starting on line " + recordLine);
+                    }
+                    if (c == '"') {
+                        c = in.read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    } else if (c == '\n') {
+                        line++;
+                    }
+                    field.append((char) c);
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n' || c == -1) {
+                    if (c == '\n') {
+                        line++;
+                    }
+                    fields.add(field.toString());
+                    return fields;
+                } else if (c == '"' && field.isEmpty()) {
+                    quoted = true;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+                c = in.read();
+            }
+        }
+    }
+
+    /**
+     * Open-addressing set of 64-bit key hashes; zero marks a free slot.
+     */
+    private static final class KeySet {
+        private long[] slots = new long[1024];
+        private int size;
+
+        // Returns false if the key was already present
+        private boolean add(long key) {
+            if (key == 0) {
+                key = 1;
+            }
+            if (size * 2 >= slots.length) {
+                grow();
+            }
+            int mask = slots.length - 1;
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (slots[i] != 0) {
+                if (slots[i] == key) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[i] = key;
+            size++;
+            return true;
+        }
+
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            size = 0;
+            for (long key : old) {
+                if (key != 0) {
+                    add(key);
+                }
+            }
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package com.zimenina.yuliya;
 
 import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.CryptoContext;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -75,4 +80,24 @@ public class AESUtilTest {
 
         assertEquals("Master password not set", exception.getMessage());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testEncryptAllAndDecryptAllKeepOrder() {
+        // Enough values to be split across several fork-join tasks
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            data.add(TEST_DATA + i);
+        }
+        data.add(TEST_DATA);
+        data.add(TEST_DATA);
+        CryptoContext context = AESUtil.getContext();
+
+        List<String> encrypted = context.encryptAllToBase64(data);
+
+        // Every value comes back in its position, and equal values give different ciphertexts
+        assertEquals(data.size(), encrypted.size());
+        assertEquals(data.get(4321), context.decryptFromBase64(encrypted.get(4321)));
+        assertNotEquals(encrypted.get(5000), encrypted.get(5001));
+        assertEquals(data, context.decryptAllFromBase64(encrypted));
+    }
+}
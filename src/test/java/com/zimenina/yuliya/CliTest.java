@@ -0,0 +1,136 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.cli.Cli;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.JsonUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the command line, run in a separate JVM like a script would.
+ */
+public class CliTest {
+    private static final String MASTER_PASSWORD = "CliMasterPassword";
+
+    @TempDir
+    Path directory;
+
+    // Stores the master password in a home directory of its own
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.createDirectories(directory.resolve("home"));
+        Files.writeString(directory.resolve("home/password_manager.properties"),
+                "encryptedMasterPassword=" + AESUtil.encrypt(MASTER_PASSWORD, MASTER_PASSWORD) + "\n");
+    }
+
+    // Tests import, list, search, get, health and export against one vault
+    @Test
+    void testCommands() throws Exception {
+        JsonUtils.saveToJson(List.of(
+                new PasswordEntry("Gmail", "alice", "secret1"),
+                new PasswordEntry("GitHub", "alice", "secret2"),
+                new PasswordEntry("GitHub", "bob", "secret3")), directory.resolve("in.json").toString());
+
+        assertEquals(0, run(MASTER_PASSWORD, "import", "in.json").exitCode);
+        assertEquals("Gmail\talice\nGitHub\talice\nGitHub\tbob\n", run(MASTER_PASSWORD, "list").output);
+        assertEquals("Gmail\talice\n", run(MASTER_PASSWORD, "search", "gma").output);
+        assertEquals("secret1\n", run(MASTER_PASSWORD, "get", "gmail").output);
+        assertEquals("secret3\n", run(MASTER_PASSWORD, "get", "GitHub", "bob").output);
+        assertEquals(1, run(MASTER_PASSWORD, "get", "GitHub").exitCode);
+        Result health = run(MASTER_PASSWORD, "health");
+        assertEquals(1, health.exitCode);
+        assertEquals("Gmail\talice\tvery weak\nGitHub\talice\tvery weak\nGitHub\tbob\tvery weak\n", health.output);
+
+        assertEquals(0, run(MASTER_PASSWORD, "export", "out.json").exitCode);
+        List<PasswordEntry> exported = JsonUtils.loadFromJson(directory.resolve("out.json").toString());
+        assertEquals(3, exported.size());
+        assertEquals("secret2", exported.get(1).getPassword());
+    }
+
+    // Tests that a wrong password and a wrong command are refused
+    @Test
+    void testRefusesWrongPasswordAndUsage() throws Exception {
+        assertEquals(3, run("wrong", "list").exitCode);
+        assertEquals(2, run(MASTER_PASSWORD, "delete", "x").exitCode);
+    }
+
+    // Tests that the stored password is converted to a derived key and that the vault can be re-encrypted
+    @Test
+    void testConvertsPasswordAndRekeys() throws Exception {
+        JsonUtils.saveToJson(List.of(new PasswordEntry("Gmail", "alice", "secret1")),
+                directory.resolve("in.json").toString());
+        assertEquals(0, run(MASTER_PASSWORD, "import", "in.json").exitCode);
+        String properties = Files.readString(directory.resolve("home/password_manager.properties"));
+        assertFalse(properties.contains("encryptedMasterPassword"));
+        assertTrue(properties.contains("kdfIterations"));
+
+        assertEquals(0, run(MASTER_PASSWORD, "rekey").exitCode);
+        assertNotEquals(properties, Files.readString(directory.resolve("home/password_manager.properties")));
+        assertEquals("secret1\n", run(MASTER_PASSWORD, "get", "Gmail").output);
+        assertEquals(3, run("wrong", "list").exitCode);
+    }
+
+    // Tests that a rekey whose key cannot be stored leaves the vault and the stored key as they were
+    @Test
+    void testRekeyAbortsWhenTheKeyCannotBeStored() throws Exception {
+        JsonUtils.saveToJson(List.of(new PasswordEntry("Gmail", "alice", "secret1")),
+                directory.resolve("in.json").toString());
+        assertEquals(0, run(MASTER_PASSWORD, "import", "in.json").exitCode);
+        Path propertiesFile = directory.resolve("home/password_manager.properties");
+        String properties = Files.readString(propertiesFile);
+
+        // A directory in the way of the temporary file makes every save fail, whatever the privileges
+        Files.createDirectory(directory.resolve("home/password_manager.properties.tmp"));
+        assertEquals(1, run(MASTER_PASSWORD, "rekey").exitCode);
+        assertEquals(properties, Files.readString(propertiesFile));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().endsWith(".rekey")));
+        }
+        assertEquals("secret1\n", run(MASTER_PASSWORD, "get", "Gmail").output);
+    }
+
+    // Tests that the command line never loads a JavaFX class
+    @Test
+    void testDoesNotLoadJavaFx() throws Exception {
+        Result result = run(MASTER_PASSWORD, List.of("-Xlog:class+load"), "list");
+        assertEquals(0, result.exitCode);
+        assertTrue(result.output.contains("com.zimenina.yuliya.cli.Cli "), "class loading was not logged");
+        assertFalse(result.output.contains("javafx."), "a JavaFX class was loaded");
+    }
+
+    private Result run(String password, String... args) throws Exception {
+        return run(password, List.of(), args);
+    }
+
+    private Result run(String password, List<String> jvmOptions, String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-Duser.home=" + directory.resolve("home"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Cli.class.getName());
+        command.addAll(List.of(args));
+        ProcessBuilder builder = new ProcessBuilder(command).directory(directory.toFile());
+        builder.environment().put("PM_MASTER_PASSWORD", password);
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process process = builder.start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        return new Result(process.waitFor(), output.replace(System.lineSeparator(), "\n"));
+    }
+
+    private record Result(int exitCode, String output) {
+    }
+}
@@ -0,0 +1,148 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.daemon.CredentialClient;
+import com.zimenina.yuliya.daemon.CredentialDaemon;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.Storage;
+import com.zimenina.yuliya.util.VaultLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the credential daemon and its client.
+ */
+public class CredentialDaemonTest {
+    private Path directory;
+    private Path socket;
+    private VaultLog vault;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        AESUtil.setMasterPassword("TestMasterPassword");
+        directory = Files.createTempDirectory("daemon");
+        socket = directory.resolve("pm.sock");
+        String vaultFile = directory.resolve("data.json").toString();
+        PasswordEntry first = new PasswordEntry("GitHub", "alice", "pass\twith\ntabs\\");
+        first.setId(1);
+        PasswordEntry second = new PasswordEntry("github", "bob", "BobPass");
+        second.setId(2);
+        PasswordEntry third = new PasswordEntry("Mail", "alice", "MailPass");
+        third.setId(3);
+        Storage.save(List.of(first, second, third), vaultFile);
+        vault = VaultLog.open(vaultFile);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        vault.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // Tests lookups by service and username, including escaped passwords and ambiguous services
+    @Test
+    void testLookup() throws Exception {
+        try (CredentialDaemon daemon = CredentialDaemon.start(socket, vault);
+             CredentialClient client = CredentialClient.connect(socket)) {
+            assertEquals(socket, daemon.getSocketPath());
+            IOException loading = assertThrows(IOException.class, () -> client.get("Mail", null));
+            assertTrue(loading.getMessage().contains("loading"), loading.getMessage());
+
+            vault.load();
+            assertEquals("MailPass", await(client, "MAIL", null));
+            assertEquals("pass\twith\ntabs\\", client.get("github", "alice"));
+            assertEquals("BobPass", client.get("GitHub", "bob"));
+            assertNull(client.get("GitHub", "carol"));
+            assertNull(client.get("Unknown", null));
+            IOException ambiguous = assertThrows(IOException.class, () -> client.get("GitHub", null));
+            assertTrue(ambiguous.getMessage().startsWith("2 entries match"), ambiguous.getMessage());
+        }
+        assertFalse(Files.exists(socket));
+    }
+
+    // Tests that changes recorded in the vault are published to running clients
+    @Test
+    void testChangesArePublished() throws Exception {
+        vault.load();
+        try (CredentialDaemon daemon = CredentialDaemon.start(socket, vault);
+             CredentialClient client = CredentialClient.connect(socket)) {
+            assertEquals(socket, daemon.getSocketPath());
+            assertEquals("MailPass", await(client, "Mail", null));
+
+            PasswordEntry added = new PasswordEntry("Bank", "alice", "BankPass");
+            vault.recordPut(added);
+            assertEquals("BankPass", await(client, "Bank", "alice"));
+
+            PasswordEntry changed = vault.entries().stream()
+                    .filter(entry -> entry.getService().equals("Mail")).findFirst().orElseThrow();
+            changed.setService("Email");
+            changed.setPassword("NewMailPass");
+            vault.recordPut(changed);
+            assertEquals("NewMailPass", await(client, "Email", null));
+            assertNull(client.get("Mail", null));
+
+            vault.recordDelete(added);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client.get("Bank", "alice") != null) {
+                assertTrue(System.currentTimeMillis() < deadline, "Deletion was not published");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    // Tests that a socket left behind is replaced, while a running daemon is not
+    @Test
+    void testStaleSocket() throws Exception {
+        vault.load();
+        try (CredentialDaemon daemon = CredentialDaemon.start(socket, vault)) {
+            assertTrue(Files.exists(daemon.getSocketPath()));
+            assertThrows(IOException.class, () -> CredentialDaemon.start(socket, VaultLog.open("unused.json")));
+        }
+        // Leaves a socket file nobody listens on
+        ServerSocketChannel stale = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        stale.bind(UnixDomainSocketAddress.of(socket));
+        stale.close();
+        assertTrue(Files.exists(socket));
+
+        try (CredentialDaemon daemon = CredentialDaemon.start(socket, vault);
+             CredentialClient client = CredentialClient.connect(socket)) {
+            assertEquals(socket, daemon.getSocketPath());
+            assertEquals("MailPass", await(client, "Mail", null));
+        }
+    }
+
+    // Snapshots are published asynchronously; waits until the lookup has the expected outcome
+    private static String await(CredentialClient client, String service, String username) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                String password = client.get(service, username);
+                if (password != null || System.currentTimeMillis() > deadline) {
+                    return password;
+                }
+            } catch (IOException e) {
+                boolean loading = Objects.requireNonNullElse(e.getMessage(), "").contains("loading");
+                if (!loading || System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.util.MasterKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the MasterKey class.
+ */
+public class MasterKeyTest {
+    private static final String PASSWORD = "TestMasterPassword";
+
+    // Tests that the vault key comes back with the right password only, also after storing
+    @Test
+    void testUnlockAfterStore() {
+        byte[] vaultKey = MasterKey.newVaultKey();
+        MasterKey masterKey = MasterKey.create(PASSWORD, vaultKey, MasterKey.MIN_ITERATIONS);
+        assertArrayEquals(vaultKey, masterKey.unlock(PASSWORD));
+        assertNull(masterKey.unlock("WrongPassword"));
+
+        Properties properties = new Properties();
+        masterKey.store(properties);
+        assertFalse(properties.toString().contains(PASSWORD));
+        MasterKey stored = MasterKey.fromProperties(properties);
+        assertEquals(MasterKey.MIN_ITERATIONS, stored.getIterations());
+        assertArrayEquals(vaultKey, stored.unlock(PASSWORD));
+        assertTrue(stored.getLastDerivationNanos() > 0);
+        assertNull(MasterKey.fromProperties(new Properties()));
+    }
+
+    // Tests that the same password and key give different stored values, and that calibration keeps the floor
+    @Test
+    void testSaltAndCalibration() {
+        byte[] vaultKey = MasterKey.newVaultKey();
+        Properties first = new Properties();
+        Properties second = new Properties();
+        MasterKey.create(PASSWORD, vaultKey, MasterKey.MIN_ITERATIONS).store(first);
+        MasterKey.create(PASSWORD, vaultKey, MasterKey.MIN_ITERATIONS).store(second);
+        assertNotEquals(first.getProperty("kdfSalt"), second.getProperty("kdfSalt"));
+        assertNotEquals(first.getProperty("kdfVerifier"), second.getProperty("kdfVerifier"));
+
+        assertEquals(MasterKey.MIN_ITERATIONS, MasterKey.calibrate(1));
+        assertTrue(MasterKey.calibrate(250) >= MasterKey.MIN_ITERATIONS);
+    }
+}
@@ -0,0 +1,61 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.metrics.Counter;
+import com.zimenina.yuliya.metrics.Histogram;
+import com.zimenina.yuliya.metrics.Metrics;
+import com.zimenina.yuliya.metrics.Timer;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the metrics registry.
+ */
+public class MetricsTest {
+
+    // Tests that percentiles land within the bucket precision of the recorded values
+    @Test
+    void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000, histogram.getMax());
+        assertTrue(histogram.getP50() >= 500 && histogram.getP50() <= 625, "p50=" + histogram.getP50());
+        assertTrue(histogram.getP99() >= 990 && histogram.getP99() <= 1000, "p99=" + histogram.getP99());
+    }
+
+    // Tests that the same name returns the same metric and that it is visible over JMX
+    @Test
+    void testRegistryAndJmx() throws Exception {
+        Counter counter = Metrics.counter("test.counter");
+        counter.add(3);
+        assertSame(counter, Metrics.counter("test.counter"));
+
+        ObjectName name = new ObjectName("com.zimenina.yuliya:type=Counter,name=\"test.counter\"");
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count"));
+        assertThrows(IllegalArgumentException.class, () -> Metrics.timer("test.counter"));
+    }
+
+    // Tests that the dump file lists every metric
+    @Test
+    void testDump() throws Exception {
+        Timer timer = Metrics.timer("test.timer");
+        timer.record(2_000_000);
+        Path file = Files.createTempFile("metrics", ".txt");
+        try {
+            Metrics.dump(file);
+            String content = Files.readString(file);
+            assertTrue(content.contains("test.timer count=1 total=2.000ms"), content);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
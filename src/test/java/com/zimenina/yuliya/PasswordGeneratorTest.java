@@ -0,0 +1,83 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.util.PasswordGenerator;
+import com.zimenina.yuliya.util.PasswordGenerator.CharacterClass;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the PasswordGenerator class.
+ */
+public class PasswordGeneratorTest {
+
+    @TempDir
+    Path directory;
+
+    // Tests that every password has the length, a character of each class and no ambiguous characters
+    @Test
+    void testCharacterPolicy() {
+        PasswordGenerator generator = PasswordGenerator.characters(4,
+                EnumSet.of(CharacterClass.LOWER, CharacterClass.UPPER, CharacterClass.DIGITS, CharacterClass.SYMBOLS), true);
+        List<String> passwords = generator.generate(10_000);
+        assertEquals(10_000, passwords.size());
+        for (String password : passwords) {
+            assertEquals(4, password.length());
+            assertTrue(password.chars().anyMatch(Character::isLowerCase), password);
+            assertTrue(password.chars().anyMatch(Character::isUpperCase), password);
+            assertTrue(password.chars().anyMatch(Character::isDigit), password);
+            assertTrue(password.chars().anyMatch(c -> !Character.isLetterOrDigit(c)), password);
+            assertTrue(password.chars().noneMatch(c -> "0O1Il|`'\"".indexOf(c) >= 0), password);
+        }
+        // 25 * 24 * 8 * 28 passwords without the positions of the classes
+        assertEquals(Math.log(25.0 * 24 * 8 * 28) / Math.log(2), generator.entropyBits(), 1e-9);
+
+        PasswordGenerator digits = PasswordGenerator.characters(12, EnumSet.of(CharacterClass.DIGITS), false);
+        String pin = digits.generate();
+        assertTrue(pin.matches("\\d{12}"), pin);
+        assertEquals(12 * Math.log(10) / Math.log(2), digits.entropyBits(), 1e-9);
+        assertEquals(1000, new HashSet<>(digits.generate(1000)).size());
+    }
+
+    // Tests that passphrases take their words from a word list file, also with dice numbers
+    @Test
+    void testPassphrase() throws Exception {
+        Path file = directory.resolve("words.txt");
+        Files.writeString(file, "# dice words\n11111\tabacus\n11112\tabdomen\n\n11113 abide\nabide\n");
+        List<String> words = PasswordGenerator.loadWords(file);
+        assertEquals(List.of("abacus", "abdomen", "abide", "abide"), words);
+
+        PasswordGenerator generator = PasswordGenerator.passphrase(words, 5, " ");
+        assertEquals(5 * Math.log(3) / Math.log(2), generator.entropyBits(), 1e-9);
+        Set<String> seen = new HashSet<>();
+        for (String passphrase : generator.generate(300)) {
+            String[] parts = passphrase.split(" ");
+            assertEquals(5, parts.length);
+            seen.addAll(List.of(parts));
+        }
+        assertEquals(Set.of("abacus", "abdomen", "abide"), seen);
+        assertThrows(RuntimeException.class, () -> PasswordGenerator.loadWords(directory.resolve("missing.txt")));
+    }
+
+    // Tests that policies that cannot be met are refused
+    @Test
+    void testRejectsInvalidPolicies() {
+        assertThrows(IllegalArgumentException.class,
+                () -> PasswordGenerator.characters(8, EnumSet.noneOf(CharacterClass.class), false));
+        assertThrows(IllegalArgumentException.class,
+                () -> PasswordGenerator.characters(2, EnumSet.allOf(CharacterClass.class), false));
+        assertThrows(IllegalArgumentException.class,
+                () -> PasswordGenerator.characters(PasswordGenerator.MAX_LENGTH + 1, EnumSet.of(CharacterClass.LOWER), false));
+        assertThrows(IllegalArgumentException.class, () -> PasswordGenerator.passphrase(List.of("one", "one"), 4, "-"));
+        assertThrows(IllegalArgumentException.class, () -> PasswordGenerator.passphrase(List.of("one", "two"), 0, "-"));
+        assertEquals(20, PasswordGenerator.configured().generate().length());
+    }
+}
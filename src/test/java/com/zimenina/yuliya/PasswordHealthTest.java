@@ -0,0 +1,111 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.PasswordHealth;
+import com.zimenina.yuliya.util.PasswordHealth.Strength;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the PasswordHealth class.
+ */
+public class PasswordHealthTest {
+
+    // Tests that common passwords, runs and passwords naming the service are weak and random ones strong
+    @Test
+    void testStrength() {
+        assertEquals(Strength.VERY_WEAK, PasswordHealth.strengthOf("", null));
+        assertEquals(Strength.VERY_WEAK, PasswordHealth.strengthOf("Password123!", null));
+        assertEquals(Strength.VERY_WEAK, PasswordHealth.strengthOf("qwerty", null));
+        assertEquals(Strength.VERY_WEAK, PasswordHealth.strengthOf("aaaaaaaaaaaa", null));
+        assertEquals(Strength.VERY_WEAK, PasswordHealth.strengthOf("abcdefghijkl", null));
+        assertEquals(Strength.FAIR, PasswordHealth.strengthOf("zq8mvk2p", null));
+        assertEquals(Strength.STRONG, PasswordHealth.strengthOf("Tr0ub4dor&3x", null));
+        assertEquals(Strength.VERY_STRONG, PasswordHealth.strengthOf("k9#Lm2$vQx7!pR4w", null));
+
+        PasswordEntry entry = new PasswordEntry("github.com", "alice@mail.org", "github-Xq9!rT2z");
+        assertEquals(Strength.WEAK, PasswordHealth.strengthOf(entry.getPassword(), entry));
+        assertEquals(Strength.WEAK, PasswordHealth.strengthOf("Xq9!rT2zAlice", entry));
+        assertTrue(Strength.WEAK.isWeak());
+        assertFalse(Strength.FAIR.isWeak());
+    }
+
+    // Tests that reuse and duplicate logins are counted and follow entries being replaced and removed
+    @Test
+    void testReuseAndDuplicatesUpdateIncrementally() {
+        PasswordHealth health = new PasswordHealth();
+        PasswordEntry gmail = new PasswordEntry("Gmail", "alice", "k9#Lm2$vQx7!pR4w");
+        PasswordEntry github = new PasswordEntry("GitHub", "alice", "k9#Lm2$vQx7!pR4w");
+        PasswordEntry githubAgain = new PasswordEntry(" github", "Alice ", "Tr0ub4dor&3x");
+        health.addAll(List.of(gmail, github, githubAgain));
+        assertNull(health.report(gmail));
+        assertEquals(3, health.summary().pending());
+
+        assertEquals(3, health.analyzePending());
+        assertEquals(2, health.report(gmail).uses());
+        assertFalse(health.report(gmail).isDuplicate());
+        assertEquals(2, health.report(github).logins());
+        assertTrue(health.report(githubAgain).isDuplicate());
+        assertFalse(health.report(githubAgain).isReused());
+        assertEquals(new PasswordHealth.Summary(3, 0, 0, 2, 1, 2), health.summary());
+
+        // An edit replaces the entry; only the new one is analyzed, and the others follow
+        PasswordEntry edited = new PasswordEntry("GitHub", "bob", "zq8mvk2p");
+        health.remove(github);
+        health.add(edited);
+        List<PasswordEntry> changed = new ArrayList<>();
+        assertEquals(1, health.analyzePending(changed::add));
+        assertEquals(3, changed.size());
+        assertTrue(changed.containsAll(List.of(gmail, githubAgain, edited)));
+        assertTrue(health.report(gmail).isHealthy());
+        assertTrue(health.report(githubAgain).isHealthy());
+        assertTrue(health.report(edited).isHealthy());
+        assertNull(health.report(github));
+
+        // An entry removed before its analysis finishes is not counted
+        health.add(new PasswordEntry("Mail", "carol", "k9#Lm2$vQx7!pR4w"));
+        health.remove(gmail);
+        PasswordEntry removed = new PasswordEntry("Bank", "carol", "k9#Lm2$vQx7!pR4w");
+        health.add(removed);
+        health.remove(removed);
+        assertEquals(1, health.analyzePending());
+        assertEquals(new PasswordHealth.Summary(3, 0, 0, 0, 0, 0), health.summary());
+    }
+
+    // Tests that a large vault is analyzed in one parallel run and grouped by password
+    @Test
+    void testGroupsLargeVault() {
+        PasswordHealth health = new PasswordHealth();
+        List<PasswordEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            entries.add(new PasswordEntry("Service" + i, "user" + i, "k9#Lm2$vQx7!pR4w-" + i % 100));
+        }
+        health.addAll(entries);
+        assertEquals(10_000, health.analyzePending());
+        assertEquals(0, health.analyzePending());
+        assertEquals(100, health.report(entries.get(1234)).uses());
+        assertEquals(new PasswordHealth.Summary(10_000, 0, 0, 10_000, 100, 0), health.summary());
+
+        // A new password changes the reports of the edited entry and of the 99 that shared its old one
+        PasswordEntry edited = new PasswordEntry("Service0", "user0", "k9#Lm2$vQx7!pR4w-new");
+        health.remove(entries.get(0));
+        health.add(edited);
+        List<PasswordEntry> changed = new ArrayList<>();
+        assertEquals(1, health.analyzePending(changed::add));
+        assertEquals(100, changed.size());
+        assertTrue(changed.contains(edited));
+        assertEquals(99, health.report(entries.get(100)).uses());
+
+        // Changing it again touches no other entry
+        PasswordEntry again = new PasswordEntry("Service0", "user0", "k9#Lm2$vQx7!pR4w-newer");
+        health.remove(edited);
+        health.add(again);
+        changed.clear();
+        health.analyzePending(changed::add);
+        assertEquals(List.of(again), changed);
+    }
+}
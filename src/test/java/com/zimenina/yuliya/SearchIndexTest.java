@@ -0,0 +1,135 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.SearchIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the SearchIndex class.
+ */
+public class SearchIndexTest {
+    private SearchIndex searchIndex;
+    private PasswordEntry gmail;
+    private PasswordEntry github;
+    private PasswordEntry bank;
+
+    // Indexes a few entries before each test
+    @BeforeEach
+    void setUp() {
+        gmail = new PasswordEntry("Gmail", "alice@example.com", "secret1");
+        github = new PasswordEntry("GitHub", "alice", "secret2");
+        bank = new PasswordEntry("Bank", "bob", "secret3");
+        searchIndex = new SearchIndex();
+        searchIndex.addAll(List.of(gmail, github, bank));
+    }
+
+    // Tests that the search matches service and username regardless of case
+    @Test
+    void testSearchMatchesServiceAndUsername() {
+        assertEquals(List.of(github), searchIndex.search("GITH"));
+        assertEquals(List.of(gmail), searchIndex.search("example"));
+        assertEquals(2, searchIndex.search("ALICE").size());
+        assertTrue(searchIndex.search("missing").isEmpty());
+    }
+
+    // Tests that short queries fall back to a scan and an empty query matches everything
+    @Test
+    void testShortAndEmptyQueries() {
+        assertEquals(2, searchIndex.search("al").size());
+        assertEquals(3, searchIndex.search("").size());
+        assertTrue(searchIndex.matcher(null).test(bank));
+        assertTrue(searchIndex.matcher("bo").test(bank));
+        assertFalse(searchIndex.matcher("bo").test(gmail));
+    }
+
+    // Tests that removed and edited entries are reflected in the results
+    @Test
+    void testRemoveAndUpdate() {
+        searchIndex.remove(github);
+        assertTrue(searchIndex.search("github").isEmpty());
+
+        bank.setService("Savings");
+        searchIndex.update(bank);
+        assertTrue(searchIndex.search("bank").isEmpty());
+        assertEquals(List.of(bank), searchIndex.search("saving"));
+        assertEquals(2, searchIndex.size());
+    }
+
+    // Tests that reused slots and rebuilds never return an entry twice or a removed one
+    @Test
+    void testManyChangesMatchScan() {
+        List<PasswordEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            PasswordEntry entry = new PasswordEntry("service-" + i, "user" + (i % 7), "p");
+            entries.add(entry);
+            searchIndex.add(entry);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            searchIndex.remove(entries.get(i));
+        }
+        for (int i = 1; i < 5000; i += 4) {
+            searchIndex.add(new PasswordEntry("service-" + i, "other", "p"));
+        }
+
+        List<PasswordEntry> found = searchIndex.search("service-12");
+        Predicate<PasswordEntry> matcher = searchIndex.matcher("service-12");
+        assertEquals(found.size(), found.stream().distinct().count());
+        for (PasswordEntry entry : found) {
+            assertTrue(entry.getService().contains("service-12"));
+            assertTrue(matcher.test(entry));
+        }
+        assertFalse(found.contains(entries.get(12)));
+        assertTrue(found.contains(entries.get(121)));
+    }
+
+    // Tests that rank() tolerates typos and orders by typos, match position and length
+    @Test
+    void testRankToleratesTyposAndOrders() {
+        assertEquals(List.of(gmail), rank(searchIndex, "gmial", 10));
+        assertEquals(List.of(github), rank(searchIndex, "githb", 10));
+        assertEquals(List.of(bank), rank(searchIndex, "BOB", 10));
+        assertTrue(rank(searchIndex, "bbo", 10).isEmpty());
+        assertTrue(rank(searchIndex, "zzzzzz", 10).isEmpty());
+
+        SearchIndex mail = new SearchIndex();
+        PasswordEntry inWord = new PasswordEntry("Gmail", "x", "p");
+        PasswordEntry atWord = new PasswordEntry("My Mail", "y", "p");
+        PasswordEntry typo = new PasswordEntry("Mall", "z", "p");
+        PasswordEntry exact = new PasswordEntry("Mail", "w", "p");
+        PasswordEntry username = new PasswordEntry("Post", "mail", "p");
+        mail.addAll(List.of(inWord, atWord, typo, exact, username));
+        assertEquals(List.of(exact, username, atWord, inWord, typo), rank(mail, "mail", 10));
+        assertEquals(List.of(exact, username), rank(mail, "mail", 2));
+        assertTrue(rank(mail, "mail", 0).isEmpty());
+    }
+
+    // Tests that a ranking stops early when it is cancelled or out of time and keeps the best found
+    @Test
+    void testRankStopsWhenCancelledOrOutOfTime() {
+        for (int i = 0; i < 5000; i++) {
+            searchIndex.add(new PasswordEntry("service-" + i, "user" + i, "p"));
+        }
+        SearchIndex.Ranking complete = searchIndex.rank("service-12", 5, 10_000_000_000L, () -> false);
+        assertTrue(complete.complete());
+        assertEquals("service-12", complete.entries().get(0).getService());
+        assertEquals(5, complete.entries().size());
+
+        SearchIndex.Ranking cancelled = searchIndex.rank("servcie", 5, 10_000_000_000L, () -> true);
+        assertFalse(cancelled.complete());
+        assertTrue(cancelled.entries().size() <= 5);
+        assertFalse(searchIndex.rank("ice", 5, 0, () -> false).complete());
+    }
+
+    private static List<PasswordEntry> rank(SearchIndex index, String query, int limit) {
+        SearchIndex.Ranking ranking = index.rank(query, limit, 10_000_000_000L, () -> false);
+        assertTrue(ranking.complete());
+        return ranking.entries();
+    }
+}
@@ -0,0 +1,105 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.SecretStore;
+import com.zimenina.yuliya.util.VaultLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the SecretStore class.
+ */
+public class SecretStoreTest {
+
+    @TempDir
+    Path directory;
+
+    // Tests that secrets of any size read back and that freed slots are reused without reviving old handles
+    @Test
+    void testPutFreeAndReuse() {
+        SecretStore store = new SecretStore();
+        List<SecretStore.Secret> secrets = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            secrets.add(store.put("pässword-" + i + "x".repeat(i % 300)));
+        }
+        assertEquals("pässword-4321" + "x".repeat(4321 % 300), secrets.get(4321).get());
+        assertEquals("", store.put("").get());
+
+        SecretStore.Secret freed = secrets.get(10);
+        long inUse = store.getBytesInUse();
+        freed.free();
+        freed.free();
+        assertTrue(store.getBytesInUse() < inUse);
+        assertThrows(IllegalStateException.class, freed::get);
+        // The same slot now holds another password, which the old handle must not see
+        SecretStore.Secret reused = store.put("pässword-10" + "x".repeat(10));
+        assertEquals("pässword-10" + "x".repeat(10), reused.get());
+        assertThrows(IllegalStateException.class, freed::get);
+        assertThrows(IllegalArgumentException.class, () -> store.put("x".repeat(64 * 1024 + 1)));
+    }
+
+    // Tests that a wipe invalidates every handle and that the store is usable afterwards
+    @Test
+    void testWipe() {
+        SecretStore store = new SecretStore();
+        SecretStore.Secret secret = store.put("Secret1");
+        store.wipe();
+        assertThrows(IllegalStateException.class, secret::get);
+        assertEquals(0, store.getBytesInUse());
+        SecretStore.Secret again = store.put("Secret2");
+        assertEquals("Secret2", again.get());
+        secret.free();
+        assertEquals("Secret2", again.get());
+    }
+
+    // Tests that the vault keeps recorded passwords off the heap and zeroes them when it is closed
+    @Test
+    void testVaultWipesOnClose() {
+        AESUtil.setMasterPassword("TestMasterPassword");
+        VaultLog vaultLog = VaultLog.open(directory.resolve("vault.json").toString());
+        vaultLog.load();
+        PasswordEntry entry = new PasswordEntry("Mail", "alice", "MailPass");
+        vaultLog.recordPut(entry);
+        PasswordEntry kept = vaultLog.entries().get(0);
+        assertInstanceOf(SecretStore.Secret.class, entry.getPasswordSource());
+        assertSame(entry.getPasswordSource(), kept.getPasswordSource());
+        assertEquals("MailPass", kept.getPassword());
+        vaultLog.flush();
+        vaultLog.close();
+        assertThrows(IllegalStateException.class, kept::getPassword);
+        assertThrows(IllegalStateException.class, entry::getPassword);
+
+        VaultLog reopened = VaultLog.open(directory.resolve("vault.json").toString());
+        assertEquals("MailPass", reopened.load().get(0).getPassword());
+        reopened.close();
+    }
+
+    // Tests that the password of a replaced or removed entry is freed right away
+    @Test
+    void testVaultFreesReplacedPasswords() {
+        AESUtil.setMasterPassword("TestMasterPassword");
+        VaultLog vaultLog = VaultLog.open(directory.resolve("vault.json").toString());
+        vaultLog.load();
+        PasswordEntry entry = new PasswordEntry("Mail", "alice", "MailPass");
+        vaultLog.recordPut(entry);
+        vaultLog.recordPut(entry);
+        assertEquals("MailPass", entry.getPassword());
+
+        PasswordEntry changed = new PasswordEntry("Mail", "alice", "NewMailPass");
+        changed.setId(entry.getId());
+        vaultLog.recordPut(changed);
+        assertThrows(IllegalStateException.class, entry::getPassword);
+        assertEquals("NewMailPass", vaultLog.entries().get(0).getPassword());
+
+        vaultLog.recordDelete(changed);
+        assertThrows(IllegalStateException.class, changed::getPassword);
+        vaultLog.close();
+    }
+}
@@ -9,14 +9,22 @@ import javafx.collections.ObservableList;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.MockedStatic;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
-import static org.mockito.Mockito.*;
 
 /**
  * Unit tests for the Storage class.
@@ -25,14 +33,14 @@ import static org.mockito.Mockito.*;
 
 public class StorageTest {
     private static final String TEST_FILE_NAME = "test_data.json";
+    private static final String TEST_MASTER_PASSWORD = "TestMasterPassword";
     private ObservableList<PasswordEntry> entries;
-    private MockedStatic<AESUtil> aesUtilMock;
     private File tempFile;
 
     @BeforeEach
     void setUp() {
-        // Initialize mock for AESUtil
-        aesUtilMock = mockStatic(AESUtil.class);
+        // The storage pipeline encrypts with the master password key
+        AESUtil.setMasterPassword(TEST_MASTER_PASSWORD);
 
         // Create a temporary file
         tempFile = new File(TEST_FILE_NAME);
@@ -52,33 +60,21 @@ public class StorageTest {
         if (tempFile.exists()) {
             tempFile.delete();
         }
-        // Close the mock if it was initialized
-        if (aesUtilMock != null) {
-            aesUtilMock.close();
-        }
     }
 
     @Test
     void testSaveAndLoad() throws Exception {
-        // Set up mock for encryption: return JSON string unchanged
-        Gson gson = new Gson();
-        String json = gson.toJson(entries);
-        when(AESUtil.encrypt(json)).thenReturn(json);
-        when(AESUtil.decrypt(json)).thenReturn(json);
-
         // Save the data
         Storage.save(entries, TEST_FILE_NAME);
 
         // Verify that the file was created
         assertTrue(tempFile.exists());
 
-        // Read file contents manually to verify
-        try (FileReader reader = new FileReader(tempFile)) {
-            char[] buffer = new char[(int) tempFile.length()];
-            reader.read(buffer);
-            String fileContent = new String(buffer);
-            assertEquals(json, fileContent);
-        }
+        // Read file contents manually to verify: versioned header, nothing in plain text
+        String fileContent = new String(Files.readAllBytes(tempFile.toPath()), StandardCharsets.ISO_8859_1);
+        assertTrue(fileContent.startsWith("PMVT"));
+        assertFalse(fileContent.contains("Service1"));
+        assertFalse(fileContent.contains("Pass1"));
 
         // Load the data
         java.util.List<PasswordEntry> loadedEntries = Storage.load(TEST_FILE_NAME);
@@ -90,6 +86,27 @@ public class StorageTest {
         assertEquals(entries.get(0).getPassword(), loadedEntries.get(0).getPassword());
     }
 
+    @Test
+    void testPasswordsAreDecryptedOnDemand() {
+        Storage.save(entries, TEST_FILE_NAME);
+
+        java.util.List<PasswordEntry> loadedEntries = Storage.load(TEST_FILE_NAME);
+
+        // Only the index is decrypted on load; the password stays in the mapped file
+        PasswordEntry entry = loadedEntries.get(1);
+        assertNotNull(entry.getPasswordSource());
+        assertEquals("******", entry.getDisplayedPassword());
+        entry.setPasswordVisible(true);
+        assertEquals("Pass2", entry.getDisplayedPassword());
+
+        // Saving again copies untouched passwords without decrypting them
+        loadedEntries.get(0).setPassword("NewPass1");
+        Storage.save(loadedEntries, TEST_FILE_NAME);
+        java.util.List<PasswordEntry> reloaded = Storage.load(TEST_FILE_NAME);
+        assertEquals("NewPass1", reloaded.get(0).getPassword());
+        assertEquals("Pass2", reloaded.get(1).getPassword());
+    }
+
     @Test
     void testLoadWhenFileDoesNotExist() {
         // Ensure the file does not exist
@@ -105,20 +122,209 @@ public class StorageTest {
 
     @Test
     void testSaveThrowsExceptionOnFailure() throws Exception {
-        // Set up mock for encryption
-        String json = new Gson().toJson(entries);
-        when(AESUtil.encrypt(json)).thenReturn(json);
-
-        // Make the file read-only to trigger a write error
+        // Save below a regular file to trigger a write error; a read-only file would not stop root
         try (FileWriter writer = new FileWriter(tempFile)) {
             writer.write("test");
         }
-        tempFile.setReadOnly();
 
         // Verify that saving throws an exception
         RuntimeException exception = assertThrows(RuntimeException.class, () -> {
-            Storage.save(entries, TEST_FILE_NAME);
+            Storage.save(entries, TEST_FILE_NAME + "/vault.json");
         });
         assertTrue(exception.getMessage().contains("Error saving data"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testLoadFileWrittenByWholeStringEncryption() throws Exception {
+        // Files written before streaming was introduced must still load
+        try (FileWriter writer = new FileWriter(tempFile)) {
+            writer.write(AESUtil.encrypt(new Gson().toJson(new ArrayList<>(entries))));
+        }
+
+        java.util.List<PasswordEntry> loadedEntries = Storage.load(TEST_FILE_NAME);
+
+        assertEquals(2, loadedEntries.size());
+        assertEquals("Service2", loadedEntries.get(1).getService());
+        assertEquals("Pass2", loadedEntries.get(1).getPassword());
+    }
+
+    @Test
+    void testUpgradeRewritesOldFormatAndKeepsBackup() throws Exception {
+        try (FileWriter writer = new FileWriter(tempFile)) {
+            writer.write(AESUtil.encrypt(new Gson().toJson(new ArrayList<>(entries))));
+        }
+        File backup = new File(TEST_FILE_NAME + ".bak");
+        try {
+            assertTrue(Storage.upgrade(TEST_FILE_NAME));
+
+            // The file now has the binary layout, the original is kept, and a second run does nothing
+            byte[] header = Files.readAllBytes(tempFile.toPath());
+            assertEquals("PMVT", new String(header, 0, 4, StandardCharsets.US_ASCII));
+            assertEquals(4, header[4]);
+            assertTrue(backup.exists());
+            assertFalse(Storage.upgrade(TEST_FILE_NAME));
+            assertEquals("Pass1", Storage.load(TEST_FILE_NAME).get(0).getPassword());
+        } finally {
+            backup.delete();
+        }
+    }
+
+    @Test
+    void testVersion2FileLoadsAndIsUpgraded() throws Exception {
+        // Version 2 had the current layout, with the passwords and the index encrypted with AES/ECB
+        ByteArrayOutputStream secrets = new ByteArrayOutputStream();
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        index.writeInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            byte[] ciphertext = AESUtil.encryptBytes(entries.get(i).getPassword().getBytes(StandardCharsets.UTF_8));
+            index.writeLong(i + 1);
+            index.writeInt(8 + secrets.size());
+            index.writeInt(ciphertext.length);
+            for (String value : new String[]{entries.get(i).getService(), entries.get(i).getUsername()}) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                index.writeInt(bytes.length);
+                index.write(bytes);
+            }
+            secrets.write(ciphertext);
+        }
+        byte[] encryptedIndex = AESUtil.encryptBytes(indexBytes.toByteArray());
+        ByteBuffer file = ByteBuffer.allocate(8 + secrets.size() + encryptedIndex.length + 12);
+        file.put("PMVT".getBytes(StandardCharsets.US_ASCII)).put(new byte[]{2, 0, 0, 0}).put(secrets.toByteArray());
+        file.put(encryptedIndex).putLong(8 + secrets.size()).putInt(encryptedIndex.length);
+        Files.write(tempFile.toPath(), file.array());
+
+        File backup = new File(TEST_FILE_NAME + ".bak");
+        try {
+            assertEquals("Pass2", Storage.load(TEST_FILE_NAME).get(1).getPassword());
+            assertTrue(Storage.upgrade(TEST_FILE_NAME));
+            assertEquals(4, Files.readAllBytes(tempFile.toPath())[4]);
+            java.util.List<PasswordEntry> upgraded = Storage.load(TEST_FILE_NAME);
+            assertEquals("Service2", upgraded.get(1).getService());
+            assertEquals("Pass2", upgraded.get(1).getPassword());
+        } finally {
+            backup.delete();
+        }
+    }
+
+    @Test
+    void testChangedFileFailsToLoad() throws Exception {
+        // Equal passwords are encrypted differently, and a changed byte is detected
+        entries.add(new PasswordEntry("Service3", "User3", "Pass1"));
+        Storage.save(entries, TEST_FILE_NAME);
+        byte[] bytes = Files.readAllBytes(tempFile.toPath());
+        java.util.List<PasswordEntry> loaded = Storage.load(TEST_FILE_NAME);
+        assertEquals("Pass1", loaded.get(2).getPassword());
+
+        bytes[9] ^= 1;
+        Files.write(tempFile.toPath(), bytes);
+        java.util.List<PasswordEntry> changed = Storage.load(TEST_FILE_NAME);
+        assertThrows(RuntimeException.class, () -> changed.get(0).getPassword());
+        assertEquals("Pass2", changed.get(1).getPassword());
+
+        bytes[9] ^= 1;
+        bytes[bytes.length - 13] ^= 1;
+        Files.write(tempFile.toPath(), bytes);
+        assertThrows(RuntimeException.class, () -> Storage.load(TEST_FILE_NAME));
+    }
+
+    @Test
+    void testSwappedPasswordsFailToLoad() throws Exception {
+        // Each password is bound to the id of its entry, so ciphertext of the same length cannot be swapped
+        entries.get(0).setId(1);
+        entries.get(1).setId(2);
+        Storage.save(entries, TEST_FILE_NAME);
+        byte[] bytes = Files.readAllBytes(tempFile.toPath());
+        // Nonce, password and tag, right behind the header
+        int length = 12 + "Pass1".length() + 16;
+        byte[] first = Arrays.copyOfRange(bytes, 8, 8 + length);
+        System.arraycopy(bytes, 8 + length, bytes, 8, length);
+        System.arraycopy(first, 0, bytes, 8 + length, length);
+        Files.write(tempFile.toPath(), bytes);
+
+        java.util.List<PasswordEntry> swapped = Storage.load(TEST_FILE_NAME);
+        assertEquals("Service1", swapped.get(0).getService());
+        assertThrows(RuntimeException.class, () -> swapped.get(0).getPassword());
+        assertThrows(RuntimeException.class, () -> swapped.get(1).getPassword());
+    }
+
+    @Test
+    void testSaveLegacyCanBeLoadedBack() {
+        // Exported files use the original format, which every version can read
+        Storage.save(entries, TEST_FILE_NAME);
+        java.util.List<PasswordEntry> loaded = Storage.load(TEST_FILE_NAME);
+        Storage.saveLegacy(loaded, TEST_FILE_NAME);
+
+        java.util.List<PasswordEntry> exported = Storage.load(TEST_FILE_NAME);
+        assertEquals(2, exported.size());
+        assertEquals("User2", exported.get(1).getUsername());
+        assertEquals("Pass2", exported.get(1).getPassword());
+    }
+
+    @Test
+    void testCompressedAndUncompressedFilesLoad() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            entries.add(new PasswordEntry("service-" + i + ".example.com", "user@example.com", "Pass" + i));
+        }
+
+        // The header flag tells the loader whether the index was deflated
+        Storage.save(entries, TEST_FILE_NAME, 0);
+        long uncompressedSize = tempFile.length();
+        assertEquals(0, Files.readAllBytes(tempFile.toPath())[5]);
+        assertEquals(202, Storage.load(TEST_FILE_NAME).size());
+
+        Storage.save(entries, TEST_FILE_NAME, 9);
+        assertEquals(1, Files.readAllBytes(tempFile.toPath())[5]);
+        assertTrue(tempFile.length() < uncompressedSize);
+        java.util.List<PasswordEntry> loaded = Storage.load(TEST_FILE_NAME);
+        assertEquals(202, loaded.size());
+        assertEquals("service-199.example.com", loaded.get(201).getService());
+        assertEquals("Pass199", loaded.get(201).getPassword());
+
+        assertThrows(IllegalArgumentException.class, () -> Storage.save(entries, TEST_FILE_NAME, 10));
+    }
+
+    @Test
+    void testShardedLayoutLoadsAndConvertsBack(@TempDir Path directory) throws Exception {
+        String vault = directory.resolve("vault.json").toString();
+        java.util.List<PasswordEntry> many = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            PasswordEntry entry = new PasswordEntry("Service" + i, "User" + i, "Pass" + i);
+            entry.setId(i);
+            many.add(entry);
+        }
+        Storage.save(many, vault);
+        try {
+            // A single-file vault is split up when it is next upgraded
+            Storage.setShards(4);
+            assertTrue(Storage.upgrade(vault));
+            assertFalse(Storage.upgrade(vault));
+            assertTrue(Files.exists(Path.of(vault + ".shard-3-of-4")));
+            java.util.List<PasswordEntry> loaded = Storage.load(vault);
+            assertEquals(100, loaded.size());
+            assertEquals(1, loaded.get(0).getId());
+            assertEquals("Pass100", loaded.get(99).getPassword());
+            // The shards are merged back into id order as the batches are handed over
+            java.util.List<Long> ids = new ArrayList<>();
+            assertEquals(100, Storage.load(vault, 30, batch -> batch.forEach(entry -> ids.add(entry.getId()))));
+            assertEquals(LongStream.rangeClosed(1, 100).boxed().toList(), ids);
+
+            // Another number of shards replaces the old ones
+            Storage.setShards(3);
+            assertTrue(Storage.upgrade(vault));
+            assertFalse(Files.exists(Path.of(vault + ".shard-3-of-4")));
+            assertEquals("Pass50", Storage.load(vault).get(49).getPassword());
+            assertEquals("Pass7", loaded.get(6).getPassword());
+        } finally {
+            Storage.setShards(1);
+        }
+
+        // And back to a single file
+        assertTrue(Storage.upgrade(vault));
+        assertTrue(new String(Files.readAllBytes(Path.of(vault)), StandardCharsets.ISO_8859_1).startsWith("PMVT"));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+        assertEquals(100, Storage.load(vault).size());
+    }
+}
@@ -0,0 +1,63 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.VaultCodec;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the VaultCodec implementations.
+ */
+public class VaultCodecTest {
+    private static final List<String> CODECS = List.of("gson", "jackson");
+
+    // Tests that every codec reads what every other codec writes
+    @Test
+    void testCodecsAreInterchangeable() throws Exception {
+        PasswordEntry entry = new PasswordEntry("Gmail", "user\"@example.com", "päss\nword");
+        entry.setId(42);
+        entry.setPasswordVisible(true);
+        PasswordEntry empty = new PasswordEntry(null, "", null);
+
+        for (String writerName : CODECS) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            VaultCodec.forName(writerName).write(List.of(entry, empty), out);
+            for (String readerName : CODECS) {
+                List<PasswordEntry> loaded = VaultCodec.forName(readerName)
+                        .read(new ByteArrayInputStream(out.toByteArray()));
+                String pair = writerName + " -> " + readerName;
+                assertEquals(2, loaded.size(), pair);
+                assertEquals(42, loaded.get(0).getId(), pair);
+                assertEquals("Gmail", loaded.get(0).getService(), pair);
+                assertEquals("user\"@example.com", loaded.get(0).getUsername(), pair);
+                assertEquals("päss\nword", loaded.get(0).getPassword(), pair);
+                assertTrue(loaded.get(0).isPasswordVisible(), pair);
+                assertNull(loaded.get(1).getService(), pair);
+                assertEquals("", loaded.get(1).getUsername(), pair);
+                assertNull(loaded.get(1).getPassword(), pair);
+            }
+        }
+    }
+
+    // Tests that empty and null documents give no entries and that unknown fields are skipped
+    @Test
+    void testEmptyNullAndUnknownFields() throws Exception {
+        String json = "[{\"service\":\"Bank\",\"extra\":{\"a\":[1,2]},\"password\":\"p\"}]";
+        for (String name : CODECS) {
+            VaultCodec codec = VaultCodec.forName(name);
+            assertTrue(codec.read(new ByteArrayInputStream(new byte[0])).isEmpty(), name);
+            assertTrue(codec.read(new ByteArrayInputStream("null".getBytes(StandardCharsets.UTF_8))).isEmpty(), name);
+            List<PasswordEntry> loaded = codec.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(1, loaded.size(), name);
+            assertEquals("Bank", loaded.get(0).getService(), name);
+            assertEquals("p", loaded.get(0).getPassword(), name);
+        }
+        assertThrows(IllegalArgumentException.class, () -> VaultCodec.forName("xml"));
+    }
+}
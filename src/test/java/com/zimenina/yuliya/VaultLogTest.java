@@ -0,0 +1,430 @@
+package com.zimenina.yuliya;
+
+import com.google.gson.Gson;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.CryptoContext;
+import com.zimenina.yuliya.util.MasterKey;
+import com.zimenina.yuliya.util.Storage;
+import com.zimenina.yuliya.util.VaultLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the VaultLog class.
+ * This class tests migration, incremental saves, replay and compaction of the vault log.
+ */
+public class VaultLogTest {
+    private static final String TEST_FILE_NAME = "test_vault.json";
+    private static final String TEST_LOG_NAME = TEST_FILE_NAME + ".log";
+    private static final String TEST_REKEY_NAME = TEST_FILE_NAME + ".rekey";
+
+    @BeforeEach
+    void setUp() {
+        AESUtil.setMasterPassword("TestMasterPassword");
+        deleteFiles();
+    }
+
+    @AfterEach
+    void tearDown() {
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        new File(TEST_FILE_NAME).delete();
+        new File(TEST_LOG_NAME).delete();
+        new File(TEST_REKEY_NAME).delete();
+        new File(TEST_REKEY_NAME + ".damaged").delete();
+    }
+
+    @Test
+    void testMigratesSnapshotWithoutIds() {
+        // Snapshot written by the previous format: entries have no ids
+        List<PasswordEntry> legacy = new ArrayList<>();
+        legacy.add(new PasswordEntry("Service1", "User1", "Pass1"));
+        legacy.add(new PasswordEntry("Service1", "User1", "Pass1"));
+        Storage.save(legacy, TEST_FILE_NAME);
+
+        List<PasswordEntry> loaded = VaultLog.open(TEST_FILE_NAME).load();
+
+        // Duplicates are kept and every entry gets its own id, which is written back
+        assertEquals(2, loaded.size());
+        assertNotEquals(loaded.get(0).getId(), loaded.get(1).getId());
+        List<PasswordEntry> rewritten = Storage.load(TEST_FILE_NAME);
+        assertEquals(loaded.get(1).getId(), rewritten.get(1).getId());
+    }
+
+    @Test
+    void testLogRecordsOfTheOriginalFormatAreRead() throws IOException {
+        // Records written before the log was versioned are lines of Base64 without a prefix
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        vaultLog.load();
+        PasswordEntry entry = new PasswordEntry("Service1", "User1", "Pass1");
+        entry.setId(7);
+        Files.writeString(Path.of(TEST_LOG_NAME), AESUtil.encrypt("{\"op\":\"PUT\",\"id\":7,\"entry\":"
+                + new Gson().toJson(entry) + "}") + "\n");
+        vaultLog.recordPut(new PasswordEntry("Service2", "User2", "Pass2"));
+        vaultLog.flush();
+        vaultLog.close();
+
+        assertTrue(Files.readAllLines(Path.of(TEST_LOG_NAME)).get(1).startsWith("2:"));
+        List<PasswordEntry> loaded = VaultLog.open(TEST_FILE_NAME).load();
+        assertEquals(2, loaded.size());
+        assertEquals("Pass1", loaded.get(0).getPassword());
+        assertEquals("Pass2", loaded.get(1).getPassword());
+    }
+
+    @Test
+    void testChangesAreAppendedAndReplayed() {
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        List<PasswordEntry> entries = vaultLog.load();
+
+        PasswordEntry first = new PasswordEntry("Service1", "User1", "Pass1");
+        PasswordEntry second = new PasswordEntry("Service2", "User2", "Pass2");
+        entries.add(first);
+        entries.add(second);
+        vaultLog.recordPut(first);
+        vaultLog.recordPut(second);
+        vaultLog.flush();
+
+        // Edit one entry and delete the other
+        first.setPassword("NewPass1");
+        vaultLog.recordPut(first);
+        entries.remove(second);
+        vaultLog.recordDelete(second);
+        vaultLog.flush();
+
+        // The snapshot is never written, only the log grows
+        assertFalse(new File(TEST_FILE_NAME).exists());
+        List<PasswordEntry> reloaded = VaultLog.open(TEST_FILE_NAME).load();
+        assertEquals(1, reloaded.size());
+        assertEquals("Service1", reloaded.get(0).getService());
+        assertEquals("NewPass1", reloaded.get(0).getPassword());
+    }
+
+    @Test
+    void testIncompleteLastRecordIsDropped() throws Exception {
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        List<PasswordEntry> entries = vaultLog.load();
+        PasswordEntry entry = new PasswordEntry("Service1", "User1", "Pass1");
+        entries.add(entry);
+        vaultLog.recordPut(entry);
+        vaultLog.flush();
+
+        // Simulate a write interrupted halfway through a record
+        Files.writeString(Path.of(TEST_LOG_NAME), "abcd", StandardOpenOption.APPEND);
+
+        VaultLog reopened = VaultLog.open(TEST_FILE_NAME);
+        List<PasswordEntry> reloaded = reopened.load();
+        assertEquals(1, reloaded.size());
+
+        // The torn record is cut off, so the next append starts on a fresh line
+        PasswordEntry added = new PasswordEntry("Service2", "User2", "Pass2");
+        reloaded.add(added);
+        reopened.recordPut(added);
+        reopened.flush();
+        assertEquals(2, VaultLog.open(TEST_FILE_NAME).load().size());
+    }
+
+    @Test
+    void testCompactionRewritesSnapshotAndTrimsLog() throws Exception {
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        List<PasswordEntry> entries = vaultLog.load();
+        PasswordEntry entry = new PasswordEntry("Service1", "User1", "Pass0");
+        entries.add(entry);
+
+        // Keep rewriting the same entry until most log records are dead
+        for (int i = 1; i <= 100; i++) {
+            entry.setPassword("Pass" + i);
+            vaultLog.recordPut(entry);
+            vaultLog.flush();
+        }
+        vaultLog.close();
+
+        List<PasswordEntry> snapshot = Storage.load(TEST_FILE_NAME);
+        assertEquals(1, snapshot.size());
+        assertTrue(Files.readAllLines(Path.of(TEST_LOG_NAME)).size() < 100);
+        List<PasswordEntry> reloaded = VaultLog.open(TEST_FILE_NAME).load();
+        assertEquals(1, reloaded.size());
+        assertEquals("Pass100", reloaded.get(0).getPassword());
+    }
+
+    @Test
+    void testPrefetchWithoutKeyThenLoad() {
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        vaultLog.load();
+        vaultLog.recordPut(new PasswordEntry("Service1", "User1", "Pass1"));
+        vaultLog.flush();
+        vaultLog.close();
+
+        // Prefetching needs no key, as it runs while the master password is typed
+        AESUtil.setMasterPassword(null);
+        VaultLog prefetched = VaultLog.open(TEST_FILE_NAME);
+        prefetched.prefetch();
+        AESUtil.setMasterPassword("TestMasterPassword");
+        assertEquals("Pass1", prefetched.load().get(0).getPassword());
+        prefetched.close();
+
+        // A log that grew after the prefetch is read again
+        VaultLog stale = VaultLog.open(TEST_FILE_NAME);
+        stale.prefetch();
+        VaultLog writer = VaultLog.open(TEST_FILE_NAME);
+        writer.load();
+        writer.recordPut(new PasswordEntry("Service2", "User2", "Pass2"));
+        writer.flush();
+        writer.close();
+        assertEquals(2, stale.load().size());
+        stale.close();
+    }
+
+    @Test
+    void testCompactionRewritesOnlyChangedShards(@TempDir Path directory) throws Exception {
+        String vault = directory.resolve("vault.json").toString();
+        Storage.setShards(4);
+        try {
+            // Enough superseded records for a compaction, which writes every shard the first time
+            VaultLog vaultLog = VaultLog.open(vault);
+            vaultLog.load();
+            List<PasswordEntry> entries = new ArrayList<>();
+            for (int i = 1; i <= 8; i++) {
+                entries.add(new PasswordEntry("Service" + i, "User", "Pass" + i));
+            }
+            for (int round = 0; round < 9; round++) {
+                entries.forEach(vaultLog::recordPut);
+            }
+            vaultLog.flush();
+            vaultLog.close();
+            Object[] before = fileKeys(vault);
+
+            // Changes to the entry with id 2 only touch its shard
+            VaultLog reopened = VaultLog.open(vault);
+            reopened.load();
+            PasswordEntry changed = entries.get(1);
+            for (int i = 0; i < 70; i++) {
+                changed.setPassword("Changed" + i);
+                reopened.recordPut(changed);
+            }
+            reopened.flush();
+            reopened.close();
+            assertEquals(0, Files.size(Path.of(vault + ".log")));
+            Object[] after = fileKeys(vault);
+            for (int shard = 0; shard < 4; shard++) {
+                assertEquals(shard != 2, before[shard].equals(after[shard]), "shard " + shard);
+            }
+
+            List<PasswordEntry> reloaded = VaultLog.open(vault).load();
+            assertEquals(8, reloaded.size());
+            assertEquals("Changed69", reloaded.get(1).getPassword());
+            assertEquals("Pass8", reloaded.get(7).getPassword());
+        } finally {
+            Storage.setShards(1);
+        }
+    }
+
+    private static Object[] fileKeys(String vault) throws IOException {
+        Object[] keys = new Object[4];
+        for (int shard = 0; shard < keys.length; shard++) {
+            Path path = Path.of(vault + ".shard-" + shard + "-of-4");
+            keys[shard] = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        }
+        return keys;
+    }
+
+    @Test
+    void testFlushBeforeLoadIsRejected() {
+        // Without a loaded vault a compaction could overwrite it with an empty list
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        assertThrows(IllegalStateException.class, () -> vaultLog.flush());
+    }
+
+    @Test
+    void testChangesRecordedDuringBackgroundFlushAreKept() throws Exception {
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        vaultLog.load();
+
+        // Changes keep arriving on this thread while another thread saves and compacts
+        Thread saver = new Thread(() -> {
+            for (int i = 0; i < 50; i++) {
+                vaultLog.flush();
+            }
+        });
+        saver.start();
+        for (int i = 0; i < 500; i++) {
+            PasswordEntry entry = new PasswordEntry("Service" + i, "User", "Pass" + i);
+            vaultLog.recordPut(entry);
+            if (i % 2 == 0) {
+                vaultLog.recordDelete(entry);
+            }
+        }
+        saver.join();
+        vaultLog.flush();
+        vaultLog.close();
+
+        assertFalse(vaultLog.hasPendingChanges());
+        List<PasswordEntry> reloaded = VaultLog.open(TEST_FILE_NAME).load();
+        assertEquals(250, reloaded.size());
+        assertEquals("Pass499", reloaded.get(249).getPassword());
+    }
+
+    @Test
+    void testLoadInBatchesAppliesLogBeforeHandingOver() {
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        vaultLog.load();
+        List<PasswordEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            PasswordEntry entry = new PasswordEntry("Service" + i, "User", "Pass" + i);
+            entries.add(entry);
+            vaultLog.recordPut(entry);
+        }
+        vaultLog.flush();
+        vaultLog.close();
+
+        // Move the entries into the snapshot, then change some of them in the log only.
+        // Recorded entries keep their passwords in the closed vault's store, which is wiped
+        List<PasswordEntry> snapshot = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            PasswordEntry entry = new PasswordEntry("Service" + i, "User", "Pass" + i);
+            entry.setId(entries.get(i).getId());
+            snapshot.add(entry);
+        }
+        Storage.save(snapshot, TEST_FILE_NAME);
+        new File(TEST_LOG_NAME).delete();
+        VaultLog reopened = VaultLog.open(TEST_FILE_NAME);
+        reopened.load();
+        entries.get(3).setPassword("Changed3");
+        reopened.recordPut(entries.get(3));
+        reopened.recordDelete(entries.get(5));
+        PasswordEntry added = new PasswordEntry("Service10", "User", "Pass10");
+        reopened.recordPut(added);
+        reopened.flush();
+
+        List<List<PasswordEntry>> batches = new ArrayList<>();
+        VaultLog.open(TEST_FILE_NAME).load(4, batches::add);
+
+        // Batches hold the final state; the entry that exists only in the log comes last
+        List<PasswordEntry> loaded = new ArrayList<>();
+        batches.forEach(loaded::addAll);
+        assertEquals(4, batches.get(0).size());
+        assertEquals(10, loaded.size());
+        assertEquals("Changed3", loaded.get(3).getPassword());
+        assertTrue(loaded.stream().noneMatch(entry -> entry.getService().equals("Service5")));
+        assertEquals("Service10", loaded.get(9).getService());
+    }
+
+    @Test
+    void testRekeyReplacesSnapshotAndLog() {
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        vaultLog.load();
+        vaultLog.recordPut(new PasswordEntry("Service1", "User1", "Pass1"));
+        vaultLog.flush();
+        vaultLog.recordPut(new PasswordEntry("Service2", "User2", "Pass2"));
+
+        byte[] vaultKey = MasterKey.newVaultKey();
+        boolean[] stored = {false};
+        assertEquals(2, vaultLog.rekey(vaultKey, () -> stored[0] = true));
+
+        // Changes not yet flushed are in the new snapshot, and the log written with the old key is gone
+        assertTrue(stored[0]);
+        assertFalse(new File(TEST_LOG_NAME).exists());
+        assertFalse(new File(TEST_REKEY_NAME).exists());
+        List<PasswordEntry> loaded = VaultLog.open(TEST_FILE_NAME).load();
+        assertEquals(List.of("Pass1", "Pass2"), loaded.stream().map(PasswordEntry::getPassword).toList());
+        AESUtil.setMasterPassword("TestMasterPassword");
+        assertThrows(RuntimeException.class, () -> VaultLog.open(TEST_FILE_NAME).load());
+    }
+
+    @Test
+    void testRekeyWhoseKeyCannotBeStoredLeavesTheVault() {
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        vaultLog.load();
+        vaultLog.recordPut(new PasswordEntry("Service1", "User1", "Pass1"));
+        vaultLog.flush();
+        CryptoContext session = AESUtil.getContext();
+
+        assertThrows(IllegalStateException.class, () -> vaultLog.rekey(MasterKey.newVaultKey(), () -> {
+            throw new IllegalStateException("Disk full");
+        }));
+
+        assertSame(session, AESUtil.getContext());
+        assertFalse(new File(TEST_REKEY_NAME).exists());
+        assertEquals("Pass1", VaultLog.open(TEST_FILE_NAME).load().get(0).getPassword());
+    }
+
+    @Test
+    void testInterruptedRekeyIsFinishedOnLoad() {
+        PasswordEntry entry = new PasswordEntry("Service1", "User1", "Pass1");
+        entry.setId(1);
+        Storage.save(List.of(entry), TEST_FILE_NAME);
+        VaultLog vaultLog = VaultLog.open(TEST_FILE_NAME);
+        vaultLog.load();
+        vaultLog.recordPut(new PasswordEntry("Service2", "User2", "Pass2"));
+        vaultLog.flush();
+        vaultLog.close();
+
+        // The new key was stored, but the process stopped before the staged snapshot was moved
+        AESUtil.setContext(new CryptoContext(MasterKey.newVaultKey()));
+        PasswordEntry rekeyed = new PasswordEntry("Service1", "User1", "Rekeyed1");
+        rekeyed.setId(1);
+        Storage.saveSingleFile(List.of(rekeyed), TEST_REKEY_NAME);
+
+        List<PasswordEntry> loaded = VaultLog.open(TEST_FILE_NAME).load();
+        assertEquals(1, loaded.size());
+        assertEquals("Rekeyed1", loaded.get(0).getPassword());
+        assertFalse(new File(TEST_REKEY_NAME).exists());
+        assertFalse(new File(TEST_LOG_NAME).exists());
+    }
+
+    @Test
+    void testRekeyWhoseKeyWasNotStoredIsDroppedOnLoad() {
+        PasswordEntry entry = new PasswordEntry("Service1", "User1", "Pass1");
+        entry.setId(1);
+        Storage.save(List.of(entry), TEST_FILE_NAME);
+        CryptoContext session = AESUtil.getContext();
+
+        // The process stopped after the staged snapshot was written, before its key was stored
+        AESUtil.setContext(new CryptoContext(MasterKey.newVaultKey()));
+        Storage.saveSingleFile(List.of(entry), TEST_REKEY_NAME);
+        AESUtil.setContext(session);
+
+        List<PasswordEntry> loaded = VaultLog.open(TEST_FILE_NAME).load();
+        assertEquals("Pass1", loaded.get(0).getPassword());
+        assertFalse(new File(TEST_REKEY_NAME).exists());
+    }
+
+    @Test
+    void testUnreadableRekeySnapshotIsMovedAside() throws IOException {
+        PasswordEntry entry = new PasswordEntry("Service1", "User1", "Pass1");
+        entry.setId(1);
+        Storage.save(List.of(entry), TEST_FILE_NAME);
+        CryptoContext session = AESUtil.getContext();
+
+        // A staged snapshot cut off in the middle, and one with nothing in it
+        AESUtil.setContext(new CryptoContext(MasterKey.newVaultKey()));
+        Storage.saveSingleFile(List.of(entry), TEST_REKEY_NAME);
+        AESUtil.setContext(session);
+        byte[] staged = Files.readAllBytes(Path.of(TEST_REKEY_NAME));
+        for (int length : new int[] {staged.length / 2, 0}) {
+            Files.write(Path.of(TEST_REKEY_NAME), Arrays.copyOf(staged, length));
+
+            List<PasswordEntry> loaded = VaultLog.open(TEST_FILE_NAME).load();
+
+            assertEquals("Pass1", loaded.get(0).getPassword());
+            assertFalse(new File(TEST_REKEY_NAME).exists());
+            assertEquals(length, Files.size(Path.of(TEST_REKEY_NAME + ".damaged")));
+        }
+    }
+}
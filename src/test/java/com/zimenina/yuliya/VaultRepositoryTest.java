@@ -0,0 +1,119 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.controller.ObservableVaultList;
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.VaultRepository;
+import javafx.collections.ListChangeListener;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the VaultRepository class and the table's ObservableVaultList view of it.
+ */
+public class VaultRepositoryTest {
+
+    // Tests keyed lookups, duplicate detection, updates and removals
+    @Test
+    void testKeyedChanges() {
+        VaultRepository repository = new VaultRepository();
+        PasswordEntry gmail = new PasswordEntry("Gmail", "alice", "Pass1");
+        PasswordEntry github = new PasswordEntry("GitHub", "alice", "Pass2");
+        assertTrue(repository.add(gmail));
+        assertTrue(repository.add(github));
+        assertFalse(repository.add(new PasswordEntry("GMAIL", "alice", "Other")));
+        assertTrue(repository.add(new PasswordEntry("Gmail", "bob", "Pass3")));
+
+        assertSame(gmail, repository.find("gmail", "alice"));
+        assertNull(repository.find("Gmail", "Alice"));
+
+        // Renaming onto an existing key is refused; a successful update keeps the position
+        assertNull(repository.update(github, "Gmail", "bob", "Pass2"));
+        PasswordEntry renamed = repository.update(github, "GitLab", "alice", "NewPass");
+        assertNotNull(renamed);
+        assertNull(repository.find("GitHub", "alice"));
+        assertSame(renamed, repository.find("gitlab", "alice"));
+        assertEquals("GitHub", github.getService());
+        assertSame(renamed, repository.snapshot().get(1));
+
+        assertTrue(repository.remove(gmail));
+        assertFalse(repository.remove(gmail));
+        assertNull(repository.find("Gmail", "alice"));
+        assertEquals(2, repository.size());
+    }
+
+    // Tests that snapshots do not change and that loaded duplicates are kept
+    @Test
+    void testSnapshotsAndLoadedDuplicates() {
+        VaultRepository repository = new VaultRepository();
+        PasswordEntry first = new PasswordEntry("Mail", "alice", "Pass1");
+        PasswordEntry second = new PasswordEntry("mail", "alice", "Pass2");
+        repository.addLoaded(List.of(first, second));
+        List<PasswordEntry> snapshot = repository.snapshot();
+        assertEquals(List.of(first, second), snapshot);
+        assertSame(snapshot, repository.snapshot());
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.add(first));
+
+        // The remaining duplicate takes over the key
+        repository.remove(first);
+        assertSame(second, repository.find("Mail", "alice"));
+        assertEquals(List.of(first, second), snapshot);
+        assertEquals(List.of(second), repository.snapshot());
+    }
+
+    // Tests that queued changes reach the list as one notification with the right contents
+    @Test
+    void testListBatchesNotifications() {
+        VaultRepository repository = new VaultRepository();
+        PasswordEntry existing = new PasswordEntry("Existing", "alice", "Pass0");
+        repository.add(existing);
+        List<Runnable> uiQueue = new ArrayList<>();
+        ObservableVaultList list = ObservableVaultList.of(repository, uiQueue::add);
+        assertEquals(List.of(existing), list);
+
+        List<PasswordEntry> removed = new ArrayList<>();
+        List<PasswordEntry> added = new ArrayList<>();
+        int[] notifications = {0};
+        list.addListener((ListChangeListener<PasswordEntry>) change -> {
+            notifications[0]++;
+            while (change.next()) {
+                removed.addAll(change.getRemoved());
+                added.addAll(change.getAddedSubList());
+            }
+        });
+
+        List<PasswordEntry> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            batch.add(new PasswordEntry("Service" + i, "user", "Pass" + i));
+        }
+        repository.addLoaded(batch.subList(0, 500));
+        repository.addLoaded(batch.subList(500, 1000));
+        PasswordEntry edited = repository.update(batch.get(10), "Edited", "user", "NewPass");
+        repository.remove(existing);
+        repository.remove(batch.get(999));
+        assertEquals(1, uiQueue.size());
+        assertEquals(1, list.size());
+
+        uiQueue.forEach(Runnable::run);
+        assertEquals(1, notifications[0]);
+        assertEquals(repository.snapshot(), list);
+        assertSame(edited, list.get(10));
+        assertTrue(removed.contains(existing));
+        assertFalse(added.contains(batch.get(999)));
+
+        // Many removals at once are applied in a single pass
+        for (int i = 500; i < 600; i++) {
+            repository.remove(batch.get(i));
+        }
+        PasswordEntry editedAgain = repository.update(edited, "Edited twice", "user", "NewPass");
+        uiQueue.subList(0, 1).clear();
+        uiQueue.forEach(Runnable::run);
+        assertEquals(2, notifications[0]);
+        assertEquals(repository.snapshot(), list);
+        assertSame(editedAgain, list.get(10));
+        assertEquals(899, list.size());
+    }
+}
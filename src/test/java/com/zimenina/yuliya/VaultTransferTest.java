@@ -0,0 +1,115 @@
+package com.zimenina.yuliya;
+
+import com.zimenina.yuliya.model.PasswordEntry;
+import com.zimenina.yuliya.util.AESUtil;
+import com.zimenina.yuliya.util.JsonUtils;
+import com.zimenina.yuliya.util.VaultLog;
+import com.zimenina.yuliya.util.VaultTransfer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the VaultTransfer class: bulk import and export as CSV and JSON.
+ */
+public class VaultTransferTest {
+    @TempDir
+    Path directory;
+
+    private String vaultFile;
+    private VaultLog vault;
+
+    // Opens an empty vault with one entry recorded in its log
+    @BeforeEach
+    void setUp() {
+        AESUtil.setMasterPassword("TestMasterPassword");
+        vaultFile = directory.resolve("vault.json").toString();
+        vault = VaultLog.open(vaultFile);
+        vault.load();
+        vault.recordPut(new PasswordEntry("Gmail", "alice", "existing"));
+        vault.flush();
+    }
+
+    @AfterEach
+    void tearDown() {
+        vault.close();
+    }
+
+    // Tests quoting, line breaks, header aliases, duplicates and rejected rows in a CSV import
+    @Test
+    void testImportCsv() throws Exception {
+        Path csv = directory.resolve("export.csv");
+        Files.writeString(csv, "\uFEFFname,url,login_username,login_password\r\n"
+                + "GMAIL,https://mail.google.com,alice,other\r\n"
+                + "\"Bank, Inc.\",,bob,\"pa\"\"ss\nword\"\r\n"
+                + "\r\n"
+                + "NoPassword,,carol,\r\n"
+                + "Forum,, dave ,secret\n"
+                + "forum,,dave,again\n");
+
+        VaultTransfer.ImportResult result = VaultTransfer.importFile(vault, csv);
+
+        assertEquals(2, result.added());
+        assertEquals(2, result.duplicates());
+        assertEquals(1, result.rejected());
+        assertEquals(List.of("line 6: password is missing"), result.problems());
+
+        vault.close();
+        List<PasswordEntry> loaded = VaultLog.open(vaultFile).load();
+        assertEquals(3, loaded.size());
+        assertEquals("existing", loaded.get(0).getPassword());
+        assertEquals("Bank, Inc.", loaded.get(1).getService());
+        assertEquals("pa\"ss\nword", loaded.get(1).getPassword());
+        assertEquals("dave", loaded.get(2).getUsername());
+        // The import is one snapshot; the records before it are trimmed from the log
+        assertEquals(0, Files.size(Path.of(vaultFile + ".log")));
+    }
+
+    // Tests that the JSON format of JsonUtils is imported and that an owner-only export reads back unchanged
+    @Test
+    void testImportJsonAndExportRoundTrip() throws Exception {
+        Path json = directory.resolve("passwords.json");
+        JsonUtils.saveToJson(List.of(
+                new PasswordEntry("GitHub", "alice", "p1"),
+                new PasswordEntry("  ", "bob", "p2"),
+                new PasswordEntry("Site", "\"quoted\", name", " spaced ")), json.toString());
+
+        VaultTransfer.ImportResult result = VaultTransfer.importFile(vault, json);
+        assertEquals(2, result.added());
+        assertEquals(1, result.rejected());
+
+        Path csv = directory.resolve("out.csv");
+        assertEquals(3, VaultTransfer.exportFile(vault.entries(), csv));
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(csv));
+        VaultLog copy = VaultLog.open(directory.resolve("copy.json").toString());
+        copy.load();
+        assertEquals(3, VaultTransfer.importFile(copy, csv).added());
+        List<PasswordEntry> entries = copy.entries();
+        assertEquals("\"quoted\", name", entries.get(2).getUsername());
+        assertEquals(" spaced ", entries.get(2).getPassword());
+        copy.close();
+    }
+
+    // Tests that a failing import leaves the vault as it was
+    @Test
+    void testFailedImportKeepsVault() throws Exception {
+        Path csv = directory.resolve("broken.csv");
+        Files.writeString(csv, "service,username,password\nA,a,\"unterminated\n");
+
+        assertThrows(RuntimeException.class, () -> VaultTransfer.importFile(vault, csv));
+
+        assertEquals(1, vault.entries().size());
+        vault.recordPut(new PasswordEntry("After", "x", "y"));
+        vault.flush();
+        vault.close();
+        assertEquals(2, VaultLog.open(vaultFile).load().size());
+    }
+}